@@ -48,6 +48,7 @@ public class Launcher {
 		Class wavelet = HaarAdaptive.class;
 		
 		TransmormationManager m = new TransmormationManager(wtLevel, quantLevels, wavelet);
+		m.setParallelism(Runtime.getRuntime().availableProcessors());
 
 		Log.getInstance().log(Level.CONFIG,
 				"TransmormationManager launch. Decomposition depth " + wtLevel + ", quatLvl = " + quantLevels
@@ -63,6 +64,7 @@ public class Launcher {
 //		}
 
 		List<String> files = m.start(20);
+		m.shutdown();
 
 		if (files != null && files.size() > 0) {
 			System.err.println("\n-= End transformation. Begin analyse =-");
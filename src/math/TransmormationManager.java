@@ -1,12 +1,24 @@
 package math;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 
+import javax.imageio.ImageIO;
+
+import math.compress.DeadzoneQuantizer;
 import math.compress.Quantization;
+import math.compress.utils.BinaryFileFormat;
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
 import math.dwt.DWT;
 import math.dwt.DWTCoefficients;
 import math.dwt.Matrix;
@@ -15,6 +27,7 @@ import math.dwt.wavelets.HaarAdaptive;
 import math.dwt.wavelets.HaarClassic;
 import math.image.ImageAdapter;
 import math.image.ImageObject;
+import math.image.StripImageReader;
 import math.utils.FileNamesConst;
 import math.utils.Log;
 
@@ -25,11 +38,101 @@ public class TransmormationManager {
 	private Class classWaveletTransform;
 	private String mOutputFormat = FileNamesConst.extBMP;
 	private boolean toCopyOriginImageToResults = true;
+	private ForkJoinPool mPool = null;
+	private boolean mInPlace = false;
+	private int mTileSize = 0;
+	private int mStripRows = 256;
+	private boolean mStatistics = false;
+	private int mRestartRows = 0;
+	private DeadzoneQuantizer mQuantizer = null;
+	private int mFileVersion = BinaryFileFormat.VERSION;
 
 	public void setOutputFormat(String mOutputFormat) {
 		this.mOutputFormat = mOutputFormat;
 	}
 
+	/**
+	 * @param parallelism threads of the pool shared by the decomposition and the coding of all the images, 
+	 * 1 is sequential. The pool runs until {@link #shutdown()}
+	 */
+	public void setParallelism(int parallelism) {
+		shutdown();
+		this.mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Stops the threads of {@link #setParallelism(int)}
+	 */
+	public void shutdown() {
+		if (mPool != null)
+			mPool.shutdown();
+		mPool = null;
+	}
+
+	/**
+	 * @param inPlace decompose every color into a single Mallat layout buffer 
+	 */
+	public void setInPlace(boolean inPlace) {
+		this.mInPlace = inPlace;
+	}
+
+	/**
+	 * @param tileSize side of cache-sized tiles decomposed through all the levels at once, 0 is untiled  
+	 */
+	public void setTileSize(int tileSize) {
+		this.mTileSize = tileSize;
+	}
+
+	/**
+	 * @param statistics log norms and transformations map statistics of the decomposition levels, 
+	 * gathered by the transform loop
+	 */
+	public void setStatistics(boolean statistics) {
+		this.mStatistics = statistics;
+	}
+
+	/**
+	 * @param stripRows rows read at once by the streaming encoder, rounded up to 2^levels
+	 */
+	public void setStripRows(int stripRows) {
+		this.mStripRows = stripRows;
+	}
+
+	/**
+	 * @param restartRows rows of the detail subbands coded as independent segments, 
+	 * decoded concurrently. 0 for no restart points
+	 */
+	public void setRestartRows(int restartRows) {
+		this.mRestartRows = restartRows;
+	}
+
+	/**
+	 * @param quantizer step and deadzone per level and subband of the detail subbands, 
+	 * null for the step of the quantization levels and DeadzoneQuantizer.DEFAULT_DEADZONE for all the bands
+	 */
+	public void setDeadzoneQuantizer(DeadzoneQuantizer quantizer) {
+		this.mQuantizer = quantizer;
+	}
+
+	/**
+	 * @param fileVersion format of the written coefs files, BinaryFileFormat.VERSION by default. 
+	 * Decoders read the version of the file
+	 */
+	public void setFileVersion(int fileVersion) {
+		this.mFileVersion = fileVersion;
+	}
+
+	/**
+	 * @return quantization of the encoders
+	 */
+	private Quantization createQuantization() {
+		final Quantization quantization = new Quantization(mQuantizLevels).setPool(mPool).setRestartRows(mRestartRows)
+				.setVersion(mFileVersion);
+		if (mQuantizer != null)
+			quantization.setDeadzoneQuantizer(mQuantizer);
+		return quantization;
+	}
+
 	TransmormationManager(int dLvls, int quantLvls, Class transformClass) {
 		mDecompLevels = dLvls;
 		mQuantizLevels = quantLvls;
@@ -52,6 +155,207 @@ public class TransmormationManager {
 		return true;
 	}
 
+	/**
+	 * Streaming encoding of the image, see {@link #encodeStreaming(String)}
+	 */
+	public boolean startStreaming(String imageFileName) {
+		File f = null;
+		if (!(f = new File(FileNamesConst.picsFolder + imageFileName)).exists())
+			return false;
+		File output = encodeStreaming(f.toString());
+		if (output != null && doReconstruct)
+			decodeStreaming(output, 0);
+		return output != null;
+	}
+
+	/**
+	 * Encodes the image strip by strip, for images that do not fit in heap.
+	 * Strips of mStripRows rows are read straight into float matrixes, 
+	 * decomposed and coded to the strips file before the next strip is read, 
+	 * so memory depends on the image width and strip height only.
+	 * Strip rows are a multiple of 2^levels: strip coefs are the rows of the whole image coefs.
+	 * Every strip is written by {@link Quantization#compress} as an independent container (a legacy stream
+	 * for the old versions) with its own chunk index and code tables, so a strip is decoded without the others.
+	 * @param filename	image file
+	 * @return strips file, null if failed
+	 */
+	private File encodeStreaming(String filename) {
+		Wavelet2DTransformation method = null;
+		try {
+			method = (Wavelet2DTransformation) classWaveletTransform.newInstance();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		final int align = 1 << mDecompLevels;
+		final int stripRows = (Math.max(mStripRows, align)+align-1)/align*align;
+		final String name = new File(filename).getName();
+		final File output = new File(FileNamesConst.resultsFolder, 
+				name.substring(0, name.lastIndexOf('.')) + method.getCaption() + FileNamesConst.extStripsBIN);
+		
+		StripImageReader reader = null;
+		BitOutputStream binOut = null;
+		try {
+			reader = new StripImageReader(filename);
+			Log.getInstance().log(Level.FINE, "Streaming image " + filename + " (w=" + reader.getWidth() + ", h="
+					+ reader.getHeight() + ") by " + stripRows + " rows to " + output.getName());
+			
+			BinaryFileFormat.init(mQuantizLevels);
+			final short sizePull = BinaryFileFormat.getInstanse().StripSizeValuePull;
+			DWT dwt = new DWT(method).setPool(mPool).setTileSize(mTileSize);
+			Quantization quantization = createQuantization();
+			FileOutputStream fos = new FileOutputStream(output);
+			BinaryFileFormat.writeHeader(fos, mFileVersion);
+			binOut = new BitOutputStream(fos.getChannel());
+			if (mFileVersion >= BinaryFileFormat.VERSION_CONTAINER) {
+				binOut.writeVarint(reader.getWidth());
+				binOut.writeVarint(reader.getHeight());
+				binOut.writeVarint(stripRows);
+			} else {
+				binOut.writeBits(reader.getWidth(), sizePull);
+				binOut.writeBits(reader.getHeight(), sizePull);
+				binOut.writeBits(stripRows, sizePull);
+			}
+			for (int row = 0; row < reader.getHeight(); row += stripRows) {
+				quantization.compress(
+						dwt.decompose(reader.readStrip(row, stripRows), false, false, mDecompLevels), 
+						binOut);
+			}
+			return output;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			try {
+				if (binOut != null) binOut.close();
+				if (reader != null) reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the strips file strip by strip into an image, for images that fit in heap
+	 * @param input strips file
+	 * @param level scale of the image (1/2^level), 0 for the full image. 
+	 * 			Previews are composed from the average coefs, finer subbands are not decoded
+	 * @return true if the image was written next to the strips file
+	 */
+	public boolean decodeStreaming(File input, int level) {
+		BitInputStream binInput = null;
+		try {
+			Wavelet2DTransformation method = (Wavelet2DTransformation) classWaveletTransform.newInstance();
+			DWT dwt = new DWT(method);
+			Quantization quantization = new Quantization(mQuantizLevels).setPool(mPool).setWavelet(method);
+			BinaryFileFormat.init(mQuantizLevels);
+			final short sizePull = BinaryFileFormat.getInstanse().StripSizeValuePull;
+			
+			final InputStream in = new BufferedInputStream(new FileInputStream(input));
+			final int version = BinaryFileFormat.readHeader(in);
+			quantization.setVersion(version);
+			binInput = new BitInputStream(in);
+			// the container records the wavelet of the coefs
+			final boolean isContainer = version >= BinaryFileFormat.VERSION_CONTAINER;
+			final int width = isContainer ? (int) binInput.readVarint() : binInput.readBits(sizePull);
+			final int height = isContainer ? (int) binInput.readVarint() : binInput.readBits(sizePull);
+			final int stripRows = isContainer ? (int) binInput.readVarint() : binInput.readBits(sizePull);
+			final int scale = 1 << Math.min(level, mDecompLevels);
+			final int scaledWidth = (width + scale - 1) / scale, scaledHeight = (height + scale - 1) / scale;
+			BufferedImage image = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
+			Matrix r, g, b;
+			for (int row = 0, scaledRow = 0; row < height; row += stripRows, scaledRow += stripRows / scale) {
+				if (level == 0) {
+					DWTCoefficients[] coefs = quantization.decompress(binInput);
+					if (isContainer) {
+						r = coefs[DWTCoefficients.RED].compose();
+						g = coefs[DWTCoefficients.GREEN].compose();
+						b = coefs[DWTCoefficients.BLUE].compose();
+					} else {
+						r = dwt.reconstruct(coefs[DWTCoefficients.RED]);
+						g = dwt.reconstruct(coefs[DWTCoefficients.GREEN]);
+						b = dwt.reconstruct(coefs[DWTCoefficients.BLUE]);
+					}
+				} else {
+					Matrix[] rgb = quantization.decompress(binInput, level);
+					r = rgb[DWTCoefficients.RED];
+					g = rgb[DWTCoefficients.GREEN];
+					b = rgb[DWTCoefficients.BLUE];
+				}
+				setRows(image, scaledRow, stripRows / scale, r, g, b);
+			}
+			String filename = input.getName();
+			filename = String.format("%1$sStreamQ%3$d%5$sL%2$d%4$s", 
+					filename.substring(0, filename.lastIndexOf('.')), level == 0 ? mDecompLevels : level, mQuantizLevels, mOutputFormat,
+					level == 0 ? "Reconst" : "Preview");
+			ImageIO.write(image, mOutputFormat.substring(1), new File(input.getParentFile(), filename));
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			try {
+				if (binInput != null) binInput.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Decodes the coefs file of {@link #start(String)} into an image. 
+	 * The wavelet of the manager composes the coefs of the files before the container, the container names its own
+	 * The file does not record the image size, odd sides of the image come out one pixel longer
+	 * @param input coefs file
+	 * @param level scale of the image (1/2^level), 0 for the full image. 
+	 * 			Previews are composed from the average coefs, finer subbands are not decoded
+	 * @return true if the image was written next to the coefs file
+	 */
+	public boolean decode(File input, int level) {
+		BitInputStream binInput = null;
+		try {
+			Wavelet2DTransformation method = (Wavelet2DTransformation) classWaveletTransform.newInstance();
+			Quantization quantization = new Quantization(mQuantizLevels).setPool(mPool).setWavelet(method);
+			BinaryFileFormat.init(mQuantizLevels);
+
+			final InputStream in = new BufferedInputStream(new FileInputStream(input));
+			quantization.setVersion(BinaryFileFormat.readHeader(in));
+			binInput = new BitInputStream(in);
+			Matrix[] rgb = quantization.decompress(binInput, level);
+			Matrix r = rgb[DWTCoefficients.RED];
+			BufferedImage image = new BufferedImage(r.getColumnsCount(), r.getRowsCount(), BufferedImage.TYPE_INT_RGB);
+			setRows(image, 0, r.getRowsCount(), r, rgb[DWTCoefficients.GREEN], rgb[DWTCoefficients.BLUE]);
+			String filename = input.getName();
+			filename = String.format("%1$sQ%3$d%5$sL%2$d%4$s", 
+					filename.substring(0, filename.lastIndexOf('.')), level == 0 ? mDecompLevels : level, mQuantizLevels, mOutputFormat,
+					level == 0 ? "Reconst" : "Preview");
+			ImageIO.write(image, mOutputFormat.substring(1), new File(input.getParentFile(), filename));
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			try {
+				if (binInput != null) binInput.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows of the color matrixes to the image rows from the given one, the rows past the image are dropped
+	 */
+	private static void setRows(BufferedImage image, int fromRow, int rows, Matrix r, Matrix g, Matrix b) {
+		for (int i = 0; i < rows && fromRow + i < image.getHeight(); i++)
+			for (int j = 0; j < image.getWidth(); j++)
+				image.setRGB(j, fromRow + i, toByte(r.get(i, j)) << 16 | toByte(g.get(i, j)) << 8 | toByte(b.get(i, j)));
+	}
+
+	private static int toByte(float value) {
+		return Math.min(255, Math.abs((int) value));
+	}
+
 	/**
 	 * Launch transmormation(s) Chooses files to be processed
 	 * @param filesCount 
@@ -146,7 +450,7 @@ public class TransmormationManager {
 		final String imageFilename = imageData.getFilename() + method.getCaption();
 		Log.getInstance().log(Level.INFO,
 				"\n -=Quantization=-  [" + mQuantizLevels + " levels]");
-		Quantization mQuantization = new Quantization(mQuantizLevels);
+		Quantization mQuantization = createQuantization();
 		DWTCoefficients decodedCoefs[] = mQuantization.process(dwtCoefs, imageFilename);
 			
 		if (doReconstruct)
@@ -173,18 +477,24 @@ public class TransmormationManager {
 	 */
 	private DWTCoefficients[] decomposeImage(boolean doLogCoefs, ImageObject imageData, Wavelet2DTransformation transform) {
 		// start Haar decomposition
-		DWT dwt = new DWT(transform);
+		// the statistics histograms are quantized the way the encoder does
+		DWT dwt = new DWT(transform).setPool(mPool).setInPlace(mInPlace).setTileSize(mTileSize)
+				.setStatistics(mStatistics, mStatistics ? createQuantization().getDeadzoneQuantizer() : null);
 		Log.getInstance().log(
 				Level.FINE,
 				"\n" + dwt.getTranformation().getCaption()
 						+ ": \n\tHor\t\tVer\t\tDiag\t\t\tAverage");
 		// System.out.println(dwt.getTranformation().getCaption()+": \n\tHor\t\tVer\t\tDiag\t\t\tAverage");
+		// room to pad the in-place buffers without copying
+		final int capacity = mInPlace ? 
+				DWT.getPyramidLength(imageData.pixelsR.length, imageData.pixelsR[0].length, mDecompLevels) : 0;
 		DWTCoefficients[] coefs = dwt.decompose(
 				new Matrix[] {
-					new Matrix(imageData.pixelsR), 
-					new Matrix(imageData.pixelsG),
-					new Matrix(imageData.pixelsB)}, 
-					true, doLogCoefs, mDecompLevels);
+					new Matrix(imageData.pixelsR, capacity), 
+					new Matrix(imageData.pixelsG, capacity),
+					new Matrix(imageData.pixelsB, capacity)}, 
+					// the norms of the log: separate passes if they are not gathered by the statistics
+					Log.getInstance().isLoggable(Level.FINE), doLogCoefs, mDecompLevels);
 		return coefs;
 	}
 
@@ -0,0 +1,184 @@
+package math.compress;
+
+import java.io.IOException;
+
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
+import math.dwt.DWTCoefficients;
+import math.dwt.Wavelet2DTransformation;
+import math.dwt.wavelets.HaarAdaptive;
+import math.dwt.wavelets.HaarClassic;
+import math.dwt.wavelets.HaarDiagonal;
+import math.dwt.wavelets.HaarHorizotal;
+import math.dwt.wavelets.HaarVertical;
+
+/**
+ * Header of the coefs chunks of the container (BinaryFileFormat.VERSION_CONTAINER):
+ * the wavelet, levels, qLEVELS, channels and the byte length of every chunk.
+ * Chunks of a channel are the ma of the deepest level, then mv, mh, md and the map per level, the deepest level first.
+ * Offsets are counted from the first chunk, so any chunk can be read without the ones before it.
+ */
+public class ChunkIndex {
+	private final Wavelet2DTransformation wavelet;
+	private final int levels, quantizationLevels, channels;
+	/**
+	 * Offset per chunk and the end of the last one, null if the lengths are not recorded
+	 */
+	private final long[] offsets;
+
+	/**
+	 * @param lengths	byte length per chunk, null for the layout of the chunks only, it can not be written
+	 */
+	public ChunkIndex(Wavelet2DTransformation wavelet, int levels, int quantizationLevels, int channels, long[] lengths) {
+		this.wavelet = wavelet;
+		this.levels = levels;
+		this.quantizationLevels = quantizationLevels;
+		this.channels = channels;
+		if (lengths != null) {
+			offsets = new long[lengths.length + 1];
+			for (int i = 0; i < lengths.length; i++)
+				offsets[i + 1] = offsets[i] + lengths[i];
+		} else {
+			offsets = null;
+		}
+	}
+
+	public Wavelet2DTransformation getWavelet() {
+		return wavelet;
+	}
+	public int getLevelsCount() {
+		return levels;
+	}
+	public int getQuantizationLevels() {
+		return quantizationLevels;
+	}
+	public int getChannelsCount() {
+		return channels;
+	}
+
+	public int getChunksCount() {
+		return channels * getChannelChunksCount(levels);
+	}
+
+	/**
+	 * @return chunks of a channel decomposed into the levels
+	 */
+	public static int getChannelChunksCount(int levels) {
+		return 1 + 4 * levels;
+	}
+
+	/**
+	 * @param level		1 for the top level, up to {@link #getLevelsCount()}
+	 * @param subband	DWTCoefficients.MA (of the deepest level only), MV, MH, MD or MAP
+	 * @return chunk number
+	 */
+	public int getChunk(int channel, int level, int subband) {
+		final int base = channel * getChannelChunksCount(levels);
+		if (subband == DWTCoefficients.MA) {
+			if (level != levels)
+				throw new IllegalArgumentException("Only the deepest level ma is stored, not the level " + level);
+			return base;
+		}
+		return base + 1 + (levels - level) * 4 + subband - DWTCoefficients.MV;
+	}
+
+	/**
+	 * @return DWTCoefficients.MA, MV, MH, MD or MAP
+	 */
+	public int getSubband(int chunk) {
+		final int i = chunk % getChannelChunksCount(levels);
+		return i == 0 ? DWTCoefficients.MA : DWTCoefficients.MV + (i - 1) % 4;
+	}
+	/**
+	 * @return 1 for the top level
+	 */
+	public int getLevel(int chunk) {
+		final int i = chunk % getChannelChunksCount(levels);
+		return i == 0 ? levels : levels - (i - 1) / 4;
+	}
+	public int getChannel(int chunk) {
+		return chunk / getChannelChunksCount(levels);
+	}
+
+	/**
+	 * @return bytes from the first chunk
+	 */
+	public long getOffset(int chunk) {
+		return offsets[chunk];
+	}
+	public long getLength(int chunk) {
+		return offsets[chunk + 1] - offsets[chunk];
+	}
+	/**
+	 * @return bytes of all the chunks
+	 */
+	public long getChunksSize() {
+		return offsets[offsets.length - 1];
+	}
+
+	/**
+	 * @return bytes written by {@link #write(BitOutputStream)}
+	 */
+	public long getSize() throws IOException {
+		final int caption = wavelet.getCaption().getBytes("UTF-8").length;
+		long size = getVarintSize(caption) + caption + getVarintSize(levels) + getVarintSize(quantizationLevels)
+				+ getVarintSize(channels);
+		if (offsets != null)
+			for (int i = 0; i < offsets.length - 1; i++)
+				size += getVarintSize(getLength(i));
+		return size;
+	}
+
+	/**
+	 * Writes the header with the lengths
+	 */
+	public void write(BitOutputStream binOut) throws IOException {
+		final byte[] caption = wavelet.getCaption().getBytes("UTF-8");
+		binOut.align();
+		binOut.writeVarint(caption.length);
+		for (byte b : caption)
+			binOut.writeByte(b);
+		binOut.writeVarint(levels);
+		binOut.writeVarint(quantizationLevels);
+		binOut.writeVarint(channels);
+		if (offsets == null)
+			throw new IOException("Chunk lengths are unknown");
+		for (int i = 0; i < offsets.length - 1; i++)
+			binOut.writeVarint(getLength(i));
+	}
+
+	/**
+	 * Reads the header
+	 */
+	public static ChunkIndex read(BitInputStream binIn) throws IOException {
+		final byte[] caption = new byte[(int) binIn.readVarint()];
+		for (int i = 0; i < caption.length; i++)
+			caption[i] = (byte) binIn.readByte();
+		final Wavelet2DTransformation wavelet = getWavelet(new String(caption, "UTF-8"));
+		final int levels = (int) binIn.readVarint();
+		final int quantizationLevels = (int) binIn.readVarint();
+		final int channels = (int) binIn.readVarint();
+		final long[] lengths = new long[channels * getChannelChunksCount(levels)];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = binIn.readVarint();
+		return new ChunkIndex(wavelet, levels, quantizationLevels, channels, lengths);
+	}
+
+	private static Wavelet2DTransformation getWavelet(String caption) throws IOException {
+		for (Wavelet2DTransformation wavelet : new Wavelet2DTransformation[] { new HaarClassic(), new HaarVertical(),
+				new HaarHorizotal(), new HaarDiagonal(), new HaarAdaptive() })
+			if (wavelet.getCaption().equals(caption))
+				return wavelet;
+		throw new IOException("Unknown wavelet " + caption);
+	}
+
+	/**
+	 * @return bytes of the BitOutputStream.writeVarint() value
+	 */
+	public static int getVarintSize(long value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+}
@@ -0,0 +1,174 @@
+package math.compress;
+
+import java.util.Arrays;
+
+import math.dwt.DWTCoefficients;
+import math.dwt.Matrix;
+import math.dwt.SubbandStatistics;
+
+/**
+ * Deadzone scalar quantizer of the detail subbands with a step and a deadzone per level and subband
+ * (BinaryFileFormat.VERSION_CONTAINER). A coef c is quantized to q = sign(c) * (int) (|c| / step + 1 - deadzone / 2),
+ * |q| up to {@link #getMaxLevel(float)}, and restored to q * step: the zero bin is deadzone steps wide, the other bins are a step.
+ * The symbol of q is q + max level, the zero bin is the max level symbol.
+ * Steps are multiplied by precomputed reciprocals, {@link #quantize(Matrix, int, int, short[], int, int[])}
+ * writes the symbols and counts them in one pass.
+ * As a {@link SubbandStatistics.Quantizer} it counts the symbols of the coefs rows without writing them.
+ */
+public class DeadzoneQuantizer implements SubbandStatistics.Quantizer {
+	/**
+	 * Magnitude of the coefs, bigger ones are clamped
+	 */
+	public static final int MAX_VALUE = 256;
+	/**
+	 * Deadzone of the bands without their own one: the zero bin is 1.5 steps wide
+	 */
+	public static final float DEFAULT_DEADZONE = 1.5f;
+	private static final int MAX_LEVELS = 32;
+
+	private final float[][] steps = new float[MAX_LEVELS + 1][DWTCoefficients.MD + 1];
+	private final float[][] deadzones = new float[MAX_LEVELS + 1][DWTCoefficients.MD + 1];
+
+	/**
+	 * @param step	step of all the bands
+	 */
+	public DeadzoneQuantizer(float step) {
+		for (float[] level : steps)
+			Arrays.fill(level, step);
+		for (float[] level : deadzones)
+			Arrays.fill(level, DEFAULT_DEADZONE);
+	}
+
+	/**
+	 * @param level		1 for the top level
+	 * @param subband	DWTCoefficients.MV, MH or MD
+	 * @param step		quantization step, from 1
+	 */
+	public DeadzoneQuantizer setStep(int level, int subband, float step) {
+		checkBand(level, subband);
+		if (!(step >= 1) || Float.isInfinite(step))
+			throw new IllegalArgumentException("Step " + step + " is not a number from 1");
+		steps[level][subband] = step;
+		return this;
+	}
+
+	/**
+	 * Sets the step of the level subbands
+	 */
+	public DeadzoneQuantizer setStep(int level, float step) {
+		for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++)
+			setStep(level, subband, step);
+		return this;
+	}
+
+	/**
+	 * @param deadzone	width of the zero bin in steps, from 1 for the rounding to the nearest level up to 2
+	 */
+	public DeadzoneQuantizer setDeadzone(int level, int subband, float deadzone) {
+		checkBand(level, subband);
+		if (!(deadzone >= 1 && deadzone <= 2))
+			throw new IllegalArgumentException("Deadzone " + deadzone + " is out of [1, 2]");
+		deadzones[level][subband] = deadzone;
+		return this;
+	}
+
+	public float getStep(int level, int subband) {
+		checkBand(level, subband);
+		return steps[level][subband];
+	}
+
+	public float getDeadzone(int level, int subband) {
+		checkBand(level, subband);
+		return deadzones[level][subband];
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the level is out of [1, MAX_LEVELS] or the subband is not a detail one
+	 */
+	private static void checkBand(int level, int subband) {
+		if (level < 1 || level > MAX_LEVELS)
+			throw new IllegalArgumentException("Level " + level + " is out of [1, " + MAX_LEVELS + "]");
+		if (subband < DWTCoefficients.MV || subband > DWTCoefficients.MD)
+			throw new IllegalArgumentException("Subband " + subband + " is not a detail subband");
+	}
+
+	/**
+	 * @return the biggest |q| of the step
+	 */
+	public static int getMaxLevel(float step) {
+		return (int) Math.ceil(MAX_VALUE / step);
+	}
+
+	/**
+	 * @return restored value per symbol of the step and the max level, 2 * maxLevel + 1 symbols
+	 */
+	public static float[] getSymbolValues(float step, int maxLevel) {
+		final float[] values = new float[2 * maxLevel + 1];
+		for (int s = 0; s < values.length; s++)
+			values[s] = (s - maxLevel) * step;
+		return values;
+	}
+
+	/**
+	 * Quantizes the subband row by row into the symbols and counts them.
+	 * The symbols of a row are computed by a branchless loop (the sign is taken from the float bits), 
+	 * then counted while the row is in cache
+	 * @param offset	position of the first value in the symbols
+	 * @param histogram	receives the count per symbol, 2 * max level + 1 symbols
+	 */
+	public void quantize(Matrix m, int level, int subband, short[] symbols, int offset, int[] histogram) {
+		checkBand(level, subband);
+		final float step = steps[level][subband];
+		final float reciprocal = 1 / step;
+		final float rounding = 1 - deadzones[level][subband] / 2;
+		final int maxLevel = getMaxLevel(step);
+		final float max = maxLevel;
+		final int columns = m.getColumnsCount();
+		final int columnStride = m.getColumnStride();
+		final float[] data = m.getData();
+		float v, x;
+		int k, q, sign, n = offset;
+
+		for (int i = 0; i < m.getRowsCount(); i++, n += columns) {
+			k = m.index(i, 0);
+			for (int j = 0; j < columns; j++, k += columnStride) {
+				v = data[k];
+				x = Math.abs(v) * reciprocal + rounding;
+				// a select rather than Math.min(), NaN gives 0 as well
+				q = (int) (max < x ? max : x);
+				// -1 for negative values: (q ^ sign) - sign is -q
+				sign = Float.floatToRawIntBits(v) >> 31;
+				symbols[n + j] = (short) (maxLevel + ((q ^ sign) - sign));
+			}
+			for (int j = n; j < n + columns; j++)
+				histogram[symbols[j]]++;
+		}
+	}
+
+	@Override
+	public int getSymbolsCount(int level, int subband) {
+		return 2 * getMaxLevel(getStep(level, subband)) + 1;
+	}
+
+	/**
+	 * Counts the symbols {@link #quantize(Matrix, int, int, short[], int, int[])} writes for the values
+	 */
+	@Override
+	public void count(float[] data, int index, int count, int stride, int level, int subband, int[] histogram) {
+		checkBand(level, subband);
+		final float step = steps[level][subband];
+		final float reciprocal = 1 / step;
+		final float rounding = 1 - deadzones[level][subband] / 2;
+		final int maxLevel = getMaxLevel(step);
+		final float max = maxLevel;
+		float v, x;
+		int q, sign;
+		for (int j = 0; j < count; j++, index += stride) {
+			v = data[index];
+			x = Math.abs(v) * reciprocal + rounding;
+			q = (int) (max < x ? max : x);
+			sign = Float.floatToRawIntBits(v) >> 31;
+			histogram[maxLevel + ((q ^ sign) - sign)]++;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package math.compress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Entropy coder of the symbols of a detail subband chunk (BinaryFileFormat.VERSION_CONTAINER):
+ * the quantized values, or the quantization levels and the zero run symbols of {@link ZeroRuns}.
+ * The coder id is written before the coded symbols, Quantization chooses the coder per subband:
+ * the Huffman code of Quantization, or a coder of {@link Quantization#setEntropyCoders(EntropyCoder...)}
+ * if it is smaller. Coders are stateless, an instance may be shared between threads
+ */
+public interface EntropyCoder {
+	/**
+	 * Id of the Huffman code of Quantization
+	 */
+	public static final int HUFFMAN = 0;
+
+	/**
+	 * @return id of the coder in the chunks, not {@link #HUFFMAN}
+	 */
+	public int getId();
+
+	/**
+	 * @param frequencies	histogram of the symbols of the subband
+	 * @return estimated size of the coded subband in bits, tables included.
+	 * Long.MAX_VALUE if the coder can not code the histogram
+	 */
+	public long estimateBits(int [] frequencies);
+
+	/**
+	 * Codes the symbols of the subband
+	 * @param symbols		symbols in the order of the subband values, row by row
+	 * @param count			symbols count
+	 * @param frequencies	histogram of the symbols, its length is the alphabet size
+	 * @return coded bytes, tables included
+	 */
+	public byte [] encode(short [] symbols, int count, int [] frequencies) throws IOException;
+
+	/**
+	 * Decodes the symbols written by {@link #encode(short[], int, int[])} into the subband values
+	 * @param coded			coded bytes, from the position to the limit
+	 * @param symbolValues	restored value per symbol, its length is the alphabet size
+	 * @param symbolRuns	values count per symbol, null for one value each
+	 * @param output		receives the values row by row, the symbols are decoded until it is filled
+	 */
+	public void decode(ByteBuffer coded, float [] symbolValues, int [] symbolRuns, float [] output) throws IOException;
+}
@@ -1,72 +1,53 @@
 package math.compress;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.logging.Level;
-
-import math.utils.Log;
-
 public class FreqStatistics {
-	private ArrayList<StatisticsEntry> items;
-	private StatisticsEntry [] items2;
+	/**
+	 * Frequency per value
+	 */
+	private int [] frequencies;
 	public FreqStatistics(int size){
-		items = new ArrayList<StatisticsEntry>(size);
-		items2 = new StatisticsEntry[size];
+		frequencies = new int[size];
+	}
+	/**
+	 * Statistics of the counted frequency per value, the array is not copied
+	 */
+	public FreqStatistics(int [] frequencies){
+		this.frequencies = frequencies;
 	}
 	
-	private boolean isBlocked = false;
 	public void push(int value){
-		assert !isBlocked;
-//		if (items.get(value)==null) items.add(value, new StatisticsEntry(value));
-//		items.get(value).inc();s
-		
-		if (items2[value] == null) items2[value] = new StatisticsEntry(value);
-		items2[value].inc();
+		frequencies[value]++;
 	}
-	public void sort(){
-		isBlocked = true;
-		
-		for (StatisticsEntry entry:items2){
-			if (entry!=null) items.add(entry);
-		}
-		
-		//clean null items
-//		items.removeAll(Collections.singletonList(null));
-//		System.out.println("FreqStatistics, sort(); remove null, items size = "+items.size());
-
-		Collections.sort(items);
-		Log.getInstance().log(Level.FINER, "FreqStatistics, sort(); Sorted items size = "+items.size());
+	/**
+	 * Adds the frequences of the statistics of the same values
+	 */
+	public void add(FreqStatistics other){
+		for (int value = 0; value < frequencies.length; value++)
+			frequencies[value] += other.frequencies[value];
 	}
-	
-	public StatisticsTreeEntry buildTree(){
-		return StatisticsTreeEntry.buildTree(items);
-//		StatisticsTreeEntry treeRoot = null, minLeaf1, minLeaf2;
-//		StatisticsEntry item1, item2;
-//		while (items.size() > 1){
-//			item1 = items.remove(0);
-//			item2 = items.remove(0);
-//			minLeaf1 = (item1 instanceof StatisticsTreeEntry)?(StatisticsTreeEntry) item1:new StatisticsTreeEntry(item1);
-//			minLeaf2 = (item2 instanceof StatisticsTreeEntry)?(StatisticsTreeEntry) item2:new StatisticsTreeEntry(item2);
-//			treeRoot = new StatisticsTreeEntry(minLeaf1, minLeaf2);
-////			System.out.println(items.size()+" items, leaf1="+minLeaf1+", leaf2="+minLeaf2+", node="+treeRoot);
-//			items.add(treeRoot);
-//			Collections.sort(items); 
-//		}
-//		items.clear();
-//		return treeRoot;
+	/**
+	 * @return how many times the value was pushed
+	 */
+	public int getFrequency(int value){
+		return frequencies[value];
+	}
+	/**
+	 * @return frequency per value
+	 */
+	public int [] getFrequencies(){
+		return frequencies;
 	}
 	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		for (StatisticsEntry entry:items){
-			sb.append(entry!=null?entry.toString()+", ":"null, ");
+		for (int value = 0; value < frequencies.length; value++){
+			if (frequencies[value] > 0) sb.append(value+"("+frequencies[value]+"), ");
 		}
 		return sb.toString();
 	}
 	
 	public void free(){
-		items = null; 
-		items2 = null;
+		frequencies = null;
 	}
 }
@@ -0,0 +1,160 @@
+package math.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IllegalFormatFlagsException;
+
+import math.compress.utils.BitInputStream;
+
+/**
+ * Lookup table Huffman decoder.
+ * The primary table is indexed by the next PRIMARY_BITS bits of the code stream and gives the value
+ * and the length of a short code at once; longer codes point to secondary tables indexed by the following bits.
+ * Works for any prefix code, canonical or not. A leaf may stand for a run of equal values, see {@link ZeroRuns}.
+ *
+ * Table entry: [payload][run flag (1 bit)][pointer flag (1 bit)][bits (5 bits)],
+ * payload is the value index and bits its code length in the table for leafs, the run flag marks leafs of several values,
+ * payload is the secondary table offset and bits its index size for pointers.
+ */
+public class HuffmanDecoder {
+	public static final int PRIMARY_BITS = 10;
+	public static final int SECONDARY_BITS = 8;
+
+	private static final int POINTER = 0x20;
+	private static final int RUN = 0x40;
+	private static final int BITS_MASK = 0x1F;
+	private static final int PAYLOAD_SHIFT = 7;
+	private static final int EMPTY = -1;
+
+	private int [] table = new int[0];
+	private int size = 0;
+	private final int primaryBits;
+	private final float [] values;
+	private final int [] runs;
+
+	/**
+	 * @param codes		code per leaf, the first bit is the highest one
+	 * @param lengths	code length per leaf
+	 * @param values	decoded value per leaf
+	 */
+	public HuffmanDecoder(int [] codes, byte [] lengths, float [] values) {
+		this(codes, lengths, values, null);
+	}
+
+	/**
+	 * @param runs		decoded values count per leaf, null for one value each
+	 */
+	public HuffmanDecoder(int [] codes, byte [] lengths, float [] values, int [] runs) {
+		this.values = values;
+		this.runs = runs;
+		int maxLength = 1;
+		for (byte l : lengths)
+			maxLength = Math.max(maxLength, l);
+		primaryBits = Math.min(PRIMARY_BITS, maxLength);
+
+		final int [] leafs = new int[codes.length];
+		for (int i = 0; i < leafs.length; i++)
+			leafs[i] = i;
+		buildTable(codes, lengths, leafs, leafs.length, 0, primaryBits);
+	}
+
+	/**
+	 * Fills a table of 2^bits entries for the leafs with the same first consumed bits of codes
+	 * @return offset of the table
+	 */
+	private int buildTable(int [] codes, byte [] lengths, int [] leafs, int count, int consumed, int bits) {
+		final int base = allocate(1 << bits);
+		int rest, index, leaf;
+		//leafs of every secondary table
+		int [][] groups = null;
+		int [] groupSizes = null;
+		for (int k = 0; k < count; k++) {
+			leaf = leafs[k];
+			rest = lengths[leaf] - consumed;
+			if (rest <= bits) {
+				index = (codes[leaf] & ((1 << rest) - 1)) << (bits - rest);
+				for (int i = 0; i < 1 << (bits - rest); i++)
+					table[base + index + i] = (leaf << PAYLOAD_SHIFT) | (runs != null && runs[leaf] != 1 ? RUN : 0) | rest;
+			} else {
+				if (groups == null) {
+					groups = new int[1 << bits][];
+					groupSizes = new int[1 << bits];
+				}
+				index = (codes[leaf] >>> (rest - bits)) & ((1 << bits) - 1);
+				if (groups[index] == null)
+					groups[index] = new int[count];
+				groups[index][groupSizes[index]++] = leaf;
+			}
+		}
+		if (groups != null) {
+			int maxRest, sub;
+			for (index = 0; index < groups.length; index++) {
+				if (groups[index] == null) continue;
+				maxRest = 0;
+				for (int k = 0; k < groupSizes[index]; k++)
+					maxRest = Math.max(maxRest, lengths[groups[index][k]] - consumed - bits);
+				sub = Math.min(SECONDARY_BITS, maxRest);
+				final int offset = buildTable(codes, lengths, groups[index], groupSizes[index], consumed + bits, sub);
+				table[base + index] = (offset << PAYLOAD_SHIFT) | POINTER | sub;
+			}
+		}
+		return base;
+	}
+
+	private int allocate(int entries) {
+		if (size + entries > table.length) {
+			final int [] t = new int[Math.max(table.length * 2, size + entries)];
+			System.arraycopy(table, 0, t, 0, size);
+			table = t;
+		}
+		Arrays.fill(table, size, size + entries, EMPTY);
+		size += entries;
+		return size - entries;
+	}
+
+	/**
+	 * Decodes up to count values of bitsCount code bits of the stream, 
+	 * the stream is left after the code bits. Stops when the code bits are over
+	 * @param binIn		code bits
+	 * @param bitsCount	code bits count
+	 * @param output	decoded values buffer
+	 * @return decoded values count
+	 */
+	public int decode(BitInputStream binIn, long bitsCount, float [] output, int offset, int count) throws IOException {
+		int entry, bits, base, leaf, run;
+		long consumed = 0;
+		int i;
+		for (i = offset; i < offset + count && consumed < bitsCount; ) {
+			base = 0;
+			bits = primaryBits;
+			while (true) {
+				entry = table[base + binIn.peekBits(bits)];
+				if (entry == EMPTY)
+					throw new IllegalFormatFlagsException("The bits consequence not found in Hafmman tree at bit " + consumed);
+				if ((entry & POINTER) == 0) {
+					binIn.skipBits(entry & BITS_MASK);
+					consumed += entry & BITS_MASK;
+					leaf = entry >>> PAYLOAD_SHIFT;
+					if ((entry & RUN) == 0) {
+						output[i++] = values[leaf];
+					} else {
+						run = runs[leaf];
+						if (i + run > offset + count)
+							throw new IllegalFormatFlagsException("Run of " + run + " values past " + count + " values");
+						Arrays.fill(output, i, i + run, values[leaf]);
+						i += run;
+					}
+					break;
+				}
+				binIn.skipBits(bits);
+				consumed += bits;
+				base = entry >>> PAYLOAD_SHIFT;
+				bits = entry & BITS_MASK;
+			}
+		}
+		if (consumed > bitsCount)
+			throw new IllegalFormatFlagsException("Huffman code is " + bitsCount + " bits, " + consumed + " bits decoded");
+		binIn.skipBits(bitsCount - consumed);
+		return i - offset;
+	}
+}
@@ -0,0 +1,348 @@
+package math.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import math.compress.utils.BinaryFileFormat;
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
+
+/**
+ * Canonical Huffman code of the quantized values, code and length arrays are indexed by value.
+ * Lengths are the depths of the Huffman tree leafs, codes are assigned in canonical order
+ * (by length, then by value), so the code is defined by the lengths only.
+ */
+public class HuffmanTable {
+	/**
+	 * Longest code the table holds, codes are written by one BitOutputStream.writeBits() call
+	 */
+	public static final int MAX_CODE_LENGTH = 32;
+
+	private final int [] code;
+	private final byte [] length;
+	/**
+	 * Values of the used codes in canonical order
+	 */
+	private final int [] values;
+
+	/**
+	 * @param lengths code length per value, 0 for unused values
+	 */
+	public HuffmanTable(byte [] lengths) {
+		length = lengths;
+		code = new int[lengths.length];
+
+		int count = 0;
+		for (int v = 0; v < lengths.length; v++) {
+			if (lengths[v] > MAX_CODE_LENGTH)
+				throw new IllegalArgumentException("Huffman code of " + lengths[v] + " bits is longer than " + MAX_CODE_LENGTH);
+			if (lengths[v] > 0) count++;
+		}
+		values = new int[count];
+		count = 0;
+		for (int l = 1; l <= MAX_CODE_LENGTH; l++)
+			for (int v = 0; v < lengths.length; v++)
+				if (lengths[v] == l) values[count++] = v;
+
+		long next = 0;
+		int prevLength = 0;
+		for (int v : values) {
+			next <<= length[v] - prevLength;
+			prevLength = length[v];
+			code[v] = (int) next++;
+		}
+	}
+
+	/**
+	 * Huffman code of the gathered frequences
+	 * @param maxLength	codes length limit, up to {@link #MAX_CODE_LENGTH}
+	 */
+	public static HuffmanTable build(FreqStatistics freqStat, int maxLength) {
+		return new HuffmanTable(codeLengths(freqStat.getFrequencies(), maxLength));
+	}
+
+	/**
+	 * Code lengths of the Huffman code (two-queue builder on the sorted frequences), 
+	 * limited by the package-merge algorithm if the Huffman code is longer than maxLength.
+	 * A single used value gets the code of 1 bit, and an unused sibling if the alphabet has more values
+	 * @param frequencies	frequency per value
+	 * @param maxLength		codes length limit, up to {@link #MAX_CODE_LENGTH}
+	 * @return length per value, 0 for unused values
+	 */
+	public static byte [] codeLengths(int [] frequencies, int maxLength) {
+		final byte [] lengths = new byte[frequencies.length];
+		int n = 0;
+		for (int f : frequencies)
+			if (f > 0) n++;
+		if (n == 0)
+			return lengths;
+		if (n == 1) {
+			for (int v = 0; v < frequencies.length; v++)
+				if (frequencies[v] > 0) {
+					lengths[v] = 1;
+					if (frequencies.length > 1)
+						lengths[v == 0 ? 1 : 0] = 1;
+				}
+			return lengths;
+		}
+
+		//used values sorted by frequency, then by value: (frequency << 32 | value)
+		final long [] sorted = new long[n];
+		n = 0;
+		for (int v = 0; v < frequencies.length; v++)
+			if (frequencies[v] > 0) sorted[n++] = ((long) frequencies[v] << 32) | v;
+		Arrays.sort(sorted);
+		final long [] weights = new long[n];
+		for (int i = 0; i < n; i++)
+			weights[i] = sorted[i] >>> 32;
+
+		//two queues: leafs [0, n) and nodes [n, 2n-1) created in nondecreasing weight order
+		final long [] nodeWeights = new long[n - 1];
+		final int [] parents = new int[2 * n - 1];
+		int leaf = 0, node = 0, child;
+		for (int k = 0; k < n - 1; k++) {
+			for (int c = 0; c < 2; c++) {
+				if (leaf < n && (node >= k || weights[leaf] <= nodeWeights[node])) {
+					child = leaf;
+					nodeWeights[k] += weights[leaf++];
+				} else {
+					child = n + node;
+					nodeWeights[k] += nodeWeights[node++];
+				}
+				parents[child] = n + k;
+			}
+		}
+		//depths from the root, the last node, down
+		final int [] depths = new int[2 * n - 1];
+		int max = 0;
+		for (int i = 2 * n - 3; i >= 0; i--) {
+			depths[i] = depths[parents[i]] + 1;
+			if (i < n) max = Math.max(max, depths[i]);
+		}
+
+		maxLength = Math.min(maxLength, MAX_CODE_LENGTH);
+		if (max > maxLength) {
+			packageMerge(weights, Math.max(maxLength, 32 - Integer.numberOfLeadingZeros(n - 1)), depths);
+		}
+		for (int i = 0; i < n; i++)
+			lengths[(int) sorted[i]] = (byte) depths[i];
+		return lengths;
+	}
+
+	/**
+	 * Optimal code lengths not longer than limit (package-merge)
+	 * @param weights	sorted weights
+	 * @param limit		2^limit is not less than the weights count
+	 * @param lengths	receives the length per weight
+	 */
+	private static void packageMerge(long [] weights, int limit, int [] lengths) {
+		final int n = weights.length;
+		//items of a list: leaf index, or -(k+1) for the package of the items 2k, 2k+1 of the previous list
+		final int [][] items = new int[limit][];
+		long [] previous = weights.clone();
+		items[0] = new int[n];
+		for (int i = 0; i < n; i++)
+			items[0][i] = i;
+		for (int l = 1; l < limit; l++) {
+			final int packages = previous.length / 2;
+			final long [] current = new long[n + packages];
+			items[l] = new int[n + packages];
+			int leaf = 0, p = 0;
+			for (int i = 0; i < current.length; i++) {
+				if (p >= packages || (leaf < n && weights[leaf] <= previous[2 * p] + previous[2 * p + 1])) {
+					current[i] = weights[leaf];
+					items[l][i] = leaf++;
+				} else {
+					current[i] = previous[2 * p] + previous[2 * p + 1];
+					items[l][i] = -(++p);
+				}
+			}
+			previous = current;
+		}
+		Arrays.fill(lengths, 0, n, 0);
+		for (int i = 0; i < 2 * n - 2; i++)
+			countLeafs(items, limit - 1, i, lengths);
+	}
+
+	private static void countLeafs(int [][] items, int level, int index, int [] lengths) {
+		final int item = items[level][index];
+		if (item >= 0) {
+			lengths[item]++;
+		} else {
+			countLeafs(items, level - 1, 2 * (-item - 1), lengths);
+			countLeafs(items, level - 1, 2 * (-item - 1) + 1, lengths);
+		}
+	}
+
+	public int getCode(int value) {
+		return code[value];
+	}
+	public int getLength(int value) {
+		return length[value];
+	}
+
+	/**
+	 * @return length of the values coded by the table
+	 */
+	public long getBitsCount(FreqStatistics freqStat) {
+		long bits = 0;
+		for (int v : values)
+			bits += (long) freqStat.getFrequency(v) * length[v];
+		return bits;
+	}
+
+	/**
+	 * Writes the tree of the codes in the StatisticsTreeEntry format,
+	 * read by StatisticsTreeEntry.readTree(): 1 0 [zero branch] 1 [one branch] for nodes, 0 [value] for leafs
+	 */
+	public void writeTree(BitOutputStream binOut) throws IOException {
+		writeNode(binOut, 0, values.length, 0);
+	}
+
+	/**
+	 * @param from, to	values having the same first depth bits of codes, in canonical order
+	 */
+	private void writeNode(BitOutputStream binOut, int from, int to, int depth) throws IOException {
+		if (from == to) {
+			//unused branch of a single code, or the root of an empty table
+			binOut.writeBit(0);
+			binOut.writeBits(0, BinaryFileFormat.getInstanse().HTreeValuePull);
+			return;
+		}
+		if (to - from == 1 && length[values[from]] == depth) {
+			binOut.writeBit(0);
+			binOut.writeBits(values[from], BinaryFileFormat.getInstanse().HTreeValuePull);
+			return;
+		}
+		//canonical codes go in lexicographic order: the one branch starts with the first set bit
+		int split = from;
+		while (split < to && ((code[values[split]] >>> (length[values[split]] - depth - 1)) & 1) == 0)
+			split++;
+		binOut.writeBit(1);
+		binOut.writeBit(0);
+		writeNode(binOut, from, split, depth + 1);
+		binOut.writeBit(1);
+		writeNode(binOut, split, to, depth + 1);
+	}
+
+	/**
+	 * Writes the code lengths of all the values (BinaryFileFormat.VERSION_CODE_LENGTHS), 
+	 * runs of unused values are written by their counts
+	 */
+	public void writeLengths(BitOutputStream binOut) throws IOException {
+		final short lengthPull = BinaryFileFormat.getInstanse().CodeLengthPull;
+		final short runPull = BinaryFileFormat.getInstanse().ZeroRunPull;
+		final int maxRun = 1 << runPull;
+		int run;
+		for (int v = 0; v < length.length; ) {
+			if (length[v] > 0) {
+				binOut.writeBit(1);
+				binOut.writeBits(length[v] - 1, lengthPull);
+				v++;
+			} else {
+				for (run = 1; run < maxRun && v + run < length.length && length[v + run] == 0; run++);
+				binOut.writeBit(0);
+				binOut.writeBits(run - 1, runPull);
+				v += run;
+			}
+		}
+	}
+
+	/**
+	 * Reads the table written by {@link #writeLengths(BitOutputStream)}
+	 * @param size values count
+	 */
+	public static HuffmanTable readLengths(BitInputStream binIn, int size) throws IOException {
+		final short lengthPull = BinaryFileFormat.getInstanse().CodeLengthPull;
+		final short runPull = BinaryFileFormat.getInstanse().ZeroRunPull;
+		final byte [] lengths = new byte[size];
+		for (int v = 0; v < size; ) {
+			if (binIn.readBit() == 1)
+				lengths[v++] = (byte) (binIn.readBits(lengthPull) + 1);
+			else
+				v += binIn.readBits(runPull) + 1;
+		}
+		return new HuffmanTable(lengths);
+	}
+
+	/**
+	 * Moves the stream past the table written by {@link #writeLengths(BitOutputStream)}
+	 */
+	public static void skipLengths(BitInputStream binIn, int size) throws IOException {
+		final short lengthPull = BinaryFileFormat.getInstanse().CodeLengthPull;
+		final short runPull = BinaryFileFormat.getInstanse().ZeroRunPull;
+		for (int v = 0; v < size; ) {
+			if (binIn.readBit() == 1) {
+				binIn.skipBits(lengthPull);
+				v++;
+			} else
+				v += binIn.readBits(runPull) + 1;
+		}
+	}
+
+	/**
+	 * @param symbolValues	decoded value per value of the table
+	 */
+	public HuffmanDecoder getDecoder(float [] symbolValues) {
+		return getDecoder(symbolValues, null);
+	}
+
+	/**
+	 * @param symbolRuns	decoded values count per value of the table, null for one value each
+	 */
+	public HuffmanDecoder getDecoder(float [] symbolValues, int [] symbolRuns) {
+		final float [] leafValues = new float[values.length];
+		final int [] leafRuns = symbolRuns != null ? new int[values.length] : null;
+		final int [] codes = new int[values.length];
+		final byte [] lengths = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			leafValues[i] = symbolValues[values[i]];
+			if (leafRuns != null)
+				leafRuns[i] = symbolRuns[values[i]];
+			codes[i] = code[values[i]];
+			lengths[i] = length[values[i]];
+		}
+		return new HuffmanDecoder(codes, lengths, leafValues, leafRuns);
+	}
+
+	/**
+	 * @return bits written by {@link #writeLengths(BitOutputStream)}
+	 */
+	public int getLengthsBitSize() {
+		final int lengthBits = 1 + BinaryFileFormat.getInstanse().CodeLengthPull;
+		final int runBits = 1 + BinaryFileFormat.getInstanse().ZeroRunPull;
+		final int maxRun = 1 << BinaryFileFormat.getInstanse().ZeroRunPull;
+		int bits = 0, run;
+		for (int v = 0; v < length.length; ) {
+			if (length[v] > 0) {
+				bits += lengthBits;
+				v++;
+			} else {
+				for (run = 1; run < maxRun && v + run < length.length && length[v + run] == 0; run++);
+				bits += runBits;
+				v += run;
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return bits written by {@link #writeTree(BitOutputStream)}
+	 */
+	public int getTreeBitSize() {
+		final int leafs = values.length <= 1 ? values.length + 1 : values.length;
+		return leafs * (1 + BinaryFileFormat.getInstanse().HTreeValuePull) + (leafs - 1) * 3;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int v : values) {
+			sb.append(v).append("->\"");
+			for (int i = length[v] - 1; i >= 0; i--)
+				sb.append((code[v] >>> i) & 1);
+			sb.append("\", ");
+		}
+		return sb.toString();
+	}
+}
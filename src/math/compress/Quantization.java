@@ -1,12 +1,20 @@
 package math.compress;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.IllegalFormatFlagsException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 import math.compress.utils.BinaryFileFormat;
@@ -15,6 +23,7 @@ import math.compress.utils.BitOutputStream;
 import math.dwt.Composable;
 import math.dwt.DWTCoefficients;
 import math.dwt.Matrix;
+import math.dwt.Wavelet2DTransformation;
 import math.dwt.wavelets.HaarAdaptive;
 import math.utils.FileNamesConst;
 import math.utils.Log;
@@ -26,10 +35,101 @@ public class Quantization {
 
 	private final int qLEVELS;
 	private final int DIVIDER;
+	/**
+	 * Restored value per quantization level
+	 */
+	private final float[] unQuantized;
+	/**
+	 * Symbols of the detail subbands chunks: 
+	 * the quantized values, the levels and the zero runs of ZeroRuns, or one level of all the values
+	 */
+	private static final int SYMBOLS_VALUES = 0;
+	private static final int SYMBOLS_ZERO_RUNS = 1;
+	private static final int SYMBOLS_CONSTANT = 2;
+	private int mMaxCodeLength = HuffmanTable.MAX_CODE_LENGTH;
+	private ForkJoinPool mPool = null;
+	private int mRestartRows = 0;
+	private EntropyCoder[] mCoders = { new RansCoder() };
+	private DeadzoneQuantizer mQuantizer;
+	private Wavelet2DTransformation mWavelet = new HaarAdaptive();
+	private int mVersion = BinaryFileFormat.VERSION;
 
 	public Quantization(int levels) {
 		qLEVELS = levels;
 		DIVIDER = MAX_VAL / qLEVELS;
+		unQuantized = new float[qLEVELS];
+		for (int q = 0; q < qLEVELS; q++)
+			unQuantized[q] = unQuant(q);
+		mQuantizer = new DeadzoneQuantizer(DIVIDER);
+	}
+
+	/**
+	 * @param maxCodeLength limit of the Huffman codes length, keeps decoder tables small. 
+	 * Codes are up to HuffmanTable.MAX_CODE_LENGTH bits by default
+	 */
+	public Quantization setMaxCodeLength(int maxCodeLength) {
+		mMaxCodeLength = maxCodeLength;
+		return this;
+	}
+
+	/**
+	 * @param pool runs the chunks coded at once by {@link #compress(DWTCoefficients[], BitOutputStream)} 
+	 * and decoded at once by {@link #decompress(ByteBuffer)}, null for sequential mode. 
+	 * The pool is owned by the caller, it may be shared
+	 */
+	public Quantization setPool(ForkJoinPool pool) {
+		mPool = pool;
+		return this;
+	}
+
+	/**
+	 * @param restartRows rows of the detail subbands coded as independent byte aligned segments, 
+	 * segments of a subband are decoded concurrently 
+	 * by {@link #decompress(ByteBuffer)}. 0 for no restart points
+	 */
+	public Quantization setRestartRows(int restartRows) {
+		mRestartRows = restartRows;
+		return this;
+	}
+
+	/**
+	 * @param coders entropy coders tried for the detail subbands without restart points next to the Huffman code, 
+	 * the smallest code is written. 
+	 * Decoding needs the coders of the file. RansCoder by default, none for the Huffman code only
+	 */
+	public Quantization setEntropyCoders(EntropyCoder... coders) {
+		mCoders = coders;
+		return this;
+	}
+
+	/**
+	 * @param quantizer step and deadzone per level and subband of the detail subbands. 
+	 * The step of the quantization levels for all the bands by default
+	 */
+	public Quantization setDeadzoneQuantizer(DeadzoneQuantizer quantizer) {
+		mQuantizer = quantizer;
+		return this;
+	}
+	public DeadzoneQuantizer getDeadzoneQuantizer() {
+		return mQuantizer;
+	}
+
+	/**
+	 * @param wavelet composes the coefs read from the VERSION_TREE and VERSION_CODE_LENGTHS files, 
+	 * they do not record it. HaarAdaptive by default. The container names the wavelet of its coefs
+	 */
+	public Quantization setWavelet(Wavelet2DTransformation wavelet) {
+		mWavelet = wavelet;
+		return this;
+	}
+
+	/**
+	 * @param version file format of the coefs written and read by the quantization, BinaryFileFormat.VERSION by default. 
+	 * Decoders take it from BinaryFileFormat.readHeader()
+	 */
+	public Quantization setVersion(int version) {
+		mVersion = version;
+		return this;
 	}
 
 	// private int [] quantizied;
@@ -51,29 +151,745 @@ public class Quantization {
 		DWTCoefficients[] mDWTCoefficients = null;
 		try {
 			BitOutputStream binOut = null;
-			BitInputStream binInput = null;
-			binOut = new BitOutputStream(new FileOutputStream(output));
+			FileOutputStream fos = new FileOutputStream(output);
+			BinaryFileFormat.writeHeader(fos, mVersion);
+			binOut = new BitOutputStream(fos.getChannel());
 			Log.getInstance().log(Level.FINER, "\nStart image bit-codding, output file: " + output.getName());
-			compressColorToStream(image[DWTCoefficients.RED], binOut);
-			compressColorToStream(image[DWTCoefficients.GREEN], binOut);
-			compressColorToStream(image[DWTCoefficients.BLUE], binOut);
+			compress(image, binOut);
 			binOut.close();
 			
 			Log.getInstance().log(Level.FINER, "\nStart image bit-decompression");
-			binInput = new BitInputStream(new FileInputStream(output));
-			mDWTCoefficients = new DWTCoefficients[] { decompressColorFromStream(binInput),
-					decompressColorFromStream(binInput), decompressColorFromStream(binInput),
-			// image[DWTCoefficients.GREEN],
-			// image[DWTCoefficients.BLUE]
-			};
-
-			binInput.close();
+			// chunks of the mapped file are decoded concurrently
+			RandomAccessFile file = new RandomAccessFile(output, "r");
+			try {
+				final ByteBuffer coefs = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				BinaryFileFormat.readHeader(coefs);
+				mDWTCoefficients = mVersion >= BinaryFileFormat.VERSION_CONTAINER ? 
+						decompress(coefs) : decompress(new BitInputStream(coefs));
+			} finally {
+				file.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return mDWTCoefficients;
 	}
 
+	/**
+	 * Writes R, G, B coefs to the stream in the format of {@link #setVersion(int)}, BinaryFileFormat has to be initialized, 
+	 * the header is written by BinaryFileFormat.writeHeader()
+	 * @param image coefs after dwt
+	 */
+	public void compress(DWTCoefficients[] image, BitOutputStream binOut) throws IOException {
+		if (mVersion >= BinaryFileFormat.VERSION_CONTAINER) {
+			compressContainer(image, binOut);
+			return;
+		}
+		compressColorToStream(image[DWTCoefficients.RED], binOut);
+		compressColorToStream(image[DWTCoefficients.GREEN], binOut);
+		compressColorToStream(image[DWTCoefficients.BLUE], binOut);
+	}
+	
+	/**
+	 * Reads R, G, B coefs written by {@link #compress(DWTCoefficients[], BitOutputStream)}
+	 * @return image coefs restored from qauntization
+	 */
+	public DWTCoefficients[] decompress(BitInputStream binInput) throws IOException {
+		if (mVersion >= BinaryFileFormat.VERSION_CONTAINER)
+			return decompressContainer(binInput);
+		return new DWTCoefficients[] { 
+				decompressColorFromStream(binInput),
+				decompressColorFromStream(binInput), 
+				decompressColorFromStream(binInput) 
+		};
+	}
+
+	/**
+	 * Reduced resolution decoding: R, G, B images at 1/2^level scale are composed from 
+	 * the average coefs of that level, finer subbands are skipped without Huffman decoding.
+	 * @param level scale of the result, 0 for the full image, 
+	 * 			levels deeper than the decomposition give its deepest average coefs
+	 * @return R, G, B matrixes at 1/2^level scale
+	 */
+	public Matrix[] decompress(BitInputStream binInput, int level) throws IOException {
+		if (mVersion >= BinaryFileFormat.VERSION_CONTAINER)
+			return decompressContainer(binInput, level);
+		return new Matrix[] { 
+				decompressColorFromStream(binInput, 1, level),
+				decompressColorFromStream(binInput, 1, level), 
+				decompressColorFromStream(binInput, 1, level) 
+		};
+	}
+
+	// container (BinaryFileFormat.VERSION_CONTAINER)
+	/**
+	 * Histograms and tables of all the subbands are built before the chunks are written, 
+	 * so the index of the chunk lengths goes first. Plans keep the tables and the sizes only: 
+	 * the histograms are counted row by row and a Huffman coded subband is quantized again row by row 
+	 * when its chunk is written, so no quantized subband is held. 
+	 * The other entropy coders need all the symbols of a chunk, such a chunk is coded once 
+	 * while it is planned and the plan keeps the code. Codes are streamed to the output.
+	 * With {@link #setPool(ForkJoinPool)} the chunks of all the channels are planned and coded concurrently, 
+	 * every chunk to its own buffer, the buffers are written in the chunks order: 
+	 * the output is the same for any parallelism
+	 */
+	private void compressContainer(DWTCoefficients[] image, final BitOutputStream binOut) throws IOException {
+		final Wavelet2DTransformation wavelet = image[0].getTransform();
+		if (wavelet == null)
+			throw new IOException("Wavelet of the coefs is unknown");
+		final ChunkIndex layout = new ChunkIndex(wavelet, image[0].getLevelsCount(), qLEVELS, image.length, null);
+		final Matrix[] subbands = new Matrix[layout.getChunksCount()];
+		final int[] kinds = new int[subbands.length], depths = new int[subbands.length];
+		final ChunkPlan[] plans = new ChunkPlan[subbands.length];
+		final long[] lengths = new long[subbands.length];
+		for (int i = 0; i < subbands.length; i++) {
+			kinds[i] = layout.getSubband(i);
+			depths[i] = layout.getLevel(i);
+			subbands[i] = image[layout.getChannel(i)].getSubband(depths[i], kinds[i]);
+		}
+
+		if (mPool == null) {
+			for (int i = 0; i < subbands.length; i++)
+				plans[i] = planChunk(subbands[i], kinds[i], depths[i]);
+		} else {
+			final List<Callable<ChunkPlan>> tasks = new ArrayList<Callable<ChunkPlan>>(subbands.length);
+			for (int i = 0; i < subbands.length; i++) {
+				final int chunk = i;
+				tasks.add(new Callable<ChunkPlan>() {
+					@Override
+					public ChunkPlan call() throws IOException {
+						return planChunk(subbands[chunk], kinds[chunk], depths[chunk]);
+					}
+				});
+			}
+			final List<Future<ChunkPlan>> results = mPool.invokeAll(tasks);
+			for (int i = 0; i < subbands.length; i++)
+				plans[i] = getResult(results.get(i));
+		}
+		for (int i = 0; i < subbands.length; i++)
+			lengths[i] = getChunkLength(subbands[i], plans[i].bits);
+
+		new ChunkIndex(wavelet, layout.getLevelsCount(), qLEVELS, image.length, lengths).write(binOut);
+		if (mPool == null) {
+			long start;
+			for (int i = 0; i < subbands.length; i++) {
+				start = binOut.getBitsCount();
+				compressChunk(subbands[i], kinds[i], depths[i], plans[i], binOut);
+				checkChunkLength(i, (binOut.getBitsCount() - start) / 8, lengths[i]);
+				plans[i] = null;
+			}
+		} else {
+			final List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>(subbands.length);
+			for (int i = 0; i < subbands.length; i++) {
+				final int chunk = i;
+				chunks.add(mPool.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) lengths[chunk]);
+						final BitOutputStream chunkOut = new BitOutputStream(buffer);
+						compressChunk(subbands[chunk], kinds[chunk], depths[chunk], plans[chunk], chunkOut);
+						chunkOut.flush();
+						plans[chunk] = null;
+						return buffer.toByteArray();
+					}
+				}));
+			}
+			byte[] chunk;
+			for (int i = 0; i < subbands.length; i++) {
+				chunk = getResult(chunks.get(i));
+				checkChunkLength(i, chunk.length, lengths[i]);
+				binOut.writeBytes(chunk, 0, chunk.length);
+			}
+		}
+	}
+
+	private static void checkChunkLength(int chunk, long length, long expected) throws IOException {
+		if (length != expected)
+			throw new IOException("Chunk " + chunk + " of " + length + " bytes, " + expected + " expected");
+	}
+
+	/**
+	 * Coding of a subband chunk, planned before the chunks are written
+	 */
+	private static class ChunkPlan {
+		/**
+		 * Chunk data bits
+		 */
+		long bits;
+		/**
+		 * Huffman table of the symbols, null for the values, the constant subband and the other entropy coders
+		 */
+		HuffmanTable table;
+		/**
+		 * Code bytes per restart segment
+		 */
+		long[] segments;
+		/**
+		 * Zero runs of the quantization levels of the subband
+		 */
+		ZeroRuns zeroRuns;
+		/**
+		 * Symbols of the subband, the level of SYMBOLS_CONSTANT
+		 */
+		int symbols, constant;
+		/**
+		 * Step of the deadzone quantizer
+		 */
+		float step;
+		/**
+		 * Id and code of another entropy coder, coded while the chunk is planned
+		 */
+		int coder;
+		byte[] code;
+	}
+
+	/**
+	 * Builds the table of the detail subband and counts the chunk data bits, safe for concurrent chunks
+	 * @param level	decomposition level of the subband, 1 for the top level
+	 */
+	private ChunkPlan planChunk(Matrix m, int kind, int level) throws IOException {
+		final ChunkPlan plan = new ChunkPlan();
+		if (kind == DWTCoefficients.MA || kind == DWTCoefficients.MAP) {
+			plan.bits = m == null ? 0 : (long) m.getRowsCount() * m.getColumnsCount() * getChunkValuePull(kind);
+		} else {
+			planSymbols(m, kind, level, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Plans the detail subband chunk: the histograms of the symbols and the zero runs per restart segment 
+	 * are counted row by row, the smallest code is chosen. The quantized values are not kept
+	 */
+	private void planSymbols(Matrix m, int kind, int level, ChunkPlan plan) throws IOException {
+		final int columns = m.getColumnsCount();
+		plan.step = mQuantizer.getStep(level, kind);
+		final int maxLevel = DeadzoneQuantizer.getMaxLevel(plan.step);
+		plan.zeroRuns = new ZeroRuns(2 * maxLevel + 1, maxLevel);
+		long bytes = 4 + ChunkIndex.getVarintSize(maxLevel);
+		final int levels = plan.zeroRuns.getLevelsCount();
+
+		// histograms per segment, the table of them all
+		final int restartRows = getRestartRows(m.getRowsCount());
+		final FreqStatistics[] segmentStats = new FreqStatistics[getSegmentsCount(m.getRowsCount(), restartRows)];
+		final FreqStatistics[] segmentRuns = new FreqStatistics[segmentStats.length];
+		final FreqStatistics freqStat = new FreqStatistics(levels);
+		final FreqStatistics runStat = new FreqStatistics(plan.zeroRuns.getSymbolsCount());
+		for (int i = 0; i < segmentStats.length; i++) {
+			final int[] histogram = new int[levels];
+			// the zero runs histogram is counted from the lengths of the runs
+			final int[] runLengths = new int[columns + 1];
+			countSymbols(getSegment(m, restartRows, i), kind, level, plan.zeroRuns.getZero(), histogram, runLengths);
+			segmentStats[i] = new FreqStatistics(histogram);
+			freqStat.add(segmentStats[i]);
+			segmentRuns[i] = plan.zeroRuns.getRunStatistics(segmentStats[i], runLengths);
+			runStat.add(segmentRuns[i]);
+		}
+
+		if (getConstantLevel(freqStat, plan.zeroRuns.getZero()) >= 0) {
+			// a subband of one level is not coded
+			plan.symbols = SYMBOLS_CONSTANT;
+			plan.constant = getConstantLevel(freqStat, plan.zeroRuns.getZero());
+			bytes += ChunkIndex.getVarintSize(SYMBOLS_CONSTANT) + ChunkIndex.getVarintSize(plan.constant);
+		} else {
+			plan.symbols = SYMBOLS_VALUES;
+			plan.table = HuffmanTable.build(freqStat, mMaxCodeLength);
+			plan.segments = new long[segmentStats.length];
+			long codeBytes = getHuffmanBytes(plan.table, segmentStats, plan.segments, restartRows);
+			// the zero runs are coded if their code is smaller
+			final HuffmanTable runTable = HuffmanTable.build(runStat, mMaxCodeLength);
+			final long[] runSegments = new long[segmentRuns.length];
+			final long runBytes = getHuffmanBytes(runTable, segmentRuns, runSegments, restartRows);
+			if (runBytes < codeBytes) {
+				plan.symbols = SYMBOLS_ZERO_RUNS;
+				plan.table = runTable;
+				plan.segments = runSegments;
+				codeBytes = runBytes;
+			}
+			codeBytes += ChunkIndex.getVarintSize(plan.symbols) + ChunkIndex.getVarintSize(EntropyCoder.HUFFMAN);
+			if (restartRows == 0)
+				codeBytes = planEntropyCoders(plan, m, kind, level, freqStat, runStat, codeBytes);
+			bytes += codeBytes;
+		}
+		plan.bits = bytes * 8;
+		for (int i = 0; i < segmentStats.length; i++) {
+			segmentStats[i].free();
+			segmentRuns[i].free();
+		}
+		freqStat.free();
+		runStat.free();
+	}
+
+	/**
+	 * The coders estimated smaller than the Huffman code are tried on the values or the zero runs, 
+	 * the symbols of the smaller estimate. The subband is quantized for them only, 
+	 * the code of the smallest one is kept by the plan
+	 * @param bytes	bytes of the Huffman code
+	 * @return bytes of the smallest code
+	 */
+	private long planEntropyCoders(ChunkPlan plan, Matrix m, int kind, int level, FreqStatistics freqStat,
+			FreqStatistics runStat, long bytes) throws IOException {
+		final int header = ChunkIndex.getVarintSize(SYMBOLS_VALUES);
+		final int columns = m.getColumnsCount();
+		short[] quantized = null, runSymbols = null;
+		long size = bytes, estimate;
+		boolean zeroRuns;
+		for (EntropyCoder coder : mCoders) {
+			estimate = coder.estimateBits(freqStat.getFrequencies());
+			zeroRuns = coder.estimateBits(runStat.getFrequencies()) < estimate;
+			if (zeroRuns)
+				estimate = coder.estimateBits(runStat.getFrequencies());
+			if (estimate >= (size - header) * 8)
+				continue;
+			final byte[] code;
+			if (quantized == null) {
+				quantized = new short[m.getRowsCount() * columns];
+				quantizeMatrix(m, kind, level, quantized, 0, new int[freqStat.getFrequencies().length]);
+			}
+			if (zeroRuns) {
+				if (runSymbols == null)
+					runSymbols = getRunSymbols(quantized, columns, plan.zeroRuns, runStat.getFrequencies());
+				code = coder.encode(runSymbols, runSymbols.length, runStat.getFrequencies());
+			} else {
+				code = coder.encode(quantized, quantized.length, freqStat.getFrequencies());
+			}
+			if (header + ChunkIndex.getVarintSize(coder.getId()) + code.length < size) {
+				size = header + ChunkIndex.getVarintSize(coder.getId()) + code.length;
+				plan.coder = coder.getId();
+				plan.symbols = zeroRuns ? SYMBOLS_ZERO_RUNS : SYMBOLS_VALUES;
+				plan.code = code;
+			}
+		}
+		if (plan.code != null) {
+			plan.table = null;
+			plan.segments = null;
+		}
+		return size;
+	}
+
+
+	/**
+	 * @param segments	receives code bytes per restart segment
+	 * @return bytes of the code lengths, the restart points and the segments
+	 */
+	private static long getHuffmanBytes(HuffmanTable table, FreqStatistics[] segmentStats, long[] segments, int restartRows) {
+		long bytes = (table.getLengthsBitSize() + 7) / 8 + ChunkIndex.getVarintSize(restartRows);
+		for (int i = 0; i < segmentStats.length; i++) {
+			segments[i] = (table.getBitsCount(segmentStats[i]) + 7) / 8;
+			bytes += segments[i] + (i < segmentStats.length - 1 ? ChunkIndex.getVarintSize(segments[i]) : 0);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the level of all the values, the zero level if there are no values, -1 for several levels
+	 */
+	private static int getConstantLevel(FreqStatistics freqStat, int zero) {
+		int level = -1;
+		final int[] frequencies = freqStat.getFrequencies();
+		for (int v = 0; v < frequencies.length; v++) {
+			if (frequencies[v] > 0) {
+				if (level >= 0)
+					return -1;
+				level = v;
+			}
+		}
+		return level >= 0 ? level : zero;
+	}
+
+	/**
+	 * @return rows of the restart segments of the subband, 0 for a single segment
+	 */
+	private int getRestartRows(int rows) {
+		return mRestartRows > 0 && rows > mRestartRows ? mRestartRows : 0;
+	}
+
+	private static int getSegmentsCount(int rows, int restartRows) {
+		return restartRows > 0 ? (rows + restartRows - 1) / restartRows : 1;
+	}
+
+	/**
+	 * @return rows of the restart segment, a view of the subband
+	 */
+	private static Matrix getSegment(Matrix m, int restartRows, int segment) {
+		if (restartRows == 0)
+			return m;
+		final int row = segment * restartRows;
+		return m.subMatrix(row, 0, Math.min(restartRows, m.getRowsCount() - row), m.getColumnsCount());
+	}
+
+	/**
+	 * @param level	decomposition level of the subband, the Huffman coded subbands are quantized again
+	 */
+	private void compressChunk(Matrix m, int kind, int level, ChunkPlan plan, BitOutputStream binOut)
+			throws IOException {
+		if (kind == DWTCoefficients.MA || kind == DWTCoefficients.MAP) {
+			matrixToChunk(m, binOut, getChunkValuePull(kind));
+			return;
+		}
+		binOut.writeVarint(m.getRowsCount());
+		binOut.writeVarint(m.getColumnsCount());
+		binOut.writeVarint((plan.bits + 7) / 8);
+		binOut.writeFloat(plan.step);
+		binOut.writeVarint(plan.zeroRuns.getZero());
+		binOut.writeVarint(plan.symbols);
+		if (plan.symbols == SYMBOLS_CONSTANT) {
+			binOut.writeVarint(plan.constant);
+			return;
+		}
+		if (plan.table != null) {
+			huffmanToChunk(m, kind, level, plan, binOut);
+			return;
+		}
+		binOut.writeVarint(plan.coder);
+		binOut.writeBytes(plan.code, 0, plan.code.length);
+	}
+
+	/**
+	 * @return bytes of the chunk of the matrix, rows and columns, data bytes count and data
+	 */
+	private static long getChunkLength(Matrix m, long bits) {
+		final long bytes = (bits + 7) / 8;
+		return (m == null ? 2 : ChunkIndex.getVarintSize(m.getRowsCount()) + ChunkIndex.getVarintSize(m.getColumnsCount()))
+				+ ChunkIndex.getVarintSize(bytes) + bytes;
+	}
+
+	private static short getChunkValuePull(int subband) {
+		return subband == DWTCoefficients.MAP ? BinaryFileFormat.getInstanse().AdaptiveMapValuePull
+				: BinaryFileFormat.getInstanse().DWTCoefValuePull;
+	}
+
+	private DWTCoefficients[] decompressContainer(BitInputStream binInput) throws IOException {
+		final ChunkIndex index = ChunkIndex.read(binInput);
+		final Quantization quantization = getQuantization(index);
+		final DWTCoefficients[] image = new DWTCoefficients[index.getChannelsCount()];
+		for (int i = 0; i < image.length; i++)
+			image[i] = quantization.decompressLevelChunks(binInput, index.getWavelet(), index.getLevelsCount());
+		return image;
+	}
+
+	private Matrix[] decompressContainer(BitInputStream binInput, int level) throws IOException {
+		final ChunkIndex index = ChunkIndex.read(binInput);
+		final Quantization quantization = getQuantization(index);
+		final Matrix[] image = new Matrix[index.getChannelsCount()];
+		for (int i = 0; i < image.length; i++)
+			image[i] = quantization.decompressLevelChunks(binInput, index.getWavelet(), 1, index.getLevelsCount(), level);
+		return image;
+	}
+
+	/**
+	 * Random access decoding of the coefs: 
+	 * chunks are found by the index and decoded concurrently, see {@link #setPool(ForkJoinPool)}. 
+	 * Works on a memory mapped file as well.
+	 * @param coefs	buffer at the coefs, left after them. Chunks are found by int positions, up to 2GB
+	 * @return image coefs restored from qauntization
+	 */
+	public DWTCoefficients[] decompress(final ByteBuffer coefs) throws IOException {
+		if (mVersion < BinaryFileFormat.VERSION_CONTAINER)
+			throw new IOException("File version " + mVersion + " has no chunk index");
+		final ChunkIndex index = ChunkIndex.read(new BitInputStream(coefs));
+		final ByteBuffer chunks = coefs.duplicate();
+		chunks.position(coefs.position() + (int) index.getSize());
+		final Quantization quantization = getQuantization(index);
+		final Matrix[] subbands = new Matrix[index.getChunksCount()];
+		if (mPool == null) {
+			for (int i = 0; i < subbands.length; i++)
+				subbands[i] = quantization.decompressChunk(chunks, index, i);
+		} else {
+			final List<Callable<Matrix>> tasks = new ArrayList<Callable<Matrix>>(subbands.length);
+			for (int i = 0; i < subbands.length; i++) {
+				final int chunk = i;
+				tasks.add(new Callable<Matrix>() {
+					@Override
+					public Matrix call() throws IOException {
+						return quantization.decompressChunk(chunks, index, chunk);
+					}
+				});
+			}
+			final List<Future<Matrix>> results = mPool.invokeAll(tasks);
+			for (int i = 0; i < subbands.length; i++)
+				subbands[i] = getResult(results.get(i));
+		}
+		coefs.position(chunks.position() + (int) index.getChunksSize());
+
+		final DWTCoefficients[] image = new DWTCoefficients[index.getChannelsCount()];
+		for (int i = 0; i < image.length; i++)
+			image[i] = assembleLevels(subbands, index.getChunk(i, index.getLevelsCount(), DWTCoefficients.MA),
+					index.getLevelsCount());
+		return image;
+	}
+
+	private static <T> T getResult(Future<T> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decodes a chunk without the chunks before it, safe for concurrent chunks of the buffer
+	 * @param chunks	buffer at the first chunk, its position is not changed
+	 * @param chunk		chunk number, see {@link ChunkIndex#getChunk(int, int, int)}
+	 * @return the subband, null for the empty map
+	 */
+	public Matrix decompressChunk(ByteBuffer chunks, ChunkIndex index, int chunk) throws IOException {
+		final ByteBuffer data = chunks.duplicate();
+		data.position(chunks.position() + (int) index.getOffset(chunk));
+		data.limit(data.position() + (int) index.getLength(chunk));
+		return getQuantization(index).readChunk(new BitInputStream(data), data, index.getWavelet(), index.getSubband(chunk));
+	}
+
+	/**
+	 * @return this quantization, or the one of the recorded levels count
+	 */
+	private Quantization getQuantization(ChunkIndex index) {
+		return index.getQuantizationLevels() == qLEVELS ? this 
+				: new Quantization(index.getQuantizationLevels()).setMaxCodeLength(mMaxCodeLength).setEntropyCoders(mCoders)
+						.setPool(mPool);
+	}
+
+	/**
+	 * @param levels decomposition levels of the chunks, the coefs of the last one are read
+	 */
+	private DWTCoefficients decompressLevelChunks(BitInputStream binInput, Wavelet2DTransformation wavelet, int levels)
+			throws IOException {
+		final Matrix[] subbands = new Matrix[ChunkIndex.getChannelChunksCount(levels)];
+		subbands[0] = readChunk(binInput, wavelet, DWTCoefficients.MA);
+		for (int i = 1; i < subbands.length; i++)
+			subbands[i] = readChunk(binInput, wavelet, DWTCoefficients.MV + (i - 1) % 4);
+		return assembleLevels(subbands, 0, levels);
+	}
+
+	/**
+	 * @param from		chunk of the deepest ma, the levels chunks follow it
+	 * @return coefs of the top level
+	 */
+	private static DWTCoefficients assembleLevels(Matrix[] subbands, int from, int levels) {
+		Composable ma = subbands[from];
+		for (int i = from + 1; i < from + ChunkIndex.getChannelChunksCount(levels); i += 4)
+			ma = new DWTCoefficients(ma, subbands[i], subbands[i + 1], subbands[i + 2], subbands[i + 3], false);
+		return (DWTCoefficients) ma;
+	}
+
+	/**
+	 * Chunks counterpart of {@link #decompressColorFromStream(BitInputStream, int, int)}, 
+	 * the chunks finer than the target scale are skipped by their sizes
+	 * @param depth		decomposition level of the coefs in the stream, 1 for the top level
+	 * @param levels	decomposition levels count
+	 */
+	private Matrix decompressLevelChunks(BitInputStream binInput, Wavelet2DTransformation wavelet, int depth,
+			int levels, int level) throws IOException {
+		if (depth > level) {
+			return decompressLevelChunks(binInput, wavelet, levels - depth + 1).compose();
+		}
+		Matrix ma;
+		if (depth < levels) {
+			ma = decompressLevelChunks(binInput, wavelet, depth + 1, levels, level);
+		} else {
+			ma = readChunk(binInput, wavelet, DWTCoefficients.MA);
+		}
+		// mv, mh, md, map are finer than the target scale
+		for (int i = 0; i < 4; i++)
+			skipChunk(binInput);
+		return ma;
+	}
+
+	/**
+	 * @param subband	DWTCoefficients.MA, MV, MH, MD or MAP
+	 */
+	private Matrix readChunk(BitInputStream binInput, Wavelet2DTransformation wavelet, int subband) throws IOException {
+		return readChunk(binInput, null, wavelet, subband);
+	}
+
+	/**
+	 * @param chunk	buffer of the chunk for the concurrent decoding of the restart segments, may be null
+	 */
+	private Matrix readChunk(BitInputStream binInput, ByteBuffer chunk, Wavelet2DTransformation wavelet, int subband)
+			throws IOException {
+		if (subband == DWTCoefficients.MA) {
+			final Matrix ma = chunkToMatrix(binInput, getChunkValuePull(subband));
+			ma.setTransform(wavelet);
+			return ma;
+		}
+		if (subband == DWTCoefficients.MAP)
+			return chunkToMatrix(binInput, getChunkValuePull(subband));
+		return huffmanChunkReverse(binInput, chunk);
+	}
+
+	/**
+	 * Moves the stream past a chunk
+	 */
+	private void skipChunk(BitInputStream binInput) throws IOException {
+		binInput.readVarint();
+		binInput.readVarint();
+		binInput.skipBits(binInput.readVarint() * 8);
+	}
+
+	/**
+	 * Writes the Huffman code of a subband chunk after the chunk header, the subband is quantized row by row
+	 */
+	private void huffmanToChunk(Matrix m, int kind, int level, ChunkPlan plan, BitOutputStream binOut) throws IOException {
+		binOut.writeVarint(EntropyCoder.HUFFMAN);
+		plan.table.writeLengths(binOut);
+		// restart points: segments start at byte boundaries, sizes of all but the last one are listed
+		binOut.align();
+		final int restartRows = getRestartRows(m.getRowsCount());
+		binOut.writeVarint(restartRows);
+		for (int i = 0; i < plan.segments.length - 1; i++)
+			binOut.writeVarint(plan.segments[i]);
+		final ZeroRuns runs = plan.symbols == SYMBOLS_ZERO_RUNS ? plan.zeroRuns : null;
+		for (int i = 0; i < plan.segments.length; i++) {
+			encodeSubband(getSegment(m, restartRows, i), kind, level, plan.table, runs, binOut);
+			binOut.align();
+		}
+		Log.getInstance().log(Level.FINER, "huffmanToChunk, chunk of " + plan.bits + " bits");
+	}
+
+	/**
+	 * Reads a Huffman coded subband chunk, 
+	 * restart segments are decoded concurrently if the chunk buffer is given
+	 * @param chunk	buffer of the chunk, may be null
+	 */
+	private Matrix huffmanChunkReverse(BitInputStream binInput, ByteBuffer chunk) throws IOException {
+		final int rows = (int) binInput.readVarint();
+		final int columns = (int) binInput.readVarint();
+		long bytes = binInput.readVarint();
+		final float step = binInput.readFloat();
+		final int maxLevel = (int) binInput.readVarint();
+		if (maxLevel > DeadzoneQuantizer.MAX_VALUE)
+			throw new IOException("Max level " + maxLevel + " of the deadzone quantizer");
+		bytes -= 4 + ChunkIndex.getVarintSize(maxLevel);
+		final float[] levelValues = DeadzoneQuantizer.getSymbolValues(step, maxLevel);
+		float[] symbolValues = levelValues;
+		int[] symbolRuns = null;
+		final int symbols = (int) binInput.readVarint();
+		bytes -= ChunkIndex.getVarintSize(symbols);
+		if (symbols == SYMBOLS_CONSTANT) {
+			final int level = (int) binInput.readVarint();
+			if (level >= levelValues.length)
+				throw new IOException("Level " + level + " of " + levelValues.length + " levels");
+			final float[] data = new float[rows * columns];
+			Arrays.fill(data, levelValues[level]);
+			return new Matrix(data, rows, columns);
+		} else if (symbols == SYMBOLS_ZERO_RUNS) {
+			final ZeroRuns runs = new ZeroRuns(levelValues.length, maxLevel);
+			symbolValues = runs.getSymbolValues(levelValues);
+			symbolRuns = runs.getSymbolRuns();
+		} else if (symbols != SYMBOLS_VALUES)
+			throw new IOException("Unknown symbols " + symbols + " of the chunk");
+		final int id = (int) binInput.readVarint();
+		bytes -= ChunkIndex.getVarintSize(id);
+		if (id != EntropyCoder.HUFFMAN) {
+			final byte[] coded = new byte[(int) bytes];
+			binInput.readBytes(coded, 0, coded.length);
+			final float[] data = new float[rows * columns];
+			getEntropyCoder(id).decode(ByteBuffer.wrap(coded), symbolValues, symbolRuns, data);
+			return new Matrix(data, rows, columns);
+		}
+		final HuffmanTable table = HuffmanTable.readLengths(binInput, symbolValues.length);
+		final HuffmanDecoder decoder = table.getDecoder(symbolValues, symbolRuns);
+		final float[] data = new float[rows * columns];
+		binInput.align();
+		final int restartRows = (int) binInput.readVarint();
+		final long[] segments = new long[getSegmentsCount(rows, restartRows)];
+		long rest = bytes - (table.getLengthsBitSize() + 7) / 8 - ChunkIndex.getVarintSize(restartRows);
+		for (int i = 0; i < segments.length - 1; i++) {
+			segments[i] = binInput.readVarint() * 8;
+			rest -= segments[i] / 8 + ChunkIndex.getVarintSize(segments[i] / 8);
+		}
+		segments[segments.length - 1] = rest * 8;
+
+		if (chunk != null && mPool != null && segments.length > 1) {
+			// segments are at the end of the chunk
+			int position = chunk.limit();
+			for (long segment : segments)
+				position -= (int) (segment / 8);
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(segments.length);
+			for (int i = 0; i < segments.length; i++) {
+				final ByteBuffer segment = chunk.duplicate();
+				segment.position(position);
+				position += (int) (segments[i] / 8);
+				segment.limit(position);
+				final int from = i * restartRows * columns;
+				final int count = Math.min(restartRows * columns, data.length - from);
+				final long segmentBits = segments[i];
+				tasks.add(new Callable<Object>() {
+					@Override
+					public Object call() throws IOException {
+						checkDecoded(count, decoder.decode(new BitInputStream(segment), segmentBits, data, from, count));
+						return null;
+					}
+				});
+			}
+			for (Future<Object> result : mPool.invokeAll(tasks))
+				getResult(result);
+		} else {
+			// the padding of the segments is skipped by the decoder
+			int from = 0, count;
+			for (int i = 0; i < segments.length; i++) {
+				count = segments.length > 1 ? Math.min(restartRows * columns, data.length - from) : data.length;
+				checkDecoded(count, decoder.decode(binInput, segments[i], data, from, count));
+				from += count;
+			}
+		}
+		return new Matrix(data, rows, columns);
+	}
+
+	private EntropyCoder getEntropyCoder(int id) throws IOException {
+		for (EntropyCoder coder : mCoders)
+			if (coder.getId() == id)
+				return coder;
+		throw new IOException("No entropy coder " + id);
+	}
+
+	private static void checkDecoded(int expected, int count) throws IOException {
+		if (count != expected)
+			throw new IOException("Subband of " + expected + " values, " + count + " decoded");
+	}
+
+	/**
+	 * Writes the matrix values as a chunk, the null matrix as an empty one
+	 */
+	private void matrixToChunk(Matrix m, BitOutputStream binOut, short valuePull) throws IOException {
+		final int rows = m != null ? m.getRowsCount() : 0;
+		final int columns = m != null ? m.getColumnsCount() : 0;
+		binOut.writeVarint(rows);
+		binOut.writeVarint(columns);
+		binOut.writeVarint(((long) rows * columns * valuePull + 7) / 8);
+		final float[] data = m != null ? m.getData() : null;
+		final int columnStride = m != null ? m.getColumnStride() : 0;
+		int k;
+		for (int row = 0; row < rows; row++) {
+			k = m.index(row, 0);
+			for (int column = 0; column < columns; column++, k += columnStride)
+				binOut.writeBits(Math.round(data[k]), valuePull);
+		}
+		binOut.align();
+	}
+
+	/**
+	 * @return the chunk values, null for an empty chunk
+	 */
+	private Matrix chunkToMatrix(BitInputStream binInput, short valuePull) throws IOException {
+		final int rows = (int) binInput.readVarint();
+		final int columns = (int) binInput.readVarint();
+		final long bits = binInput.readVarint() * 8;
+		if (rows == 0 || columns == 0) {
+			binInput.skipBits(bits);
+			return null;
+		}
+		final float[] data = new float[rows * columns];
+		for (int i = 0; i < data.length; i++)
+			data[i] = binInput.readBits(valuePull);
+		binInput.skipBits(bits - (long) data.length * valuePull);
+		return new Matrix(data, rows, columns);
+	}
+
 	// color matrix level
 	private void compressColorToStream(DWTCoefficients image, BitOutputStream binOut) throws IOException {
 		try {
@@ -110,8 +926,7 @@ public class Quantization {
 		try {
 			if (binInput.readBit() == 1) {
 				ma = readMatrixBin(binInput, BinaryFileFormat.getInstanse().DWTCoefValuePull);
-				// TODO get transformation
-				ma.setTransform(new HaarAdaptive());
+				ma.setTransform(mWavelet);
 			} else {
 				DWTCoefficients dwtCoefs = decompressColorFromStream(binInput);
 				ma = dwtCoefs.compose();
@@ -139,72 +954,404 @@ public class Quantization {
 		return new DWTCoefficients(ma, mv, mh, md, map, false);
 	}
 
+	/**
+	 * @param depth decomposition level of the coefs in the stream, 1 for the top level
+	 * @param level target scale
+	 * @return the coefs composed at 1/2^(depth-1) scale, or at 1/2^level scale if depth is not deeper than level
+	 */
+	private Matrix decompressColorFromStream(BitInputStream binInput, int depth, int level) throws IOException {
+		if (depth > level) {
+			return decompressColorFromStream(binInput).compose();
+		}
+		Matrix ma;
+		if (binInput.readBit() == 1) {
+			ma = readMatrixBin(binInput, BinaryFileFormat.getInstanse().DWTCoefValuePull);
+			ma.setTransform(mWavelet);
+		} else {
+			ma = decompressColorFromStream(binInput, depth + 1, level);
+		}
+		// mv, mh, md are finer than the target scale
+		skipHuffman(binInput);
+		skipHuffman(binInput);
+		skipHuffman(binInput);
+		if (binInput.readBit() == 1) {
+			skipMatrixBin(binInput, BinaryFileFormat.getInstanse().AdaptiveMapValuePull);
+		}
+		return ma;
+	}
+
 	// dwt color matrixes level
 	private void huffman(Matrix m, BitOutputStream binOut) throws IOException {
 		Log.getInstance().log(Level.FINER, "\nHuffman codding.");
 		FreqStatistics freqStat = new FreqStatistics(qLEVELS);
 		// quatization & statistics gathering
-		int[] quantizied = processMatrixQuatization(m, freqStat);
+		processMatrixQuatization(m, freqStat);
 
-		List<Boolean> haffmanCode = buildTreeAndCompress(freqStat, quantizied, binOut);
+		// the matrix is quantized again while the codes are written, no buffer of the quantized values
+		buildTableAndCompress(freqStat, m, binOut);
 
-		haffmanCode.clear();
-		quantizied = null;
 		freqStat.free();
 	}
 
 	private Matrix huffmanReverse(BitInputStream binInput, int rows, int columns) throws IOException {
 		Log.getInstance().log(Level.FINER, "\nHuffman decompression.");
 
-		// read HTree
-		// StatisticsTreeEntry mHTree = parseHTree(saveFilename);
-		StatisticsTreeEntry mHTree = parseHTree(binInput);
+		HuffmanDecoder decoder;
+		if (mVersion >= BinaryFileFormat.VERSION_CODE_LENGTHS) {
+			// canonical codes of the levels lengths
+			decoder = HuffmanTable.readLengths(binInput, qLEVELS).getDecoder(unQuantized);
+		} else {
+			// read HTree
+			// StatisticsTreeEntry mHTree = parseHTree(saveFilename);
+			StatisticsTreeEntry mHTree = parseHTree(binInput);
 
-		// get Map Value -> Code
-		HTreeMap codesTree = mHTree.buildCodesMap();
-		Log.getInstance().log(Level.FINER,
-				"Restored codes tree (size = " + mHTree.getTreeBitSize() + "):\n" + codesTree.toString());
+			// lookup tables of the tree codes
+			final int leafs = mHTree.getLeafsCount();
+			final int[] values = new int[leafs], codes = new int[leafs];
+			final byte[] lengths = new byte[leafs];
+			final float[] leafValues = new float[leafs];
+			mHTree.fillCodes(values, codes, lengths, 0, 0, 0);
+			for (int i = 0; i < leafs; i++)
+				leafValues[i] = unQuant(values[i]);
+			decoder = new HuffmanDecoder(codes, lengths, leafValues);
+		}
 
-		Matrix decodedMatrix = null;
-		int count = 0;
 		int hufCodeLength = 0;
 		try {
 			// read huffmanCode
 			hufCodeLength = binInput.readBits(BinaryFileFormat.getInstanse().HCodedDataSizePull);
 			Log.getInstance().log(Level.FINEST, "Restoring Huffman code.. Expecting code length is " + hufCodeLength);
-			List<Boolean> huffmanCodeRestored = new ArrayList<Boolean>();
-
-			for (int i = 0; i < hufCodeLength; i++) {
-				huffmanCodeRestored.add(binInput.readBit() != 0);
-				count++;
-			}
-			Log.getInstance().log(Level.FINER, "Restored Huffman code size is " + huffmanCodeRestored.size());
-
 			// decode Matrix from Haffman codes
-			decodedMatrix = decodeMatrix(rows, columns, huffmanCodeRestored, codesTree);
+			final float[] data = new float[rows * columns];
+			decoder.decode(binInput, hufCodeLength, data, 0, data.length);
+			return new Matrix(data, rows, columns);
 		} catch (IOException e) {
-			Log.getInstance().log(Level.FINEST, "Exception after read bits:" + count + " (" + hufCodeLength + ")");
-			// e.printStackTrace();
+			Log.getInstance().log(Level.FINEST, "Exception while reading " + hufCodeLength + " bits of code");
 			throw e;
 		}
-		return decodedMatrix;
+	}
+
+	private void skipHuffman(BitInputStream binInput) throws IOException {
+		if (mVersion >= BinaryFileFormat.VERSION_CODE_LENGTHS)
+			HuffmanTable.skipLengths(binInput, qLEVELS);
+		else
+			StatisticsTreeEntry.skipTree(binInput);
+		binInput.skipBits(binInput.readBits(BinaryFileFormat.getInstanse().HCodedDataSizePull));
 	}
 
 	// quantization utils
-	private int[] processMatrixQuatization(Matrix m, FreqStatistics freqStat) {
-		int[] quantizied = new int[m.getColumnsCount() * m.getRowsCount()];
+	/**
+	 * Values of a stripe, subbands of more values are quantized and coded by stripes of rows concurrently 
+	 * if {@link #setPool(ForkJoinPool)} is set
+	 */
+	private static final int STRIPE_VALUES = 1 << 16;
+
+	/**
+	 * @return rows of the stripes of the matrix, 0 if it is processed at once
+	 */
+	private int getStripeRows(int rows, int columns) {
+		if (mPool == null || (long) rows * columns < 2 * STRIPE_VALUES)
+			return 0;
+		return Math.max(1, STRIPE_VALUES / Math.max(1, columns));
+	}
+
+	/**
+	 * Frequences of the quantized values, histograms of the stripes are merged
+	 */
+	private void processMatrixQuatization(Matrix m, FreqStatistics freqStat) throws IOException {
+		final int stripeRows = getStripeRows(m.getRowsCount(), m.getColumnsCount());
+		if (stripeRows == 0) {
+			processStripeQuatization(m, freqStat);
+			return;
+		}
+		final List<Callable<FreqStatistics>> tasks = new ArrayList<Callable<FreqStatistics>>();
+		for (int row = 0; row < m.getRowsCount(); row += stripeRows) {
+			final Matrix stripe = m.subMatrix(row, 0, Math.min(stripeRows, m.getRowsCount() - row), m.getColumnsCount());
+			tasks.add(new Callable<FreqStatistics>() {
+				@Override
+				public FreqStatistics call() {
+					final FreqStatistics stripeStat = new FreqStatistics(qLEVELS);
+					processStripeQuatization(stripe, stripeStat);
+					return stripeStat;
+				}
+			});
+		}
+		for (Future<FreqStatistics> result : mPool.invokeAll(tasks))
+			freqStat.add(getResult(result));
+	}
+
+	private void processStripeQuatization(Matrix m, FreqStatistics freqStat) {
 		final int columns = m.getColumnsCount();
-		int b = 0;
+		final int columnStride = m.getColumnStride();
+		final float[] data = m.getData();
+		int k;
 
-		// Quantization and calculating frequences
+		// calculating frequences of the quantized values
 		for (int i = 0; i < m.getRowsCount(); i++) {
-			for (int j = 0; j < columns; j++) {
-				b = quant(m.get()[i][j]);
-				quantizied[i * columns + j] = b;
-				freqStat.push(b);
+			k = m.index(i, 0);
+			for (int j = 0; j < columns; j++, k += columnStride)
+				freqStat.push(quant(data[k]));
+		}
+	}
+
+	/**
+	 * Quantizes the matrix to the symbols and counts them in one pass, stripes of rows concurrently 
+	 * if {@link #setPool(ForkJoinPool)} is set. The symbols of the deadzone quantizer of the level and subband
+	 * @param offset		position of the matrix values in the symbols
+	 * @param histogram		receives count per symbol
+	 */
+	private void quantizeMatrix(Matrix m, final int kind, final int level, final short[] symbols, int offset,
+			int[] histogram) throws IOException {
+		final int stripeRows = getStripeRows(m.getRowsCount(), m.getColumnsCount());
+		if (stripeRows == 0) {
+			quantizeStripe(m, kind, level, symbols, offset, histogram);
+			return;
+		}
+		final int symbolsCount = histogram.length;
+		final List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+		for (int row = 0; row < m.getRowsCount(); row += stripeRows) {
+			final Matrix stripe = m.subMatrix(row, 0, Math.min(stripeRows, m.getRowsCount() - row), m.getColumnsCount());
+			final int stripeOffset = offset + row * m.getColumnsCount();
+			tasks.add(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					final int[] stripeHistogram = new int[symbolsCount];
+					quantizeStripe(stripe, kind, level, symbols, stripeOffset, stripeHistogram);
+					return stripeHistogram;
+				}
+			});
+		}
+		int[] stripeHistogram;
+		for (Future<int[]> result : mPool.invokeAll(tasks)) {
+			stripeHistogram = getResult(result);
+			for (int s = 0; s < symbolsCount; s++)
+				histogram[s] += stripeHistogram[s];
+		}
+	}
+
+	private void quantizeStripe(Matrix m, int kind, int level, short[] symbols, int offset, int[] histogram) {
+		mQuantizer.quantize(m, level, kind, symbols, offset, histogram);
+	}
+
+	/**
+	 * Counts the symbols of the deadzone quantizer and the lengths of the zero level runs of the matrix, 
+	 * stripes of rows concurrently if {@link #setPool(ForkJoinPool)} is set. 
+	 * The symbols are not kept, every row is quantized into a buffer of a row
+	 * @param histogram		receives count per symbol
+	 * @param runLengths	receives count per length of the runs, columns + 1 long
+	 */
+	private void countSymbols(Matrix m, final int kind, final int level, final int zero, int[] histogram, int[] runLengths)
+			throws IOException {
+		final int stripeRows = getStripeRows(m.getRowsCount(), m.getColumnsCount());
+		if (stripeRows == 0) {
+			countStripe(m, kind, level, zero, histogram, runLengths);
+			return;
+		}
+		final int symbolsCount = histogram.length, lengthsCount = runLengths.length;
+		final List<Callable<int[][]>> tasks = new ArrayList<Callable<int[][]>>();
+		for (int row = 0; row < m.getRowsCount(); row += stripeRows) {
+			final Matrix stripe = m.subMatrix(row, 0, Math.min(stripeRows, m.getRowsCount() - row), m.getColumnsCount());
+			tasks.add(new Callable<int[][]>() {
+				@Override
+				public int[][] call() {
+					final int[][] counts = { new int[symbolsCount], new int[lengthsCount] };
+					countStripe(stripe, kind, level, zero, counts[0], counts[1]);
+					return counts;
+				}
+			});
+		}
+		int[][] counts;
+		for (Future<int[][]> result : mPool.invokeAll(tasks)) {
+			counts = getResult(result);
+			for (int s = 0; s < symbolsCount; s++)
+				histogram[s] += counts[0][s];
+			for (int l = 0; l < lengthsCount; l++)
+				runLengths[l] += counts[1][l];
+		}
+	}
+
+	private void countStripe(Matrix m, int kind, int level, int zero, int[] histogram, int[] runLengths) {
+		final int columns = m.getColumnsCount();
+		final short[] row = new short[columns];
+		for (int i = 0; i < m.getRowsCount(); i++) {
+			mQuantizer.quantize(m.subMatrix(i, 0, 1, columns), level, kind, row, 0, histogram);
+			countRuns(row, 0, columns, columns, zero, runLengths);
+		}
+	}
+
+	/**
+	 * Counts the runs of the zero level in the rows of the symbols from..to
+	 * @param runLengths	receives count per length of the runs
+	 */
+	private static void countRuns(short[] symbols, int from, int to, int columns, int zero, int[] runLengths) {
+		int run;
+		for (int row = from; row < to; row += columns) {
+			run = 0;
+			for (int i = row; i < row + columns; i++) {
+				if (symbols[i] == zero) {
+					run++;
+				} else if (run > 0) {
+					runLengths[run]++;
+					run = 0;
+				}
+			}
+			if (run > 0)
+				runLengths[run]++;
+		}
+	}
+
+	/**
+	 * @param frequencies	histogram of the zero runs symbols
+	 * @return zero runs symbols of the quantized values row by row
+	 */
+	private static short[] getRunSymbols(short[] quantized, int columns, ZeroRuns runs, int[] frequencies) {
+		long count = 0;
+		for (int frequency : frequencies)
+			count += frequency;
+		final short[] symbols = new short[(int) count];
+		final int zero = runs.getZero();
+		int run, n = 0;
+
+		for (int row = 0; row < quantized.length; row += columns) {
+			run = 0;
+			for (int i = row; i < row + columns; i++) {
+				if (quantized[i] == zero) {
+					run++;
+				} else {
+					if (run > 0) {
+						n = runs.put(run, symbols, n);
+						run = 0;
+					}
+					symbols[n++] = quantized[i];
+				}
 			}
+			if (run > 0)
+				n = runs.put(run, symbols, n);
+		}
+		return symbols;
+	}
+
+	/**
+	 * Writes the codes of the quantized matrix values straight to the stream. 
+	 * Stripes are coded concurrently to their own buffers and joined at the bit positions of the serial codes
+	 */
+	private void encodeMatrix(Matrix m, final HuffmanTable table, BitOutputStream binOut) throws IOException {
+		final int stripeRows = getStripeRows(m.getRowsCount(), m.getColumnsCount());
+		if (stripeRows == 0) {
+			encodeStripe(m, table, binOut);
+			return;
+		}
+		final List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+		final long[] bits = new long[(m.getRowsCount() + stripeRows - 1) / stripeRows];
+		for (int row = 0; row < m.getRowsCount(); row += stripeRows) {
+			final Matrix stripe = m.subMatrix(row, 0, Math.min(stripeRows, m.getRowsCount() - row), m.getColumnsCount());
+			final int index = row / stripeRows;
+			tasks.add(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					final BitOutputStream stripeOut = new BitOutputStream(buffer);
+					encodeStripe(stripe, table, stripeOut);
+					bits[index] = stripeOut.getBitsCount();
+					stripeOut.flush();
+					return buffer.toByteArray();
+				}
+			});
+		}
+		final List<Future<byte[]>> stripes = mPool.invokeAll(tasks);
+		for (int i = 0; i < bits.length; i++)
+			binOut.writeBits(getResult(stripes.get(i)), bits[i]);
+	}
+
+	private void encodeStripe(Matrix m, HuffmanTable table, BitOutputStream binOut) throws IOException {
+		final int columns = m.getColumnsCount();
+		final int columnStride = m.getColumnStride();
+		final float[] data = m.getData();
+		int b, k;
+
+		for (int i = 0; i < m.getRowsCount(); i++) {
+			k = m.index(i, 0);
+			for (int j = 0; j < columns; j++, k += columnStride) {
+				b = quant(data[k]);
+				binOut.writeBits(table.getCode(b), (short) table.getLength(b));
+			}
+		}
+	}
+
+	/**
+	 * Quantizes the matrix row by row and writes the codes straight to the stream, 
+	 * stripes of rows are coded concurrently the way {@link #encodeMatrix(Matrix, HuffmanTable, BitOutputStream)} does
+	 * @param runs	the table codes the zero runs symbols of them, may be null
+	 */
+	private void encodeSubband(Matrix m, final int kind, final int level, final HuffmanTable table, final ZeroRuns runs,
+			BitOutputStream binOut) throws IOException {
+		final int stripeRows = getStripeRows(m.getRowsCount(), m.getColumnsCount());
+		if (stripeRows == 0) {
+			encodeSubbandStripe(m, kind, level, table, runs, binOut);
+			return;
+		}
+		final List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+		final long[] bits = new long[(m.getRowsCount() + stripeRows - 1) / stripeRows];
+		for (int row = 0; row < m.getRowsCount(); row += stripeRows) {
+			final Matrix stripe = m.subMatrix(row, 0, Math.min(stripeRows, m.getRowsCount() - row), m.getColumnsCount());
+			final int index = row / stripeRows;
+			tasks.add(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					final BitOutputStream stripeOut = new BitOutputStream(buffer);
+					encodeSubbandStripe(stripe, kind, level, table, runs, stripeOut);
+					bits[index] = stripeOut.getBitsCount();
+					stripeOut.flush();
+					return buffer.toByteArray();
+				}
+			});
+		}
+		final List<Future<byte[]>> stripes = mPool.invokeAll(tasks);
+		for (int i = 0; i < bits.length; i++)
+			binOut.writeBits(getResult(stripes.get(i)), bits[i]);
+	}
+
+	private void encodeSubbandStripe(Matrix m, int kind, int level, HuffmanTable table, ZeroRuns runs, BitOutputStream binOut)
+			throws IOException {
+		final int columns = m.getColumnsCount();
+		final short[] row = new short[columns];
+		final int[] histogram = new int[2 * DeadzoneQuantizer.getMaxLevel(mQuantizer.getStep(level, kind)) + 1];
+		for (int i = 0; i < m.getRowsCount(); i++) {
+			mQuantizer.quantize(m.subMatrix(i, 0, 1, columns), level, kind, row, 0, histogram);
+			encodeRows(row, 0, columns, columns, table, runs, binOut);
+		}
+	}
+
+	private static void encodeRows(short[] quantized, int from, int to, int columns, HuffmanTable table, ZeroRuns runs,
+			BitOutputStream binOut) throws IOException {
+		int b;
+		if (runs == null) {
+			for (int i = from; i < to; i++) {
+				b = quantized[i];
+				binOut.writeBits(table.getCode(b), (short) table.getLength(b));
+			}
+			return;
+		}
+		final int zero = runs.getZero();
+		int run;
+		for (int row = from; row < to; row += columns) {
+			run = 0;
+			for (int i = row; i < row + columns; i++) {
+				b = quantized[i];
+				if (b == zero) {
+					run++;
+				} else {
+					if (run > 0) {
+						runs.write(run, table, binOut);
+						run = 0;
+					}
+					binOut.writeBits(table.getCode(b), (short) table.getLength(b));
+				}
+			}
+			if (run > 0)
+				runs.write(run, table, binOut);
 		}
-		return quantizied;
 	}
 
 	private int quant(float f) {
@@ -223,67 +1370,36 @@ public class Quantization {
 
 	// Huffman compression
 
-	private List<Boolean> buildTreeAndCompress(FreqStatistics freqStat, int[] quantizied, BitOutputStream binOut)
+	private void buildTableAndCompress(FreqStatistics freqStat, Matrix m, BitOutputStream binOut)
 			throws IOException {
-		// sort by freqs
-		freqStat.sort();
-		Log.getInstance().log(Level.FINEST, "buildTreeAndCompress, sorted, frequences:\n" + freqStat.toString());
+		// code lengths of the Huffman code, canonical codes
+		HuffmanTable table = HuffmanTable.build(freqStat, mMaxCodeLength);
+		Log.getInstance().log(Level.FINER, table.toString());
 
-		// build tree
-		StatisticsTreeEntry treeRoot = freqStat.buildTree();
-
-		// insert next block size
-		int treeBitsLength = treeRoot.getTreeBitSize();
-		if (BinaryFileFormat.getInstanse().toSaveTreeSize) {
-			binOut.writeBits(treeBitsLength, BinaryFileFormat.getInstanse().HTreeSizePull);
+		int treeBitsLength = -1;
+		if (mVersion >= BinaryFileFormat.VERSION_CODE_LENGTHS) {
+			table.writeLengths(binOut);
+		} else {
+			// insert next block size
+			treeBitsLength = table.getTreeBitSize();
+			if (BinaryFileFormat.getInstanse().toSaveTreeSize) {
+				binOut.writeBits(treeBitsLength, BinaryFileFormat.getInstanse().HTreeSizePull);
+			}
+			table.writeTree(binOut);
 		}
 
-		// TODO Convert HTree to output format
-		treeRoot.toBits(binOut); // should write treeRoot.getTreeBitSize() bits
-									// of data
-
-		// get Map Value -> Code
-		HTreeMap codesTree = treeRoot.buildCodesMap();
-		Log.getInstance().log(Level.FINER, codesTree.toString());
-
-		// process quantizied Matrix with H-Tree, ?and compress
-		List<Boolean> huffmanCode = processCompression(codesTree, quantizied);
-		// System.out.println("Decoded by Haffman, bytes ");
-
-		// output huffman-processed values
-		binOut.writeBits(huffmanCode.size(), BinaryFileFormat.getInstanse().HCodedDataSizePull);
-		int count = 0;
-		for (Boolean b : huffmanCode) {
-			binOut.writeBit(b ? 1 : 0);
-			count++;
-			// binOut.writeBits(b?1:0, (short)1);
-		}
+		// output huffman-processed values, the length is known from the frequences
+		long codeLength = table.getBitsCount(freqStat);
+		if (codeLength >= 1L << BinaryFileFormat.getInstanse().HCodedDataSizePull)
+			throw new IOException("Huffman code of " + codeLength + " bits does not fit "
+					+ BinaryFileFormat.getInstanse().HCodedDataSizePull + " bits of the code size");
+		binOut.writeBits((int) codeLength, BinaryFileFormat.getInstanse().HCodedDataSizePull);
+		encodeMatrix(m, table, binOut);
 
 		Log.getInstance().log(
 				Level.FINER,
-				"buildTreeAndCompress, huffmanCode (size=" + huffmanCode.size() + " bits, max="
-						+ Math.pow(2, BinaryFileFormat.getInstanse().HCodedDataSizePull) + "), " + count
-						+ " was output to stream. Tree size = " + treeBitsLength);
-		// TODO assemble formated HTree and compressed HCode
-
-		return huffmanCode;
-	}
-
-	private List<Boolean> processCompression(HTreeMap codesTree, int[] quantizied) {
-		assert quantizied != null;
-		// StringBuilder sb = new StringBuilder();
-		// boolean[] bits = null;
-		// List<Boolean> bits = null;
-		List<Boolean> haffmanCode = new ArrayList<Boolean>();
-		for (int i = 0; i < quantizied.length; i++) {
-			// bits = codes.getBits(quantizied[i]);
-			// haffmanCode.addAll(bits);
-			// bits.clear();
-			haffmanCode.addAll(codesTree.getBits(quantizied[i]));
-		}
-		// TODO ?compress haffmanCode
-
-		return haffmanCode;
+				"buildTableAndCompress, huffmanCode (size=" + codeLength + " bits, max="
+						+ Math.pow(2, BinaryFileFormat.getInstanse().HCodedDataSizePull) + "). Tree size = " + treeBitsLength);
 	}
 
 	// Huffman decompression
@@ -295,27 +1411,6 @@ public class Quantization {
 		return StatisticsTreeEntry.readTree(binIn);
 	}
 
-	private Matrix decodeMatrix(int rowsCount, int columnsCount, List<Boolean> haffmanCodes, HTreeMap codesTree)
-			throws IllegalFormatFlagsException {
-		String code = "";
-		int[] values = new int[rowsCount * columnsCount];
-		int index = 0, val;
-		for (Boolean b : haffmanCodes) {
-			code += (b ? '1' : '0');
-			if ((val = codesTree.getValue(code)) < 0) {
-				if (val == -2)
-					throw new IllegalFormatFlagsException("The bits consequence not found in Hafmman tree: \"" + code
-							+ "\"");
-			} else {
-				values[index++] = unQuant(val); // reverse quantization
-				code = "";
-			}
-		}
-		final Matrix m = new Matrix(rowsCount, columnsCount).buildMatrix(values);
-		values = null;
-		return m;
-	}
-
 	// non quantization utils
 	private void matrixToBin(Matrix m, BitOutputStream binOut, short valuePull) throws IOException {
 		Log.getInstance().log(Level.FINER, "\nMatrixToBin.");
@@ -343,4 +1438,10 @@ public class Quantization {
 		return res;
 	}
 
+	private void skipMatrixBin(BitInputStream binInput, short valuePull) throws IOException {
+		int rows = binInput.readBits(BinaryFileFormat.getInstanse().imageSizeValuePull);
+		int columns = binInput.readBits(BinaryFileFormat.getInstanse().imageSizeValuePull);
+		binInput.skipBits((long) rows * columns * valuePull);
+	}
+
 }
@@ -0,0 +1,238 @@
+package math.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table based rANS coder with byte renormalization. Frequencies are scaled to 2^PROB_BITS,
+ * so a symbol takes a fraction of a bit: the near zero value of the detail subbands is far cheaper than 1 bit of Huffman code.
+ * Symbols go to STATES interleaved states (symbol i to the state i % STATES),
+ * their updates are independent, so decoding keeps several of them in flight.
+ *
+ * Coded bytes: [frequency per symbol (varint), 0 [zero frequencies count - 1](varint) for runs of unused symbols]
+ * [states](4 bytes each, little endian)[renormalization bytes]
+ */
+public class RansCoder implements EntropyCoder {
+	public static final int ID = 1;
+	public static final int PROB_BITS = 12;
+	public static final int STATES = 4;
+
+	private static final int PROB_SCALE = 1 << PROB_BITS;
+	/**
+	 * Lower bound of the normalized states
+	 */
+	private static final int RANS_L = 1 << 23;
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public long estimateBits(int [] frequencies) {
+		final int [] probs = normalize(frequencies);
+		if (probs == null)
+			return Long.MAX_VALUE;
+		double bits = 0;
+		for (int v = 0; v < frequencies.length; v++)
+			if (frequencies[v] > 0)
+				bits += frequencies[v] * (PROB_BITS - Math.log(probs[v]) / Math.log(2));
+		return (long) Math.ceil(bits) + 8L * (getTableSize(probs) + 4 * STATES);
+	}
+
+	/**
+	 * Frequencies scaled to the sum of 2^PROB_BITS, every used value keeps at least 1
+	 * @return probability per value, null if more values are used than the scale holds
+	 */
+	static int [] normalize(int [] frequencies) {
+		long total = 0;
+		int used = 0, max = -1;
+		for (int v = 0; v < frequencies.length; v++) {
+			if (frequencies[v] > 0) {
+				total += frequencies[v];
+				used++;
+				if (max < 0 || frequencies[v] > frequencies[max]) max = v;
+			}
+		}
+		final int [] probs = new int[frequencies.length];
+		if (used == 0)
+			return probs;
+		if (used > PROB_SCALE)
+			return null;
+		int sum = 0;
+		for (int v = 0; v < frequencies.length; v++) {
+			if (frequencies[v] > 0) {
+				probs[v] = (int) Math.max(1, (long) frequencies[v] * PROB_SCALE / total);
+				sum += probs[v];
+			}
+		}
+		// the most frequent value takes the rounding, others give up their surplus if it is not enough
+		probs[max] += PROB_SCALE - sum;
+		for (int v = 0; probs[max] < 1; v = (v + 1) % probs.length) {
+			if (v != max && probs[v] > 1) {
+				probs[v]--;
+				probs[max]++;
+			}
+		}
+		return probs;
+	}
+
+	private static int getTableSize(int [] probs) {
+		int size = 0, run;
+		for (int v = 0; v < probs.length; ) {
+			if (probs[v] > 0) {
+				size += ChunkIndex.getVarintSize(probs[v]);
+				v++;
+			} else {
+				for (run = 1; v + run < probs.length && probs[v + run] == 0; run++);
+				size += 1 + ChunkIndex.getVarintSize(run - 1);
+				v += run;
+			}
+		}
+		return size;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while (value >= 0x80) {
+			out.write((int) value | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(ByteBuffer in) throws IOException {
+		long value = 0;
+		int b;
+		for (int shift = 0; shift < 64; shift += 7) {
+			b = readByte(in);
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Varint is longer than 64 bits");
+	}
+
+	/**
+	 * @return next byte of the chunk
+	 * @throws IOException if the chunk is truncated
+	 */
+	private static int readByte(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining())
+			throw new IOException("rANS chunk is truncated");
+		return in.get() & 0xFF;
+	}
+
+	@Override
+	public byte [] encode(short [] symbols, int count, int [] frequencies) throws IOException {
+		final int [] probs = normalize(frequencies);
+		if (probs == null)
+			throw new IOException("More than " + PROB_SCALE + " values are used");
+		final int [] cums = new int[probs.length];
+		for (int v = 1; v < probs.length; v++)
+			cums[v] = cums[v - 1] + probs[v - 1];
+
+		final ByteArrayOutputStream table = new ByteArrayOutputStream();
+		int run;
+		for (int v = 0; v < probs.length; ) {
+			if (probs[v] > 0) {
+				writeVarint(table, probs[v]);
+				v++;
+			} else {
+				for (run = 1; v + run < probs.length && probs[v + run] == 0; run++);
+				table.write(0);
+				writeVarint(table, run - 1);
+				v += run;
+			}
+		}
+
+		// symbols are coded backwards, the bytes are emitted backwards: decoding goes forward
+		final long [] states = new long[STATES];
+		for (int k = 0; k < STATES; k++)
+			states[k] = RANS_L;
+		byte [] emitted = new byte[Math.max(64, count / 4)];
+		int emittedCount = 0, k, v, prob;
+		long x;
+		for (int i = count - 1; i >= 0; i--) {
+			v = symbols[i];
+			prob = probs[v];
+			k = i & (STATES - 1);
+			x = states[k];
+			final long max = ((long) (RANS_L >> PROB_BITS) << 8) * prob;
+			while (x >= max) {
+				if (emittedCount == emitted.length)
+					emitted = Arrays.copyOf(emitted, emitted.length * 2);
+				emitted[emittedCount++] = (byte) x;
+				x >>>= 8;
+			}
+			states[k] = ((x / prob) << PROB_BITS) + (x % prob) + cums[v];
+		}
+
+		final byte [] coded = new byte[table.size() + 4 * STATES + emittedCount];
+		System.arraycopy(table.toByteArray(), 0, coded, 0, table.size());
+		int position = table.size();
+		for (k = 0; k < STATES; k++)
+			for (int b = 0; b < 4; b++)
+				coded[position++] = (byte) (states[k] >>> (8 * b));
+		while (emittedCount > 0)
+			coded[position++] = emitted[--emittedCount];
+		return coded;
+	}
+
+	@Override
+	public void decode(ByteBuffer coded, float [] symbolValues, int [] symbolRuns, float [] output) throws IOException {
+		final int [] probs = new int[symbolValues.length];
+		for (int v = 0; v < probs.length; ) {
+			final int prob = (int) readVarint(coded);
+			if (prob > 0)
+				probs[v++] = prob;
+			else
+				v += (int) readVarint(coded) + 1;
+		}
+		// slot of the scale -> symbol, probability and cumulative probability
+		final int [] slotValues = new int[PROB_SCALE];
+		final int [] slotProbs = new int[PROB_SCALE];
+		final int [] slotStarts = new int[PROB_SCALE];
+		int cum = 0;
+		for (int v = 0; v < probs.length; v++) {
+			for (int s = cum; s < cum + probs[v] && s < PROB_SCALE; s++) {
+				slotValues[s] = v;
+				slotProbs[s] = probs[v];
+				slotStarts[s] = cum;
+			}
+			cum += probs[v];
+		}
+		if (output.length > 0 && cum != PROB_SCALE)
+			throw new IOException("rANS probabilities sum to " + cum);
+
+		final int [] states = new int[STATES];
+		if (coded.remaining() < 4 * STATES)
+			throw new IOException("rANS chunk is truncated");
+		for (int k = 0; k < STATES; k++)
+			states[k] = coded.get() & 0xFF | (coded.get() & 0xFF) << 8 | (coded.get() & 0xFF) << 16 | (coded.get() & 0xFF) << 24;
+		int x, slot, symbol, run;
+		for (int i = 0, n = 0; i < output.length; n++) {
+			final int k = n & (STATES - 1);
+			x = states[k];
+			slot = x & (PROB_SCALE - 1);
+			symbol = slotValues[slot];
+			run = symbolRuns == null ? 1 : symbolRuns[symbol];
+			if (run == 1) {
+				output[i++] = symbolValues[symbol];
+			} else {
+				if (i + run > output.length)
+					throw new IOException("Run of " + run + " values past the end of the subband at " + i);
+				Arrays.fill(output, i, i + run, symbolValues[symbol]);
+				i += run;
+			}
+			x = slotProbs[slot] * (x >>> PROB_BITS) + slot - slotStarts[slot];
+			while (x < RANS_L)
+				x = (x << 8) | readByte(coded);
+			states[k] = x;
+		}
+		for (int k = 0; k < STATES; k++)
+			if (states[k] != RANS_L)
+				throw new IOException("rANS state " + k + " is not restored");
+	}
+}
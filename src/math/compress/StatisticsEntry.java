@@ -1,19 +1,14 @@
 package math.compress;
 
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.logging.Level;
 
 import math.compress.utils.BinaryFileFormat;
 import math.compress.utils.BitInputStream;
-import math.compress.utils.BitOutputStream;
 import math.utils.Log;
 
-public class StatisticsEntry implements Comparable<StatisticsEntry>{
+public class StatisticsEntry {
 	private int value = -1;
 	protected int frequency = 0;
 	public StatisticsEntry(int val){
@@ -23,13 +18,6 @@ public class StatisticsEntry implements Comparable<StatisticsEntry>{
 		value = entry.value;
 		frequency = entry.frequency;
 	}
-	public void inc(){
-		frequency++;
-	}
-	@Override
-	public int compareTo(StatisticsEntry o) {
-		return frequency - o.getFrequency();
-	}
 	public int getValue() {
 		return value;
 	}
@@ -44,9 +32,12 @@ public class StatisticsEntry implements Comparable<StatisticsEntry>{
 	
 }
 
+/**
+ * Huffman tree of the VERSION_TREE files, read by the decoder only
+ */
 class StatisticsTreeEntry extends StatisticsEntry {
 	/**
-	 * Leafs, used to assemble code=-string
+	 * Leafs
 	 * @param entry
 	 */
 	public StatisticsTreeEntry(StatisticsEntry entry) {
@@ -54,10 +45,9 @@ class StatisticsTreeEntry extends StatisticsEntry {
 		leftLeaf = rightLeaf = null;
 	}
 	
-	private String code = "";
 	private StatisticsTreeEntry leftLeaf, rightLeaf;
 	/**
-	 * Nodes, used to build tree, that recursively concatinate codes 
+	 * Nodes
 	 * @param left
 	 * @param right
 	 */
@@ -66,118 +56,34 @@ class StatisticsTreeEntry extends StatisticsEntry {
 		leftLeaf = left;
 		rightLeaf = right;
 		
-		leftLeaf.addPrefix('1');
-		rightLeaf.addPrefix('0');
-		
 		frequency = left.frequency + right.frequency;
 	}
 	
-	public static StatisticsTreeEntry buildTree(ArrayList<StatisticsEntry> items){
-		StatisticsTreeEntry treeRoot = null, minLeaf1, minLeaf2;
-		StatisticsEntry item1, item2;
-		while (items.size() > 1){
-			item1 = items.remove(0);
-			item2 = items.remove(0);
-			minLeaf1 = (item1 instanceof StatisticsTreeEntry)?(StatisticsTreeEntry) item1:new StatisticsTreeEntry(item1);
-			minLeaf2 = (item2 instanceof StatisticsTreeEntry)?(StatisticsTreeEntry) item2:new StatisticsTreeEntry(item2);
-			treeRoot = new StatisticsTreeEntry(minLeaf1, minLeaf2);
-//			System.out.println(items.size()+" items, leaf1="+minLeaf1+", leaf2="+minLeaf2+", node="+treeRoot);
-			items.add(treeRoot);
-			Collections.sort(items); 
-		}
-		items.clear();
-		return treeRoot;
-	}
-	private void addPrefix(char c){
-		code=c+code;
-		if (leftLeaf!=null)  leftLeaf.addPrefix(c);
-		if (rightLeaf!=null) rightLeaf.addPrefix(c);
+	public int getLeafsCount(){
+		if (leftLeaf==null && rightLeaf==null) return 1;
+		return leftLeaf.getLeafsCount() + rightLeaf.getLeafsCount();
 	}
 	
-//	private HTreeMap mHTreeMap;
-	public HTreeMap buildCodesMap(){
-//		mHTreeMap = map;
-		HTreeMap map = new HTreeMap(); 
-		assembleCodesTree(this, map);
-		return map;
-	}
-
-	// TODO benchmark speed with HTreeMap in params and as a class property
-	private void assembleCodesTree(StatisticsTreeEntry node, HTreeMap mHTreeMap){
-		if (node==null) return;
-		if (node.leftLeaf==null && node.rightLeaf==null){ //this is a leaf
-			mHTreeMap.add(node.getValue(), node.code);
-//			System.out.print(node);
-		} else { //this a node
-			assembleCodesTree(node.rightLeaf, mHTreeMap);
-			assembleCodesTree(node.leftLeaf, mHTreeMap);
+	/**
+	 * Lists leafs of the tree with their codes, '0' branch is the right leaf
+	 * @param values	value per leaf
+	 * @param codes		code per leaf, the first bit is the highest one
+	 * @param lengths	code length per leaf
+	 * @param index		index of the next leaf
+	 * @return index of the next leaf after this subtree
+	 */
+	int fillCodes(int [] values, int [] codes, byte [] lengths, int index, int code, int depth){
+		if (leftLeaf==null && rightLeaf==null){ //this is a leaf
+			values[index] = getValue();
+			codes[index] = code;
+			lengths[index] = (byte) depth;
+			return index+1;
 		}
+		index = rightLeaf.fillCodes(values, codes, lengths, index, code << 1, depth+1);
+		return leftLeaf.fillCodes(values, codes, lengths, index, (code << 1) | 1, depth+1);
 	}
 	
 	private final static String objectFilename = "tree.txt";
-	private BitOutputStream bitStream;
-	private StringBuilder bitString;
-	public void toBits(BitOutputStream binOut){
-//		List<Boolean> bits = new ArrayList<Boolean>();
-		try {
-			if (binOut!=null) {
-				bitStream = binOut;
-			} else {
-				Log.getInstance().log(Level.WARNING,"HuffmanTree toBits() binOut is null, writing to "/*+saveFilename+objectFilename*/);
-				return;
-//				bitStream = new BitOutputStream(new FileOutputStream(saveFilename+objectFilename));
-			}
-			bitString = new StringBuilder();
-			toBits(this);
-			if (binOut==null) bitStream.close();
-			Log.getInstance().log(Level.FINER,"Tree in bits (size = "+getTreeBitSize()+"):\n"+bitString.toString());
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-//		return bos.;
-	}
-	
-	private void toBits(StatisticsTreeEntry node) throws IOException{
-		if (node==null || bitStream==null) return;
-		if (node.leftLeaf==null && node.rightLeaf==null){ //this is a leaf
-//			mHTreeMap.add(node.getValue(), node.code);
-//			System.out.print(node);
-//			bits.add(false);	//is leaf
-
-			bitStream.writeBit(0);
-			//FIXME customize second parameter - estimate node's value bounds
-			bitStream.writeBits(node.getValue(), BinaryFileFormat.getInstanse().HTreeValuePull);
-			
-			bitString.append("0[");
-			bitString.append(node.getValue()+"] ");
-		} else { //this a node
-			bitStream.writeBit(1);	//this is Node
-			bitString.append("1 ");
-			
-			bitStream.writeBit(0); 	//parse Left child
-			bitString.append('0');
-			toBits(node.rightLeaf);
-			bitStream.writeBit(1);	//parse Right child
-			bitString.append('1');
-			toBits(node.leftLeaf);
-		}
-	}
-	
-	public int getTreeBitSize(){
-		return getTreeBitSize(this);
-	}
-	private int getTreeBitSize(StatisticsTreeEntry node){
-		if (node==null) return 0;
-		if (node.leftLeaf==null && node.rightLeaf==null){ //this is a leaf
-			return BinaryFileFormat.getInstanse().HTreeValuePull+1;
-		} else { //this a node
-			return 1+1+getTreeBitSize(node.rightLeaf)+1+getTreeBitSize(node.rightLeaf);
-		}
-	}
-	
 	public static StatisticsTreeEntry readTree(String saveFilename){
 		try {
 			BitInputStream bis = new BitInputStream(new FileInputStream(saveFilename+objectFilename));
@@ -202,6 +108,24 @@ class StatisticsTreeEntry extends StatisticsEntry {
 		}
 		return null;
 	}
+	/**
+	 * Moves the stream past a tree written by HuffmanTable.writeTree() without building it
+	 */
+	public static void skipTree(BitInputStream binIn) throws IOException{
+		if (BinaryFileFormat.getInstanse().toSaveTreeSize) 
+			binIn.readBits(BinaryFileFormat.getInstanse().HTreeSizePull);
+		skipNextNode(binIn);
+	}
+	private static void skipNextNode(BitInputStream bis) throws IOException{
+		if (bis.readBit() == 0)	//leaf
+			bis.skipBits(BinaryFileFormat.getInstanse().HTreeValuePull);
+		else {
+			bis.readBit();
+			skipNextNode(bis);
+			bis.readBit();
+			skipNextNode(bis);
+		}
+	}
 	private static StatisticsTreeEntry readNextNode(BitInputStream bis) throws IOException{
 		int b = bis.readBit(); //type of the node
 		if (b == 0)	//is leaf. Reading value
@@ -217,10 +141,6 @@ class StatisticsTreeEntry extends StatisticsEntry {
 	}
 	
 	
-	@Override
-	public String toString() {
-		return super.toString()+" \""+code+"\"; ";
-	}
 //	public int countSubnotes(StatisticsTreeEntry entry){
 //		if (entry==null) return 0;
 //		int c = countSubnotes(entry.leftLeaf);
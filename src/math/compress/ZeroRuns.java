@@ -0,0 +1,122 @@
+package math.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import math.compress.utils.BitOutputStream;
+
+/**
+ * Zero run symbols of the quantized detail subbands (BinaryFileFormat.VERSION_CONTAINER).
+ * The alphabet is the quantization levels followed by RUN_SYMBOLS run symbols, the run symbol k stands for 2^(k+1) zero bins.
+ * A run of the zero bin is split into the run symbols of its bits, the biggest first, an odd zero bin is coded as itself.
+ * Runs do not cross the rows, so restart segments and stripes of rows are coded the same way as the whole subband
+ */
+public class ZeroRuns {
+	public static final int RUN_SYMBOLS = 15;
+
+	private final int levels, zero;
+
+	/**
+	 * @param levels	quantization levels count
+	 * @param zero		quantization level of the zero value
+	 */
+	public ZeroRuns(int levels, int zero) {
+		this.levels = levels;
+		this.zero = zero;
+	}
+
+	public int getZero() {
+		return zero;
+	}
+
+	/**
+	 * @return quantization levels count
+	 */
+	public int getLevelsCount() {
+		return levels;
+	}
+
+	/**
+	 * @return quantization levels and run symbols count
+	 */
+	public int getSymbolsCount() {
+		return levels + RUN_SYMBOLS;
+	}
+
+	/**
+	 * @param levelValues	restored value per quantization level
+	 * @return restored value per symbol, the zero bin value for the run symbols
+	 */
+	public float [] getSymbolValues(float [] levelValues) {
+		final float [] values = Arrays.copyOf(levelValues, getSymbolsCount());
+		Arrays.fill(values, levels, values.length, levelValues[zero]);
+		return values;
+	}
+
+	/**
+	 * @return zero bins count per symbol, 1 for the quantization levels
+	 */
+	public int [] getSymbolRuns() {
+		final int [] runs = new int[getSymbolsCount()];
+		Arrays.fill(runs, 0, levels, 1);
+		for (int k = 0; k < RUN_SYMBOLS; k++)
+			runs[levels + k] = 2 << k;
+		return runs;
+	}
+
+	/**
+	 * @param freqStat		frequences of the quantization levels
+	 * @param runLengths	count per length of the runs of the zero bin, from 1
+	 * @return frequences of the symbols
+	 */
+	public FreqStatistics getRunStatistics(FreqStatistics freqStat, int [] runLengths) {
+		final FreqStatistics runStat = new FreqStatistics(getSymbolsCount());
+		final int [] frequencies = runStat.getFrequencies();
+		System.arraycopy(freqStat.getFrequencies(), 0, frequencies, 0, levels);
+		frequencies[zero] = 0;
+		int count;
+		for (int run = 1; run < runLengths.length; run++) {
+			if ((count = runLengths[run]) == 0)
+				continue;
+			frequencies[levels + RUN_SYMBOLS - 1] += (run >>> RUN_SYMBOLS) * count;
+			for (int k = RUN_SYMBOLS - 2; k >= 0; k--)
+				if ((run & (2 << k)) != 0)
+					frequencies[levels + k] += count;
+			if ((run & 1) != 0)
+				frequencies[zero] += count;
+		}
+		return runStat;
+	}
+
+	/**
+	 * Writes the codes of the symbols of the run
+	 */
+	public void write(int run, HuffmanTable table, BitOutputStream binOut) throws IOException {
+		int symbol = levels + RUN_SYMBOLS - 1;
+		for (int n = run >>> RUN_SYMBOLS; n > 0; n--)
+			binOut.writeBits(table.getCode(symbol), (short) table.getLength(symbol));
+		for (int k = RUN_SYMBOLS - 2; k >= 0; k--) {
+			if ((run & (2 << k)) != 0) {
+				symbol = levels + k;
+				binOut.writeBits(table.getCode(symbol), (short) table.getLength(symbol));
+			}
+		}
+		if ((run & 1) != 0)
+			binOut.writeBits(table.getCode(zero), (short) table.getLength(zero));
+	}
+
+	/**
+	 * Puts the symbols of the run to the array
+	 * @return symbols count with the run
+	 */
+	public int put(int run, short [] symbols, int count) {
+		for (int n = run >>> RUN_SYMBOLS; n > 0; n--)
+			symbols[count++] = (short) (levels + RUN_SYMBOLS - 1);
+		for (int k = RUN_SYMBOLS - 2; k >= 0; k--)
+			if ((run & (2 << k)) != 0)
+				symbols[count++] = (short) (levels + k);
+		if ((run & 1) != 0)
+			symbols[count++] = (short) zero;
+		return count;
+	}
+}
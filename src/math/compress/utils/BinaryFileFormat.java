@@ -1,7 +1,14 @@
 package math.compress.utils;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 public class BinaryFileFormat {
 	/*
+	 * 	Header (VERSION_CODE_LENGTHS and later, no header for VERSION_TREE) ->
+	 * [MAGIC](3 bytes)[version](1 byte)
 	 * 	Coefs ->
 	 * 		RED ->
 	 * 			ma
@@ -11,6 +18,8 @@ public class BinaryFileFormat {
 	 * 				ma2 ->  --||--
 	 * 			mv ->
 	 * [tree](HTreeValuePull*tree_size)[h.codesize](HCodedDataSizePull)[h.code](h.codesize)
+	 * 				tree of VERSION_CODE_LENGTHS, canonical codes lengths of the quantization levels ->
+	 * 1[length-1](CodeLengthPull) for used levels, 0[unused levels-1](ZeroRunPull) for runs of unused ones
 	 * 			mh -> 
 	 * 			md ->
 	 * 			transforms matrix
@@ -19,8 +28,52 @@ public class BinaryFileFormat {
 	 * 		GREEN -> 
 	 * 		BLUE ->
 	 * 		 
+	 * 	Strips file (streaming encoder) ->
+	 * 		Header
+	 * [width](StripSizeValuePull)[height](StripSizeValuePull)[strip rows](StripSizeValuePull)
+	 * 		strip -> Coefs of the strip, as above
+	 * 		strip -> ..
+	 * 
+	 * 	Container (VERSION_CONTAINER), byte aligned, sizes are varints (7 bits per byte, the lowest go first) ->
+	 * 		Coefs ->
+	 * [wavelet caption length][wavelet caption](UTF-8)[levels][qLEVELS][channels]
+	 * [chunk bytes]..(per chunk in the order below, the chunk sizes included)
+	 * 			channel -> chunks of the levels, the deepest one first ->
+	 * 				ma of the deepest level -> [rows][columns][bytes][bindata](DWTCoefValuePull*rows*columns)
+	 * 				level ->
+	 * 					mv -> [rows][columns][bytes][step](float, 4 bytes)[max level][symbols] then
+	 * 						[quantization level] of all the values for the symbols 2, otherwise
+	 * 						[coder id] of the symbols 0 (quantized values) or 1 (levels and zero runs, math.compress.ZeroRuns) ->
+	 * 						coder 0 -> [code lengths, as above](padded to a byte)[restart rows, 0 for one segment]
+	 * 						[segment bytes]..(all but the last segment)[h.code of the segment rows](padded to a byte)..
+	 * 						other coders -> the coded bytes of the math.compress.EntropyCoder
+	 * 						the levels are the symbols of math.compress.DeadzoneQuantizer of the step and max level
+	 * 					mh ->
+	 * 					md ->
+	 * 					transforms matrix -> [rows][columns][bytes][bindata](AdaptiveMapValuePull*rows*columns), 0 rows if none
+	 * 				level -> ..
+	 * 			channel -> ..
+	 * 		Strips file -> Header [width][height][strip rows] Coefs of the strips
+	 * 	chunk data is padded to a whole byte and counted by [bytes]
 	 */
 	private static BinaryFileFormat instanse;
+	
+	public static final byte [] MAGIC = {'A', 'H', 'R'};
+	/**
+	 * Pre-order Huffman trees, files without header
+	 */
+	public static final int VERSION_TREE = 0;
+	/**
+	 * Canonical Huffman codes lengths
+	 */
+	public static final int VERSION_CODE_LENGTHS = 1;
+	/**
+	 * Byte aligned chunks of the subbands with varint sizes and their index, the wavelet, levels and qLEVELS are recorded. 
+	 * Detail subbands are quantized by the step of their level and subband with a deadzone, 
+	 * coded as values or zero runs by the entropy coder of the chunk in restart segments
+	 */
+	public static final int VERSION_CONTAINER = 2;
+	public static final int VERSION = VERSION_CONTAINER;
 
 	public static BinaryFileFormat getInstanse() {
 		return instanse;
@@ -37,6 +90,65 @@ public class BinaryFileFormat {
 		// HTreeValuePull);
 	}
 
+	/**
+	 * Writes the header of the current version
+	 */
+	public static void writeHeader(OutputStream os) throws IOException {
+		writeHeader(os, VERSION);
+	}
+	
+	/**
+	 * Writes the header of the given version, nothing for VERSION_TREE
+	 */
+	public static void writeHeader(OutputStream os, int version) throws IOException {
+		if (version < VERSION_TREE || version > VERSION)
+			throw new IllegalArgumentException("Unsupported file version " + version);
+		if (version == VERSION_TREE)
+			return;
+		os.write(MAGIC);
+		os.write(version);
+	}
+	
+	/**
+	 * Reads the header, files without header are VERSION_TREE
+	 * @param in stream supporting mark(), it is left at the coefs
+	 * @return version of the file
+	 */
+	public static int readHeader(InputStream in) throws IOException {
+		if (!in.markSupported())
+			throw new IllegalArgumentException("The stream does not support mark()");
+		in.mark(MAGIC.length + 1);
+		boolean hasHeader = true;
+		for (int i = 0; i < MAGIC.length && hasHeader; i++)
+			hasHeader = in.read() == MAGIC[i];
+		if (!hasHeader) {
+			in.reset();
+			return VERSION_TREE;
+		}
+		final int version = in.read();
+		if (version < 0 || version > VERSION)
+			throw new IOException("Unsupported file version " + version);
+		return version;
+	}
+
+	/**
+	 * Reads the header from the buffer, see {@link #readHeader(InputStream)}
+	 * @param buffer left at the coefs
+	 * @return version of the file
+	 */
+	public static int readHeader(ByteBuffer buffer) throws IOException {
+		boolean hasHeader = buffer.remaining() > MAGIC.length;
+		for (int i = 0; i < MAGIC.length && hasHeader; i++)
+			hasHeader = buffer.get(buffer.position() + i) == MAGIC[i];
+		if (!hasHeader)
+			return VERSION_TREE;
+		final int version = buffer.get(buffer.position() + MAGIC.length);
+		if (version < 0 || version > VERSION)
+			throw new IOException("Unsupported file version " + version);
+		buffer.position(buffer.position() + MAGIC.length + 1);
+		return version;
+	}
+
 	public boolean toQuntizateMA = false;
 	public boolean toSaveTreeSize = false;
 
@@ -47,6 +159,9 @@ public class BinaryFileFormat {
 		public short HTreeSizePull = 2 * 10;
 	public short HCodedDataSizePull = 20; // 1024*1024
 	public short AdaptiveMapValuePull = 2; // 4 values
+	public short StripSizeValuePull = 31;
+	public short CodeLengthPull = 5; // 1..32
+	public short ZeroRunPull = 5; // 1..32
 
 	// utils
 	private double logOfBase(int base, int num) {
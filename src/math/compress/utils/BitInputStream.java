@@ -3,36 +3,51 @@ package math.compress.utils;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
- 
+import java.nio.ByteBuffer;
+
 /**
  * The BitInputStream allows reading individual bits from a
- * general Java InputStream.
+ * general Java InputStream, a byte array or a ByteBuffer.
  * Like the various Stream-classes from Java, the BitInputStream
  * has to be created based on another Input stream. It provides
  * a function to read the next bit from the sream, as well as to read multiple
  * bits at once and write the resulting data into an integer value.
  *
+ * Bytes are reversed into a 64-bit register, so the next bit is the highest one:
+ * peekBits() and readBits() are a shift of the register for table driven decoding.
+ * Bits are packed into bytes the way BitOutputStream does, the first bit is the lowest one.
+ * The stream is not thread safe.
+ *
  * @author Andreas Jakl
  */
 public class BitInputStream {
 	/**
-	 * The Java InputStream this class is working on.
+	 * Bytes read from the InputStream at once
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The Java InputStream this class is working on, null for byte array and ByteBuffer sources.
 	 */
 	private InputStream iIs;
- 
+
 	/**
-	 * The buffer containing the currently processed
-	 * byte of the input stream.
+	 * Bytes not moved to the register yet.
 	 */
-	private int iBuffer;
- 
+	private ByteBuffer iBuffer;
+
 	/**
-	 * Next bit of the current byte value that the user will
-	 * get. If it's 8, the next bit will be read from the 
-	 * next byte of the InputStream.
+	 * The register of the next bits, the next bit is the highest one.
 	 */
-	private int iNextBit = 8;
- 
+	private long iBits;
+
+	/**
+	 * Valid bits of the register, the lower ones are zeros.
+	 */
+	private int iBitCount;
+
+	private boolean isClosed = false;
+
 	/**
 	 * Create a new bit input stream based on an existing Java InputStream.
 	 * @param aIs the input stream this class should read the bits from.
@@ -40,63 +55,243 @@ public class BitInputStream {
 	public BitInputStream(InputStream aIs)
 	{
 		iIs = aIs;
+		iBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		iBuffer.flip();
+	}
+
+	/**
+	 * Create a new bit input stream reading the array.
+	 */
+	public BitInputStream(byte [] aData)
+	{
+		this(ByteBuffer.wrap(aData));
 	}
- 
+
+	/**
+	 * Create a new bit input stream reading the remaining bytes of the buffer.
+	 */
+	public BitInputStream(ByteBuffer aBuffer)
+	{
+		iBuffer = aBuffer.slice();
+	}
+
+	/**
+	 * Fill the register up to 57 bits at least, if the source has bytes.
+	 */
+	private void refill() throws IOException
+	{
+		if (isClosed)
+			throw new IOException("Already closed");
+		while (iBitCount <= 56)
+		{
+			if (!iBuffer.hasRemaining() && !readBlock())
+				return;
+			iBits |= ((long) (Integer.reverse(iBuffer.get()) >>> 24)) << (56 - iBitCount);
+			iBitCount += 8;
+		}
+	}
+
+	/**
+	 * @return false if no more bytes in the source
+	 */
+	private boolean readBlock() throws IOException
+	{
+		if (iIs == null)
+			return false;
+		iBuffer.clear();
+		int count = iIs.read(iBuffer.array(), 0, iBuffer.capacity());
+		if (count <= 0)
+		{
+			iBuffer.limit(0);
+			return false;
+		}
+		iBuffer.limit(count);
+		return true;
+	}
+
+	/**
+	 * Get the next bits without reading them. Bits after the end of the source are zeros.
+	 * @param aNumberOfBits defines how many bits to get, up to 32.
+	 * @return the next bits, the first one is the highest one.
+	 * @throws IOException
+	 */
+	public int peekBits(final int aNumberOfBits) throws IOException
+	{
+		if (aNumberOfBits <= 0)
+			return 0;
+		if (iBitCount < aNumberOfBits)
+			refill();
+		return (int) (iBits >>> (64 - aNumberOfBits));
+	}
+
 	/**
 	 * Read a specified number of bits and return them combined as
 	 * an integer value. The bits are written to the integer
-	 * starting at the highest bit ( << aNumberOfBits ), going down 
+	 * starting at the highest bit ( << aNumberOfBits ), going down
 	 * to the lowest bit ( << 0 )
-	 * @param aNumberOfBits defines how many bits to read from the stream.
+	 * @param aNumberOfBits defines how many bits to read from the stream, up to 32.
 	 * @return integer value containing the bits read from the stream.
 	 * @throws IOException
 	 */
-	synchronized public int readBits(final short aNumberOfBits) 
+	public int readBits(final short aNumberOfBits)
             throws IOException
 	{
-		int value = 0;
-		for (int i = aNumberOfBits - 1; i >= 0; i--)
-		{
-			value |= (readBit() << i);
-		}
+		if (aNumberOfBits <= 0)
+			return 0;
+		final int value = peekBits(aNumberOfBits);
+		consume(aNumberOfBits);
 		return value;
 	}
- 
+
 	/**
 	 * Read the next bit from the stream.
 	 * @return 0 if the bit is 0, 1 if the bit is 1.
 	 * @throws IOException
 	 */
-	synchronized public int readBit() throws IOException
+	public int readBit() throws IOException
 	{
-		if (iIs == null)
-			throw new IOException("Already closed");
- 
-		if (iNextBit == 8)
+		if (iBitCount < 1)
+			refill();
+		final int bit = (int) (iBits >>> 63);
+		consume(1);
+		return bit;
+	}
+
+	/**
+	 * Read a byte written by BitOutputStream.writeByte().
+	 * @throws IOException
+	 */
+	public int readByte() throws IOException
+	{
+		return Integer.reverse(readBits((short) 8)) >>> 24;
+	}
+
+	/**
+	 * Read a value written by BitOutputStream.writeVarint().
+	 * @throws IOException
+	 */
+	public long readVarint() throws IOException
+	{
+		long value = 0;
+		int b;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Varint is longer than 64 bits");
+	}
+
+	/**
+	 * Read a value written by BitOutputStream.writeFloat().
+	 * @throws IOException
+	 */
+	public float readFloat() throws IOException
+	{
+		int bits = 0;
+		for (int shift = 0; shift < 32; shift += 8)
+			bits |= readByte() << shift;
+		return Float.intBitsToFloat(bits);
+	}
+
+	/**
+	 * Read whole bytes after {@link #align()}, the way they are stored.
+	 * @throws IOException
+	 */
+	public void readBytes(byte [] aData, int aOffset, int aLength) throws IOException
+	{
+		if (iBitCount % 8 != 0)
+			throw new IOException("Bytes are read at a byte boundary only");
+		// the register goes first
+		while (iBitCount > 0 && aLength > 0)
 		{
-			iBuffer = iIs.read();
- 
-			if (iBuffer == -1)
+			aData[aOffset++] = (byte) readByte();
+			aLength--;
+		}
+		int count;
+		while (aLength > 0)
+		{
+			if (!iBuffer.hasRemaining() && !readBlock())
 				throw new EOFException();
- 
-			iNextBit = 0;
+			count = Math.min(aLength, iBuffer.remaining());
+			iBuffer.get(aData, aOffset, count);
+			aOffset += count;
+			aLength -= count;
 		}
- 
-		int bit = iBuffer & (1 << iNextBit);
-		iNextBit++;
- 
-		bit = (bit == 0) ? 0 : 1;
- 
-		return bit;
 	}
- 
+
+	/**
+	 * Skip the rest of the current byte, next bits start a new byte.
+	 * @throws IOException
+	 */
+	public void align() throws IOException
+	{
+		consume(iBitCount % 8);
+	}
+
+	/**
+	 * Move past bits of the register, up to 57.
+	 */
+	private void consume(int aNumberOfBits) throws EOFException
+	{
+		if (iBitCount < aNumberOfBits)
+			throw new EOFException();
+		iBits <<= aNumberOfBits;
+		iBitCount -= aNumberOfBits;
+	}
+
+	/**
+	 * Skip a specified number of bits, whole bytes are skipped
+	 * in the source without being read bit by bit.
+	 * @param aNumberOfBits defines how many bits to skip.
+	 * @throws IOException
+	 */
+	public void skipBits(long aNumberOfBits) throws IOException
+	{
+		if (aNumberOfBits <= iBitCount)
+		{
+			consume((int) aNumberOfBits);
+			return;
+		}
+		aNumberOfBits -= iBitCount;
+		iBits = 0;
+		iBitCount = 0;
+		long bytes = aNumberOfBits / 8, skipped;
+		while (bytes > 0)
+		{
+			if (!iBuffer.hasRemaining())
+			{
+				// past the buffered block: skip in the stream
+				skipped = iIs != null ? iIs.skip(bytes) : 0;
+				if (skipped <= 0)
+				{
+					if (!readBlock())
+						throw new EOFException();
+					continue;
+				}
+			}
+			else
+			{
+				skipped = Math.min(bytes, iBuffer.remaining());
+				iBuffer.position(iBuffer.position() + (int) skipped);
+			}
+			bytes -= skipped;
+		}
+		refill();
+		consume((int) (aNumberOfBits % 8));
+	}
+
 	/**
 	 * Close the underlying input stream.
 	 * @throws IOException
 	 */
 	public void close() throws IOException
 	{
-		iIs.close();
+		if (iIs != null)
+			iIs.close();
 		iIs = null;
+		isClosed = true;
 	}
-}
\ No newline at end of file
+}
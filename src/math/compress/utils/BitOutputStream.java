@@ -2,38 +2,65 @@ package math.compress.utils;
 
 import java.io.IOException;
 import java.io.OutputStream;
- 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * The BitOutputStream allows writing individual bits to a
- * general Java OutputStream.
+ * general Java OutputStream or a channel.
  * Like the various Stream-classes from Java, the BitOutputStream
  * has to be created based on another OutputStream. This class is able
  * to write a single bit to a stream (even though a byte has to be 
  * filled until the data is flushed to the underlying output stream).
  * It is also able to write an integer value to the stream using
  * the specified number of bits.
+ * 
+ * Bits are packed into a 64-bit register, the first bit is the lowest one, 
+ * whole 32-bit words go to a ByteBuffer drained to the stream or channel in blocks.
+ * The stream is not thread safe.
  *
  * @author Andreas Jakl
  */
 public class BitOutputStream {
+	/**
+	 * Bytes buffered before they are written to the stream or channel
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+ 
 	/**
 	 * The Java OutputStream that is used to write completed
-	 * bytes.
+	 * bytes, null if a channel is used.
 	 */
 	private OutputStream iOs;
  
 	/**
-	 * The temponary buffer containing the individual bits
-	 * until a byte has been completed and can be commited
-	 * to the output stream.
+	 * The channel completed bytes are written to, null if a stream is used.
+	 */
+	private WritableByteChannel iChannel;
+ 
+	/**
+	 * Completed bytes not written yet.
 	 */
-	private int iBuffer;
+	private ByteBuffer iBuffer;
+ 
+	/**
+	 * The register containing the individual bits
+	 * until a word has been completed and can be commited
+	 * to the buffer, the first bit is the lowest one.
+	 */
+	private long iBits;
  
 	/**
 	 * Counts how many bits have been cached up to now.
 	 */
 	private int iBitCount;
  
+	/**
+	 * Bits written before the register.
+	 */
+	private long iFlushedBits;
+	
 	/**
 	 * Create a new bit output stream based on an
 	 * existing Java OutputSTream.
@@ -42,78 +69,262 @@ public class BitOutputStream {
 	public BitOutputStream(OutputStream aOs)
 	{
 		iOs = aOs;
+		iBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+ 
+	/**
+	 * Create a new bit output stream based on a channel, 
+	 * bytes are written from a direct buffer.
+	 * @param aChannel the channel this class should use, 
+	 * a FileChannel continues at its current position.
+	 */
+	public BitOutputStream(WritableByteChannel aChannel)
+	{
+		iChannel = aChannel;
+		iBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
 	}
  
 	/**
 	 * Write a single bit to the stream. It will only be flushed
-	 * to the underlying OutputStream when a byte has been 
+	 * to the underlying OutputStream when a buffer has been 
 	 * completed or when flush() manually.
 	 * @param aBit 1 if the bit should be set, 0 if not
 	 * @throws IOException
 	 */
-	synchronized public void writeBit(int aBit) throws IOException
+	public void writeBit(int aBit) throws IOException
 	{
-		if (iOs == null)
-			throw new IOException("Already closed");
+		iBits |= (long) (aBit & 0x01) << iBitCount;
+		if (++iBitCount == 32)
+		{
+			commitWord();
+		}
+	}
  
-		if (aBit != 0 && aBit != 1)
+	/**
+	 * Write the specified number of bits from the int value
+	 * to the stream. Correspondig to the InputStream,
+	 * the bits are written starting at the highest bit 
+	 * ( >> aNumberOfBits ), going down to the lowest bit ( >> 0 ).
+	 * @param aValue the int containing the bits that should
+	 * be written to the stream.
+	 * @param aNumBits how many bits of the integer should
+	 * be written to the stream, up to 32.
+	 * @throws IOException
+	 */
+	public void writeBits(final int aValue, final short aNumBits) 
+            throws IOException
+	{
+		if (aNumBits <= 0)
+			return;
+		// the highest bit goes first: reversed, it is the lowest one
+		iBits |= (Integer.reverse(aValue) >>> (32 - aNumBits) & 0xFFFFFFFFL) << iBitCount;
+		iBitCount += aNumBits;
+		if (iBitCount >= 32)
 		{
-			throw new IOException(aBit + " is not a bit");
+			commitWord();
+		}
+	}
+
+	/**
+	 * Write bits stored by another BitOutputStream at the current bit position:
+	 * the stored words are shifted into the register, the first bit is the lowest one of the first byte.
+	 * @param aData stored bits, padded by zero bits
+	 * @param aNumBits how many bits of the array should be written
+	 * @throws IOException
+	 */
+	public void writeBits(final byte [] aData, long aNumBits) throws IOException
+	{
+		int i = 0;
+		long word;
+		while (aNumBits >= 32)
+		{
+			word = (aData[i] & 0xFF) | (aData[i + 1] & 0xFF) << 8 | (aData[i + 2] & 0xFF) << 16 
+					| (aData[i + 3] & 0xFFL) << 24;
+			iBits |= word << iBitCount;
+			iBitCount += 32;
+			commitWord();
+			i += 4;
+			aNumBits -= 32;
+		}
+		if (aNumBits > 0)
+		{
+			word = 0;
+			for (int k = 0; k * 8 < aNumBits; k++)
+				word |= (aData[i + k] & 0xFFL) << (k * 8);
+			iBits |= (word & ((1L << aNumBits) - 1)) << iBitCount;
+			iBitCount += aNumBits;
+			if (iBitCount >= 32)
+			{
+				commitWord();
+			}
 		}
+	}
  
-		iBuffer |= aBit << iBitCount;
-		iBitCount++;
+	/**
+	 * Moves the lowest 32 bits of the register to the buffer.
+	 */
+	private void commitWord() throws IOException
+	{
+		if (iBuffer.remaining() < 4)
+		{
+			drain();
+		}
+		iBuffer.putInt((int) iBits);
+		iBits >>>= 32;
+		iBitCount -= 32;
+		iFlushedBits += 32;
+	}
  
-		if (iBitCount == 8)
+	/**
+	 * Write the buffered bytes to the stream or channel.
+	 */
+	private void drain() throws IOException
+	{
+		if (iOs == null && iChannel == null)
+			throw new IOException("Already closed");
+		iBuffer.flip();
+		if (iOs != null)
 		{
-			flush();
+			iOs.write(iBuffer.array(), iBuffer.arrayOffset(), iBuffer.limit());
 		}
+		else
+		{
+			while (iBuffer.hasRemaining())
+				iChannel.write(iBuffer);
+		}
+		iBuffer.clear();
 	}
  
 	/**
-	 * Write the current cache to the stream and reset
-	 * the buffer.
+	 * Pad the current byte by zero bits, next bits start a new byte.
 	 * @throws IOException
 	 */
-	public void flush() throws IOException
+	public void align() throws IOException
 	{
-		if (iBitCount > 0)
+		final int padding = (8 - iBitCount % 8) % 8;
+		iBitCount += padding;
+		if (iBitCount == 32)
 		{
-			iOs.write((byte) iBuffer);
-			iBitCount = 0;
-			iBuffer = 0;
+			commitWord();
+		}
+	}
+
+	/**
+	 * Write a byte the way it is stored, the lowest bit goes first.
+	 * After {@link #align()} it is a whole byte of the stream.
+	 * @throws IOException
+	 */
+	public void writeByte(int aByte) throws IOException
+	{
+		iBits |= (long) (aByte & 0xFF) << iBitCount;
+		iBitCount += 8;
+		if (iBitCount >= 32)
+		{
+			commitWord();
 		}
 	}
  
 	/**
-	 * Flush the data and close the underlying output stream.
+	 * Write an unsigned value by 7 bits per byte, the lowest bits go first,
+	 * the highest bit of a byte is set if more bytes follow.
+	 * @param aValue not negative
 	 * @throws IOException
 	 */
-	public void close() throws IOException
+	public void writeVarint(long aValue) throws IOException
 	{
-		flush();
-		iOs.close();
-		iOs = null;
+		while (aValue >= 0x80)
+		{
+			writeByte((int) aValue | 0x80);
+			aValue >>>= 7;
+		}
+		writeByte((int) aValue);
+	}
+
+	/**
+	 * Write the IEEE 754 bits of the value by 4 bytes, the lowest byte goes first.
+	 * @throws IOException
+	 */
+	public void writeFloat(float aValue) throws IOException
+	{
+		final int bits = Float.floatToIntBits(aValue);
+		for (int shift = 0; shift < 32; shift += 8)
+			writeByte(bits >>> shift);
+	}
+
+	/**
+	 * Write whole bytes after {@link #align()}, the way they are stored.
+	 * @throws IOException
+	 */
+	public void writeBytes(byte [] aData, int aOffset, int aLength) throws IOException
+	{
+		if (iBitCount % 8 != 0)
+			throw new IOException("Bytes are written at a byte boundary only");
+		// the register goes first
+		while (iBitCount > 0 && aLength > 0)
+		{
+			writeByte(aData[aOffset++]);
+			aLength--;
+		}
+		int count;
+		while (aLength > 0)
+		{
+			if (!iBuffer.hasRemaining())
+			{
+				drain();
+			}
+			count = Math.min(aLength, iBuffer.remaining());
+			iBuffer.put(aData, aOffset, count);
+			aOffset += count;
+			aLength -= count;
+			iFlushedBits += 8L * count;
+		}
 	}
  
 	/**
-	 * Write the specified number of bits from the int value
-	 * to the stream. Correspondig to the InputStream,
-	 * the bits are written starting at the highest bit 
-	 * ( >> aNumberOfBits ), going down to the lowest bit ( >> 0 ).
-	 * @param aValue the int containing the bits that should
-	 * be written to the stream.
-	 * @param aNumBits how many bits of the integer should
-	 * be written to the stream.
+	 * @return bits written up to now, including the padding.
+	 */
+	public long getBitsCount()
+	{
+		return iFlushedBits + iBitCount;
+	}
+ 
+	/**
+	 * Write the current cache to the stream, the last byte 
+	 * is padded by zero bits.
 	 * @throws IOException
 	 */
-	synchronized public void writeBits(final int aValue, final short aNumBits) 
-            throws IOException
+	public void flush() throws IOException
 	{
-		for (int i = aNumBits - 1; i >= 0; i--)
+		align();
+		if (iBuffer.remaining() < 4)
+		{
+			drain();
+		}
+		while (iBitCount > 0)
 		{
-			writeBit((aValue >> i) & 0x01);
+			iBuffer.put((byte) iBits);
+			iBits >>>= 8;
+			iBitCount -= 8;
+			iFlushedBits += 8;
 		}
+		drain();
+		if (iOs != null)
+			iOs.flush();
+	}
+ 
+	/**
+	 * Flush the data and close the underlying output stream.
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		flush();
+		if (iOs != null)
+			iOs.close();
+		else
+			iChannel.close();
+		iOs = null;
+		iChannel = null;
 	}
  
 	/**
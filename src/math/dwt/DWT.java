@@ -1,8 +1,9 @@
 package math.dwt;
 
 import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 
 import math.dwt.wavelets.*;
@@ -17,6 +18,74 @@ public class DWT {
 		this.mTranformation = tranformation;
 	}
 	
+	/**
+	 * Input rows processed by one fork/join task if no threshold is given 
+	 */
+	public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 64;
+	private ForkJoinPool mPool = null;
+	private int mSequentialThreshold = DEFAULT_SEQUENTIAL_THRESHOLD;
+	
+	/**
+	 * Turns on parallel decomposition: every level is split into 2-row aligned bands 
+	 * processed on the pool. Coefs are the same as the sequential ones
+	 * @param pool					owned by the caller, it may be shared; null for sequential mode
+	 * @param sequentialThreshold	max rows of a band processed by one task
+	 */
+	public DWT setPool(ForkJoinPool pool, int sequentialThreshold){
+		mPool = pool;
+		mSequentialThreshold = Math.max(2, sequentialThreshold);
+		return this;
+	}
+	public DWT setPool(ForkJoinPool pool){
+		return setPool(pool, DEFAULT_SEQUENTIAL_THRESHOLD);
+	}
+	
+	private boolean mInPlace = false;
+	private int mTileSize = 0;
+	/**
+	 * Tiled mode for multi-level decomposition of big matrixes, see {@link #decomposeTiled}
+	 * @param tileSize	tile side, rounded up to a multiple of 2^level; 0 turns tiling off 
+	 */
+	public DWT setTileSize(int tileSize){
+		mTileSize = tileSize;
+		return this;
+	}
+	/**
+	 * In-place mode: decompose() overwrites the input matrixes with the Mallat layout 
+	 * of the coefs instead of allocating new matrixes per level, see {@link #decomposeInPlace}
+	 */
+	public DWT setInPlace(boolean inPlace){
+		mInPlace = inPlace;
+		return this;
+	}
+	
+	private boolean mStatistics = false;
+	private SubbandStatistics.Quantizer mQuantizer = null;
+	/**
+	 * Statistics mode: norms and adaptive map histogram of every level 
+	 * are gathered by the transform loop, see {@link DWTCoefficients#getStatistics()}. 
+	 * Matrix norms are not calculated by separate passes then
+	 * @param statistics	to gather statistics
+	 */
+	public DWT setStatistics(boolean statistics){
+		return setStatistics(statistics, null);
+	}
+	/**
+	 * Statistics mode with the histograms of the quantized detail subbands as well
+	 * @param quantizer		quantization of the histograms, may be null
+	 */
+	public DWT setStatistics(boolean statistics, SubbandStatistics.Quantizer quantizer){
+		mStatistics = statistics;
+		mQuantizer = quantizer;
+		return this;
+	}
+	/**
+	 * @param depth	1 for the top level
+	 */
+	private SubbandStatistics newStatistics(int depth){
+		return mStatistics ? new SubbandStatistics(depth, mQuantizer) : null;
+	}
+	
 	/**
 	 * Decompose the given matrix 
 	 * @param inputMatrixes			matrix array to decompose
@@ -26,10 +95,24 @@ public class DWT {
 	 * @return
 	 */
 	public DWTCoefficients[] decompose(Matrix [] inputMatrixes, boolean calculateMatrixNorms, boolean logCoefsToFile, int level){
+		if (mInPlace) {
+			return new DWTCoefficients[] {
+					decomposeInPlace(inputMatrixes[0], calculateMatrixNorms, logCoefsToFile?"red":""	, level),
+					decomposeInPlace(inputMatrixes[1], calculateMatrixNorms, logCoefsToFile?"green":""	, level),
+					decomposeInPlace(inputMatrixes[2], calculateMatrixNorms, logCoefsToFile?"blue":""	, level)
+			};
+		}
+		if (mTileSize > 0 && level > 1) {
+			return new DWTCoefficients[] {
+					decomposeTiled(inputMatrixes[0], calculateMatrixNorms, logCoefsToFile?"red":""	, level),
+					decomposeTiled(inputMatrixes[1], calculateMatrixNorms, logCoefsToFile?"green":""	, level),
+					decomposeTiled(inputMatrixes[2], calculateMatrixNorms, logCoefsToFile?"blue":""	, level)
+			};
+		}
 		return new DWTCoefficients[] {
-				decompose(inputMatrixes[0], true, logCoefsToFile?"red":""	, level),
-				decompose(inputMatrixes[1], true, logCoefsToFile?"green":""	, level),
-				decompose(inputMatrixes[2], true, logCoefsToFile?"blue":""	, level)
+				decompose(inputMatrixes[0], calculateMatrixNorms, logCoefsToFile?"red":""	, level, 1),
+				decompose(inputMatrixes[1], calculateMatrixNorms, logCoefsToFile?"green":""	, level, 1),
+				decompose(inputMatrixes[2], calculateMatrixNorms, logCoefsToFile?"blue":""	, level, 1)
 		};
 	}
 	/**
@@ -39,9 +122,11 @@ public class DWT {
 	 * @param calculateMatrixNorms 	calculate norm of output matixes
 	 * @param fileSaveName			filename to log out matixes
 	 * @param level 				decomposition level
+	 * @param depth					1 for the top level, the level of the statistics
 	 * @return
 	 */
-	private DWTCoefficients decompose(Matrix inputMatrix, boolean calculateMatrixNorms, final String fileSaveName, int level){
+	private DWTCoefficients decompose(Matrix inputMatrix, boolean calculateMatrixNorms, final String fileSaveName, int level, 
+			int depth){
 		
 		final int rows = inputMatrix.getRowsCount();
 		final int columns = inputMatrix.getColumnsCount();
@@ -59,24 +144,40 @@ public class DWT {
 		if (mTranformation instanceof HaarAdaptive){
 			adaptiveMap = new Matrix(coefRows,coefColumns);
 		}
-		doWaveletTranform(inputMatrix,ma,mv,mh,md,adaptiveMap);
+		final SubbandStatistics statistics = newStatistics(depth);
+		doWaveletTranform(inputMatrix,ma,mv,mh,md,adaptiveMap,statistics);
 		DWTCoefficients resDWTCoefs = new DWTCoefficients(
-				(level>1)?decompose(ma, calculateMatrixNorms, fileSaveName, level-1):ma
-				, mv, mh, md, adaptiveMap, calculateMatrixNorms);
+				(level>1)?decompose(ma, calculateMatrixNorms, fileSaveName, level-1, depth+1):ma
+				, mv, mh, md, adaptiveMap, calculateMatrixNorms && statistics == null);
+		resDWTCoefs.setStatistics(statistics);
 
+		logDecomposition(resDWTCoefs, ma, mv, mh, md, adaptiveMap, fileSaveName, level);
+		return resDWTCoefs;
+	}
+	
+	/**
+	 * Logs norms of the level coefs and saves them to files 
+	 * @param ma average coefs, not saved if null
+	 */
+	private void logDecomposition(DWTCoefficients resDWTCoefs, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix adaptiveMap, 
+			final String fileSaveName, int level){
 		String adaptiveMapStatistic = null;
-		if (adaptiveMap != null) {
-			adaptiveMapStatistic = "";
-			Map<Integer, Integer> matrixStatistics = getMatrixStatistics(adaptiveMap);
-
-			try {
-				adaptiveMapStatistic += "HaarClassic " + matrixStatistics.get(0) + " (" +(matrixStatistics.get(0)*100/matrixStatistics.get(-1))+"%)";
-				adaptiveMapStatistic += "; HaarVertical " + matrixStatistics.get(1) + " (" +(matrixStatistics.get(1)*100/matrixStatistics.get(-1))+"%)";
-				adaptiveMapStatistic += "; HaarHorizotal " + matrixStatistics.get(2) + " (" +(matrixStatistics.get(2)*100/matrixStatistics.get(-1))+"%)";
-				adaptiveMapStatistic += "; HaarDiagonal " + matrixStatistics.get(3) + " (" +(matrixStatistics.get(3)*100/matrixStatistics.get(-1))+"%)";
-			} catch (NullPointerException e) {
-				Log.getInstance().log(Level.WARNING, "NPE:: DWT.decompose(), matrixStatistics...");
-			}
+		final SubbandStatistics statistics = resDWTCoefs.getStatistics();
+		if (adaptiveMap != null && statistics != null && statistics.getMapTotal() > 0) {
+			final int [] transforms = statistics.getMapHistogram();
+			final int total = statistics.getMapTotal();
+			adaptiveMapStatistic = "HaarClassic " + transforms[0] + " (" +(transforms[0]*100L/total)+"%)";
+			adaptiveMapStatistic += "; HaarVertical " + transforms[1] + " (" +(transforms[1]*100L/total)+"%)";
+			adaptiveMapStatistic += "; HaarHorizotal " + transforms[2] + " (" +(transforms[2]*100L/total)+"%)";
+			adaptiveMapStatistic += "; HaarDiagonal " + transforms[3] + " (" +(transforms[3]*100L/total)+"%)";
+		}
+		String quantizedStatistic = null;
+		if (statistics != null && statistics.getQuantizedHistogram(DWTCoefficients.MV) != null) {
+			final DecimalFormat bitsFormatter = new DecimalFormat("0.00");
+			quantizedStatistic = "V,H,D entropy: " 
+					+ bitsFormatter.format(getEntropy(statistics.getQuantizedHistogram(DWTCoefficients.MV))) + ", "
+					+ bitsFormatter.format(getEntropy(statistics.getQuantizedHistogram(DWTCoefficients.MH))) + ", "
+					+ bitsFormatter.format(getEntropy(statistics.getQuantizedHistogram(DWTCoefficients.MD))) + " bits";
 		}
 		
 		//output decomposition coefficients
@@ -88,18 +189,282 @@ public class DWT {
 				"\t"+(resDWTCoefs.getNormMd())+
 				"\t\t"+myFormatter.format(resDWTCoefs.getNormMa())+
 				"\t\tV,H,D Sum: "+myFormatter.format(resDWTCoefs.getNormVHDSum())+
-				(adaptiveMapStatistic!=null?"\t"+adaptiveMapStatistic:"")
+				(adaptiveMapStatistic!=null?"\t"+adaptiveMapStatistic:"")+
+				(quantizedStatistic!=null?"\t"+quantizedStatistic:"")
 				);
 		if (fileSaveName!=null && fileSaveName != ""){
-			ma.saveToFile(fileSaveName+mTranformation.getCaption()+"Lvl"+level+FileNamesConst.mAverageCoef+FileNamesConst.extData,	"Average coefs "+fileSaveName);
+			if (ma!=null)
+				ma.saveToFile(fileSaveName+mTranformation.getCaption()+"Lvl"+level+FileNamesConst.mAverageCoef+FileNamesConst.extData,	"Average coefs "+fileSaveName);
 			mh.saveToFile(fileSaveName+mTranformation.getCaption()+"Lvl"+level+FileNamesConst.mHorizCoef+FileNamesConst.extData, 	"Horiz coefs "+fileSaveName);
 			mv.saveToFile(fileSaveName+mTranformation.getCaption()+"Lvl"+level+FileNamesConst.mVerticalCoef+FileNamesConst.extData, 	"Vert coefs "+fileSaveName);
 			md.saveToFile(fileSaveName+mTranformation.getCaption()+"Lvl"+level+FileNamesConst.mDialonalCoef+FileNamesConst.extData, 	"Diag coefs "+fileSaveName);
 			if (adaptiveMap!=null)
 				adaptiveMap.saveToFile(fileSaveName+mTranformation.getCaption()+FileNamesConst.mTransfMap+FileNamesConst.extData, "Transformation mapping "+fileSaveName);
 		}
+	}
+
+
+	/**
+	 * @return bits per value of the order-0 entropy of the histogram
+	 */
+	private static double getEntropy(int [] histogram){
+		long total = 0;
+		for (int count : histogram)
+			total += count;
+		double bits = 0;
+		for (int count : histogram)
+			if (count > 0)
+				bits -= count * Math.log((double) count / total);
+		return total > 0 ? bits / total / Math.log(2) : 0;
+	}
+
+	/**
+	 * Decompose the given matrix in place into a single buffer of the Mallat layout:
+	 * every level puts the average coefs into the top-left quarter of its region, 
+	 * vertical to the top-right, horizontal to the bottom-left, diagonal to the bottom-right one, 
+	 * the next level decomposes the top-left quarter.
+	 * Coefs and their sizes are the same as the separately allocated ones.
+	 * 
+	 * The buffer is {@link #getPyramidLength} long, sizes padded to multiples of 2^level: 
+	 * if the input data array has that room, its rows are spread to the padded stride in place, 
+	 * otherwise they are copied once into a new buffer. 
+	 * Before every level the padding of the region is filled by its last row and column values, 
+	 * so the odd edges are clamped as {@link Matrix#get} does.
+	 * Only the adaptive transformations map is allocated per level.
+	 * @param inputMatrix			matrix to decompose, overwritten by coefs
+	 * @param calculateMatrixNorms 	calculate norm of output matixes
+	 * @param fileSaveName			filename to log out matixes
+	 * @param level 				decomposition level
+	 * @return coefs with views into the pyramid buffer
+	 */
+	private DWTCoefficients decomposeInPlace(Matrix inputMatrix, boolean calculateMatrixNorms, final String fileSaveName, int level){
+		final Matrix pyramid = alignedBuffer(inputMatrix, 1 << level);
+		final float [] row = new float[pyramid.getColumnsCount()];
+		final boolean [] moved = new boolean[pyramid.getRowsCount()];
+		final Matrix [][] levels = new Matrix[level][];
+		final SubbandStatistics [] statistics = new SubbandStatistics[level];
+		
+		Matrix region = pyramid;
+		int rows = pyramid.getRowsCount(), columns = pyramid.getColumnsCount();
+		int validRows = inputMatrix.getRowsCount(), validColumns = inputMatrix.getColumnsCount();
+		for (int l = 0; l < level; l++){
+			padEdges(region, validRows, validColumns);
+			rows /= 2;
+			columns /= 2;
+			validRows = (validRows+1)/2;
+			validColumns = (validColumns+1)/2;
+			Matrix adaptiveMap = null;
+			if (mTranformation instanceof HaarAdaptive){
+				adaptiveMap = new Matrix(validRows, validColumns);
+			}
+			statistics[l] = newStatistics(l+1);
+			//every 2x2 block is replaced by its own a, v, h, d, blocks of the padding only are skipped
+			doWaveletTranform(region.subMatrix(0, 0, 2*validRows, 2*validColumns), 
+					region.subMatrix(0, 0, validRows, validColumns, 2, 2),
+					region.subMatrix(0, 1, validRows, validColumns, 2, 2),
+					region.subMatrix(1, 0, validRows, validColumns, 2, 2),
+					region.subMatrix(1, 1, validRows, validColumns, 2, 2),
+					adaptiveMap, statistics[l]);
+			toMallatLayout(region, row, moved);
+			levels[l] = new Matrix[] {
+					region.subMatrix(0, 		columns, 	validRows, validColumns),
+					region.subMatrix(rows, 		0, 			validRows, validColumns),
+					region.subMatrix(rows, 		columns, 	validRows, validColumns),
+					adaptiveMap
+			};
+			region = region.subMatrix(0, 0, rows, columns);
+		}
+		return assemble(region.subMatrix(0, 0, validRows, validColumns), levels, statistics, pyramid, 
+				calculateMatrixNorms, fileSaveName);
+	}
+	
+	/**
+	 * @return values count of the in-place decomposition buffer of a rows x columns matrix, 
+	 * 			a matrix wrapping a data array of this length is decomposed in place without copying
+	 */
+	public static int getPyramidLength(int rows, int columns, int level){
+		final int align = 1 << level;
+		return (rows+align-1)/align*align * ((columns+align-1)/align*align);
+	}
+	
+	/**
+	 * Fills the region past the valid rows and columns by the last valid row and column values
+	 */
+	private static void padEdges(Matrix region, int validRows, int validColumns){
+		final float [] data = region.getData();
+		final int rows = region.getRowsCount();
+		final int columns = region.getColumnsCount();
+		int base;
+		for (int i = 0; i < validRows; i++){
+			base = region.index(i, 0);
+			Arrays.fill(data, base+validColumns, base+columns, data[base+validColumns-1]);
+		}
+		for (int i = validRows; i < rows; i++)
+			System.arraycopy(data, region.index(validRows-1, 0), data, region.index(i, 0), columns);
+	}
+	
+	/**
+	 * Builds nested coefs from the deepest level up, logs every level
+	 * @param ma		average coefs of the deepest level
+	 * @param levels	[level][mv, mh, md, map], index 0 is the first level 
+	 * @param statistics	statistics of the levels, null items if not gathered
+	 * @param pyramid	buffer the matrixes are views of, may be null
+	 */
+	private DWTCoefficients assemble(Matrix ma, Matrix [][] levels, SubbandStatistics [] statistics, Matrix pyramid, 
+			boolean calculateMatrixNorms, final String fileSaveName){
+		final int level = levels.length;
+		ma.setTransform(mTranformation);
+		Composable coefs = ma;
+		DWTCoefficients resDWTCoefs = null;
+		for (int l = level-1; l >= 0; l--){
+			resDWTCoefs = new DWTCoefficients(coefs, levels[l][0], levels[l][1], levels[l][2], levels[l][3], 
+					calculateMatrixNorms && statistics[l] == null);
+			resDWTCoefs.setPyramid(pyramid);
+			resDWTCoefs.setStatistics(statistics[l]);
+			logDecomposition(resDWTCoefs, coefs == ma ? ma : null, levels[l][0], levels[l][1], levels[l][2], levels[l][3], 
+					fileSaveName, level-l);
+			coefs = resDWTCoefs;
+		}
 		return resDWTCoefs;
 	}
+	
+	/**
+	 * Decompose the given matrix tile by tile: every tile goes through all the levels 
+	 * while its data is in cache, only the deepest average coefs are kept.
+	 * Tiles are aligned to 2^level, so blocks never cross tiles and clamped edges 
+	 * of the last tiles are the edges of the matrix: coefs are the same as the untiled ones
+	 * @param inputMatrix			matrix to decompose
+	 * @param calculateMatrixNorms 	calculate norm of output matixes
+	 * @param fileSaveName			filename to log out matixes
+	 * @param level 				decomposition level
+	 */
+	private DWTCoefficients decomposeTiled(Matrix inputMatrix, boolean calculateMatrixNorms, final String fileSaveName, int level){
+		final int align = 1 << level;
+		final int tile = (Math.max(mTileSize, align)+align-1)/align*align;
+		final boolean isAdaptive = mTranformation instanceof HaarAdaptive;
+		
+		//coefs matrixes of every level
+		final Matrix [][] levels = new Matrix[level][];
+		final SubbandStatistics [] statistics = new SubbandStatistics[level];
+		int rows = inputMatrix.getRowsCount(), columns = inputMatrix.getColumnsCount();
+		for (int l = 0; l < level; l++){
+			statistics[l] = newStatistics(l+1);
+			rows = (rows+1)/2;
+			columns = (columns+1)/2;
+			levels[l] = new Matrix[] {
+					new Matrix(rows, columns),
+					new Matrix(rows, columns),
+					new Matrix(rows, columns),
+					isAdaptive ? new Matrix(rows, columns) : null
+			};
+		}
+		final Matrix ma = new Matrix(rows, columns);
+		//average coefs of the inner levels of a tile, ping-pong
+		final Matrix [] scratch = new Matrix[] {
+				new Matrix(tile/2, tile/2),
+				new Matrix(Math.max(1, tile/4), Math.max(1, tile/4))
+		};
+		
+		Matrix input, output;
+		int tileRows, tileColumns, row, column;
+		for (int tileRow = 0; tileRow < inputMatrix.getRowsCount(); tileRow += tile){
+			for (int tileColumn = 0; tileColumn < inputMatrix.getColumnsCount(); tileColumn += tile){
+				tileRows = Math.min(tile, inputMatrix.getRowsCount()-tileRow);
+				tileColumns = Math.min(tile, inputMatrix.getColumnsCount()-tileColumn);
+				input = inputMatrix.subMatrix(tileRow, tileColumn, tileRows, tileColumns);
+				row = tileRow;
+				column = tileColumn;
+				for (int l = 0; l < level; l++){
+					row /= 2;
+					column /= 2;
+					tileRows = (tileRows+1)/2;
+					tileColumns = (tileColumns+1)/2;
+					output = (l == level-1) ? 
+							ma.subMatrix(row, column, tileRows, tileColumns) : 
+							scratch[l%2].subMatrix(0, 0, tileRows, tileColumns);
+					doWaveletTranform(input, output,
+							levels[l][0].subMatrix(row, column, tileRows, tileColumns),
+							levels[l][1].subMatrix(row, column, tileRows, tileColumns),
+							levels[l][2].subMatrix(row, column, tileRows, tileColumns),
+							isAdaptive ? levels[l][3].subMatrix(row, column, tileRows, tileColumns) : null, 
+							statistics[l]);
+					input = output;
+				}
+			}
+		}
+		return assemble(ma, levels, statistics, null, calculateMatrixNorms, fileSaveName);
+	}
+	
+	/**
+	 * @return buffer of sizes padded to multiples of align with the values of m at the top-left: 
+	 * 			the data of m itself if it is a whole contiguous matrix with room for the padded sizes, 
+	 * 			its rows are spread to the padded stride then, otherwise a new buffer. 
+	 * 			Padding values are not set
+	 */
+	private static Matrix alignedBuffer(Matrix m, int align){
+		final int rows = m.getRowsCount();
+		final int columns = m.getColumnsCount();
+		final int alignedRows = (rows+align-1)/align*align;
+		final int alignedColumns = (columns+align-1)/align*align;
+		final float [] data = m.getData();
+		if (m.getOffset() == 0 && m.getColumnStride() == 1 && m.getRowStride() == columns 
+				&& data.length >= alignedRows*alignedColumns) {
+			//the last rows go first, so the moved rows never overwrite the unmoved ones
+			if (alignedColumns != columns)
+				for (int i = rows-1; i > 0; i--)
+					System.arraycopy(data, i*columns, data, i*alignedColumns, columns);
+			return new Matrix(data, alignedRows, alignedColumns);
+		}
+		final Matrix res = new Matrix(alignedRows, alignedColumns);
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				res.set(i, j, m.get(i, j));
+		return res;
+	}
+	
+	/**
+	 * Moves interleaved 2x2 block coefs of the region into quarters:
+	 * even columns of every row to the left half, odd ones to the right half, 
+	 * then even rows to the top half and odd rows to the bottom half. 
+	 * Rows are permuted by cycles, so only one row of scratch is used
+	 * @param region	region of unit column stride
+	 * @param row		scratch, at least region columns long
+	 * @param moved		scratch, at least region rows long
+	 */
+	private static void toMallatLayout(Matrix region, float [] row, boolean [] moved){
+		final float [] data = region.getData();
+		final int rows = region.getRowsCount();
+		final int columns = region.getColumnsCount();
+		final int halfRows = rows/2, halfColumns = columns/2;
+		int base;
+		for (int i = 0; i < rows; i++){
+			base = region.index(i, 0);
+			for (int k = 0; k < halfColumns; k++){
+				row[k] = data[base+2*k];
+				row[halfColumns+k] = data[base+2*k+1];
+			}
+			System.arraycopy(row, 0, data, base, columns);
+		}
+		
+		//row i of the result is the source row 2i for the top half, 2(i-halfRows)+1 for the bottom one
+		Arrays.fill(moved, 0, rows, false);
+		int target, source;
+		for (int start = 0; start < rows; start++){
+			if (moved[start]) continue;
+			System.arraycopy(data, region.index(start, 0), row, 0, columns);
+			target = start;
+			while (true){
+				moved[target] = true;
+				source = target < halfRows ? 2*target : 2*(target-halfRows)+1;
+				if (source == start){
+					System.arraycopy(row, 0, data, region.index(target, 0), columns);
+					break;
+				}
+				System.arraycopy(data, region.index(source, 0), data, region.index(target, 0), columns);
+				target = source;
+			}
+		}
+	}
 
 //	private float[] dwtCoef;
 	/**
@@ -112,101 +477,98 @@ public class DWT {
 	 * @param mh Horiz
 	 * @param md Diag
 	 * @param map transf map for Adaptive Haar
+	 * @param statistics gathered row by row right after the transform of the row, may be null
 	 */
-	private void doWaveletTranform(Matrix inputMatrix, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map) {
-		int rows = inputMatrix.getRowsCount();
-		int columns = inputMatrix.getColumnsCount();
-		
-		float[] dwtCoef = null;
-		if (map!=null){
-			for (int i = 0; i < rows; i+=2){
-				for (int j = 0; j < columns; j+=2){
-					dwtCoef = mTranformation.perform(
-							new float[]{
-								inputMatrix.get()[i][j], 
-//								inputMatrix.get()[i][j+1], 
-//								inputMatrix.get()[i+1][j], 
-//								inputMatrix.get()[i+1][j+1]
-								inputMatrix.get(i, j+1),
-								inputMatrix.get(i+1, j),
-								inputMatrix.get(i+1, j+1),
-								}
-							);
-					ma.set(i/2,j/2,dwtCoef[0]);
-					mv.set(i/2,j/2,dwtCoef[1]);
-					mh.set(i/2,j/2,dwtCoef[2]);
-					md.set(i/2,j/2,dwtCoef[3]);
-					
-					//transformations map
-					map.set(i/2,j/2,dwtCoef[4]);
-				}
-			}
+	private void doWaveletTranform(Matrix inputMatrix, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, 
+			SubbandStatistics statistics) {
+		final int rows = inputMatrix.getRowsCount();
+		if (mPool == null || rows <= mSequentialThreshold){
+			performBand(inputMatrix, 0, rows, ma, mv, mh, md, map, statistics);
 		} else {
-			for (int i = 0; i < rows; i+=2){
-				for (int j = 0; j < columns; j+=2){
-					dwtCoef = mTranformation.perform(
-							new float[]{
-								inputMatrix.get()[i][j], 
-//								inputMatrix.get()[i][j+1], 
-//								inputMatrix.get()[i+1][j], 
-//								inputMatrix.get()[i+1][j+1]
-								inputMatrix.get(i, j+1),
-								inputMatrix.get(i+1, j),
-								inputMatrix.get(i+1, j+1),
-								}
-							);
-					ma.set(i/2,j/2,dwtCoef[0]);
-					mv.set(i/2,j/2,dwtCoef[1]);
-					mh.set(i/2,j/2,dwtCoef[2]);
-					md.set(i/2,j/2,dwtCoef[3]);
-				}
+			mPool.invoke(new BandTask(inputMatrix, 0, rows, ma, mv, mh, md, map, statistics));
+		}
+	}
+	
+	/**
+	 * With statistics every coefs row is accumulated right after its input rows pair is transformed, 
+	 * while it is in cache, and the band is merged into the level statistics once
+	 */
+	private void performBand(Matrix input, int fromRow, int toRow, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, 
+			SubbandStatistics statistics) {
+		if (statistics == null){
+			mTranformation.perform(input, fromRow, toRow, ma, mv, mh, md, map);
+			return;
+		}
+		final SubbandStatistics.Accumulator band = statistics.newAccumulator();
+		for (int i = fromRow; i < toRow; i += 2){
+			mTranformation.perform(input, i, Math.min(i+2, toRow), ma, mv, mh, md, map);
+			band.add(ma, mv, mh, md, map, i/2);
+		}
+		statistics.merge(band);
+	}
+	
+	/**
+	 * Decomposes the band of input rows [fromRow, toRow), splits it in halves while 
+	 * it is bigger than the sequential threshold. 
+	 * Bands start at even rows, so they write disjoint coefs rows
+	 */
+	private class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 4420516185716208011L;
+		private final Matrix input, ma, mv, mh, md, map;
+		private final SubbandStatistics statistics;
+		private final int fromRow, toRow;
+		
+		BandTask(Matrix input, int fromRow, int toRow, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, 
+				SubbandStatistics statistics) {
+			this.input = input;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.ma = ma;
+			this.mv = mv;
+			this.mh = mh;
+			this.md = md;
+			this.map = map;
+			this.statistics = statistics;
+		}
+		
+		@Override
+		protected void compute() {
+			final int middle = fromRow + (((toRow - fromRow) / 2) & ~1);
+			if (toRow - fromRow <= mSequentialThreshold || middle == fromRow){
+				performBand(input, fromRow, toRow, ma, mv, mh, md, map, statistics);
+			} else {
+				invokeAll(
+						new BandTask(input, fromRow, middle, ma, mv, mh, md, map, statistics),
+						new BandTask(input, middle, toRow, ma, mv, mh, md, map, statistics));
 			}
 		}
 	}
 	
 	public Matrix reconstruct(DWTCoefficients coefs){
-		float [][] ma, mv, mh, md;
-		ma = coefs.getMa().get();	
-		mv = coefs.getMv().get();	
-		mh = coefs.getMh().get();	
-		md = coefs.getMd().get();
-		int rows = mv.length; 
-		int columns = mv[0].length;
+		Matrix ma, mv, mh, md;
+		ma = coefs.getMa();	
+		mv = coefs.getMv();	
+		mh = coefs.getMh();	
+		md = coefs.getMd();
+		int rows = mv.getRowsCount(); 
+		int columns = mv.getColumnsCount();
 		Log.getInstance().log(Level.FINEST, "DWT.reconstruct(), " +
-				"ma ["+ma.length+", "+ma[0].length+"], " +
-				"mv ["+mv.length+", "+mv[0].length+"], " + 
-				"mh ["+mh.length+", "+mh[0].length+"], " + 
-				"md ["+md.length+", "+md[0].length+"]."
+				"ma ["+ma.getRowsCount()+", "+ma.getColumnsCount()+"], " +
+				"mv ["+mv.getRowsCount()+", "+mv.getColumnsCount()+"], " + 
+				"mh ["+mh.getRowsCount()+", "+mh.getColumnsCount()+"], " + 
+				"md ["+md.getRowsCount()+", "+md.getColumnsCount()+"]."
 				);
 		Matrix reconstructedMatrix = new Matrix(rows*2, columns*2); 
 		reconstructedMatrix.setTransform(mTranformation);
 		
-		float [] dwtCoef = null;
 		if (mTranformation instanceof HaarAdaptive){
 			try {
-				HaarAdaptive haarAdaptive = (HaarAdaptive) mTranformation;
-				float [][] transfMap = coefs.getMap().get();
+				Matrix transfMap = coefs.getMap();
 				
-				rows = transfMap.length; 
-				columns = transfMap[0].length;
+				rows = transfMap.getRowsCount(); 
+				columns = transfMap.getColumnsCount();
 				
-				for (int i = 0; i < rows; i++){
-					for (int j = 0; j < columns; j++){
-						dwtCoef = haarAdaptive.inverse(
-								new float[] {
-									ma[i][j],
-									mv[i][j],
-									mh[i][j],
-									md[i][j],
-									transfMap[i][j],
-								}
-							);
-						reconstructedMatrix.set(i*2, 	j*2, 	dwtCoef[0]);
-						reconstructedMatrix.set(i*2,	j*2+1,	dwtCoef[1]);
-						reconstructedMatrix.set(i*2+1, 	j*2,	dwtCoef[2]);
-						reconstructedMatrix.set(i*2+1, 	j*2+1, 	dwtCoef[3]);
-					}	
-				}
+				mTranformation.inverse(ma, mv, mh, md, transfMap, 0, rows, reconstructedMatrix);
 			} catch (ArrayIndexOutOfBoundsException e) {
 				System.err.println("DWT reconstruct. Wrong array index for Adaptive Haar: " + e.getMessage());
 				Log.getInstance().log(Level.SEVERE, String.format("ArrayIndexOutOfBoundsException: column = %d, row = %d, error = %s", columns, rows, e.getMessage().toString()));
@@ -214,42 +576,11 @@ public class DWT {
 				System.err.println("DWT reconstruct for Adaptive Haar failed.\nError: " + e1 );
 			}
 		} else {
-			for (int i = 0; i < rows; i++){
-				for (int j = 0; j < columns; j++){
-					dwtCoef = mTranformation.inverse(
-							new float[] {
-								ma[i][j],
-								mv[i][j],
-								mh[i][j],
-								md[i][j],
-							}
-						);
-					reconstructedMatrix.set(i*2, 	j*2, 	dwtCoef[0]);
-					reconstructedMatrix.set(i*2,	j*2+1,	dwtCoef[1]);
-					reconstructedMatrix.set(i*2+1, 	j*2,	dwtCoef[2]);
-					reconstructedMatrix.set(i*2+1, 	j*2+1, 	dwtCoef[3]);
-				}	
-			}
+			mTranformation.inverse(ma, mv, mh, md, null, 0, rows, reconstructedMatrix);
 		}
 		
 		
 		return reconstructedMatrix;
 	}
 	
-	private Map<Integer, Integer> getMatrixStatistics(Matrix m) {
-		float[][] values = m.get();
-		Map<Integer, Integer> res = new HashMap<Integer, Integer>();
-		int val;
-		Integer count;
-		int total = 0;
-		for (float[] row : values)
-			for (Float j : row) {
-				res.put((val = (int)j.floatValue()), ((count = res.get(val)) == null ? 1 : count.intValue()+1));
-				total++;
-			}
-		res.put(-1, total);
-		return res;
-	}
-
-
 }
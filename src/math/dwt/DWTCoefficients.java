@@ -8,6 +8,15 @@ public class DWTCoefficients implements Serializable, Composable{
 	public static final int GREEN 	= 1;
 	public static final int BLUE 	= 2;
 	
+	/**
+	 * Subbands of a level, see {@link #getSubband(int, int)}
+	 */
+	public static final int MA 		= 0;
+	public static final int MV 		= 1;
+	public static final int MH 		= 2;
+	public static final int MD 		= 3;
+	public static final int MAP 	= 4;
+	
 	/**
 	 * Matrixes of coefficients (avarege, vertical, horizontal, diagonal)
 	 */
@@ -15,10 +24,15 @@ public class DWTCoefficients implements Serializable, Composable{
 	private Composable ma;
 	private boolean isMaDecomposable;
 	private Matrix composedCoefsForm = null;
+	/**
+	 * Single buffer in the Mallat layout all the levels are views of, null if matrixes are separate
+	 */
+	private Matrix pyramid = null;
 	/*
 	 * Norms of matrixes
 	 */
 	private long nMv = -1, nMh = -1, nMd = -1, nMa = -1;
+	private SubbandStatistics statistics = null;
 
 	
 	//TODO make coefs srialisable to save load them
@@ -69,6 +83,64 @@ public class DWTCoefficients implements Serializable, Composable{
 	public Matrix getMap() {
 		return transformationsMap;
 	}
+	
+	/**
+	 * @return decomposition levels count, this coefs are the level 1 
+	 */
+	public int getLevelsCount() {
+		return isMaDecomposable ? 1 + ((DWTCoefficients)ma).getLevelsCount() : 1;
+	}
+	
+	/**
+	 * Subband of the given level, views into the pyramid buffer for in-place decomposition.
+	 * MA of the deepest level is the stored approximation, 
+	 * MA of the upper levels is composed from the deeper coefs
+	 * @param level		1 for this coefs, up to {@link #getLevelsCount()}
+	 * @param subband	MA, MV, MH, MD or MAP
+	 */
+	public Matrix getSubband(int level, int subband) {
+		if (level > 1) {
+			if (!isMaDecomposable) 
+				throw new IndexOutOfBoundsException("Level "+level+" is deeper than the decomposition");
+			return ((DWTCoefficients)ma).getSubband(level-1, subband);
+		}
+		switch (subband) {
+		case MA:	return getMa();
+		case MV:	return mv;
+		case MH:	return mh;
+		case MD:	return md;
+		case MAP:	return transformationsMap;
+		default:	throw new IllegalArgumentException("Unknown subband "+subband);
+		}
+	}
+	
+	/**
+	 * @return buffer with all the levels in the Mallat layout 
+	 * (LL in the top-left corner, then V, H, D per level), null if the coefs were not decomposed in place. 
+	 * Sizes are padded to multiples of 2^level, the subbands take the top-left parts of their quarters 
+	 */
+	public Matrix getPyramid() {
+		return pyramid;
+	}
+	void setPyramid(Matrix pyramid) {
+		this.pyramid = pyramid;
+	}
+
+	/**
+	 * @return statistics gathered by the transform loop, null if DWT statistics mode was off
+	 */
+	public SubbandStatistics getStatistics() {
+		return statistics;
+	}
+	void setStatistics(SubbandStatistics statistics) {
+		this.statistics = statistics;
+		if (statistics != null){
+			nMv = statistics.getNormMv();
+			nMh = statistics.getNormMh();
+			nMd = statistics.getNormMd();
+			nMa = statistics.getNormMa();
+		}
+	}
 
 	public long getNormMv() {
 		return nMv;
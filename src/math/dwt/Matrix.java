@@ -9,71 +9,164 @@ import java.io.Serializable;
 import math.utils.FileNamesConst;
 
 public class Matrix implements Serializable, Composable{
-	private static final long serialVersionUID = -6115000503774456837L;
+	/**
+	 * Changed with the flat storage: the serialized form of the float[][] values is not compatible
+	 */
+	private static final long serialVersionUID = 4620961732188542071L;
 	
-	private float [][] values;
+	/**
+	 * Row-major backing store, possibly shared with other matrixes (views)
+	 * element (row, column) lives at offset + row*rowStride + column*columnStride
+	 */
+	private float [] data;
+	private int offset;
+	private int rows, columns;
+	private int rowStride, columnStride;
 	private long norm = 0;
 	public Matrix(int rows, int columns){
-		values = new float[rows][columns];
+		this(new float[rows*columns], 0, rows, columns, columns, 1);
 //		System.out.println("Matrix created. Empty, rows = "+rows+", columns = "+columns);
 		
 	}
+	/**
+	 * Wraps the given row-major buffer without copying
+	 * @param data buffer of rows*columns values
+	 */
+	public Matrix(float [] data, int rows, int columns){
+		this(data, 0, rows, columns, columns, 1);
+	}
+	private Matrix(float [] data, int offset, int rows, int columns, int rowStride, int columnStride){
+		this.data = data;
+		this.offset = offset;
+		this.rows = rows;
+		this.columns = columns;
+		this.rowStride = rowStride;
+		this.columnStride = columnStride;
+	}
+	/**
+	 * Adapter for the 2D array form, values are copied to the flat storage
+	 * @param input
+	 */
 	public Matrix(float [][] input){
 //		int rows = (input.length % 2 == 1?input.length+1:input.length);
 //		int columns = (input[0].length % 2 == 1?input[0].length+1:input[0].length);
 //		values = new float [rows][columns]; 
 //		Collections.addAll(values, input); 
-		values = input;
+		this(input.length, input[0].length);
+		for (int i=0; i < rows; i++)
+			System.arraycopy(input[i], 0, data, i*columns, columns);
 //		System.out.println("Matrix created. Rows = "+getRowsCount()+", columns = "+getColumnsCount());
 	}
 	public Matrix(int [][] input){
-		int rows = input.length;
-		int columns = input[0].length;
-		values = new float[rows][columns];
+		this(input, 0);
+	}
+	/**
+	 * Adapter for the 2D array form with spare room in the flat storage, 
+	 * see {@link DWT#getPyramidLength}
+	 * @param capacity	length of the flat storage, at least rows*columns are allocated
+	 */
+	public Matrix(int [][] input, int capacity){
+		this(new float[Math.max(capacity, input.length*input[0].length)], 0, 
+				input.length, input[0].length, input[0].length, 1);
 		for (int i=0; i < rows; i++)
 			for (int j=0; j < columns; j++)
-				values[i][j] = input[i][j]; 
+				data[i*columns+j] = input[i][j]; 
 				
 	}
 	public Matrix buildMatrix(int [] input){
-		final int rows = getRowsCount();
-		final int columns = getColumnsCount();
 		if (input.length != rows*columns) return null;
 		for (int i=0; i < rows; i++)
 			for (int j=0; j < columns; j++)
-				values[i][j] = input[i*columns+j];
+				data[index(i, j)] = input[i*columns+j];
 		
 		return this;
 	}
 	
+	/**
+	 * View of the region sharing this matrix buffer, no values are copied
+	 * @param row		first row of the region
+	 * @param column	first column of the region
+	 * @param rows		rows count of the view
+	 * @param columns	columns count of the view
+	 * @return
+	 */
+	public Matrix subMatrix(int row, int column, int rows, int columns){
+		return subMatrix(row, column, rows, columns, 1, 1);
+	}
+	/**
+	 * Strided view: takes every rowStep-th row and every columnStep-th column 
+	 * of the region starting at (row, column)
+	 */
+	public Matrix subMatrix(int row, int column, int rows, int columns, int rowStep, int columnStep){
+		if (row < 0 || column < 0 || rows < 0 || columns < 0 
+				|| (rows > 0 && row+(rows-1)*rowStep >= this.rows) 
+				|| (columns > 0 && column+(columns-1)*columnStep >= this.columns))
+			throw new IndexOutOfBoundsException("subMatrix ("+row+", "+column+", "+rows+"x"+columns+") is out of "+this.rows+"x"+this.columns);
+		return new Matrix(data, index(row, column), rows, columns, rowStride*rowStep, columnStride*columnStep);
+	}
+	
+	/**
+	 * Adapter to the 2D array form. 
+	 * Returns a copy, writes to it do not change the matrix: 
+	 * use {@link #set(int, int, float)} or {@link #getData()} and {@link #index(int, int)} for that
+	 */
 	public float [][] get(){
+		float [][] values = new float[rows][columns];
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				values[i][j] = data[index(i, j)];
 		return values;
 	}
 	public float get(int row, int column){
-		if (row >= getRowsCount()) row = getRowsCount()-1; 
-		if (column >= getColumnsCount()) column = getColumnsCount()-1;
-		return values[row][column];
+		if (row >= rows) row = rows-1; 
+		if (column >= columns) column = columns-1;
+		return data[offset + row*rowStride + column*columnStride];
 	}
 	public int getRowsCount(){
-		return values.length;
+		return rows;
 	}
 	public int getColumnsCount(){
-		return values[0].length;
+		return columns;
 	}
 	
 	public void set(int row, int column, float value){
-		values[row][column] = value;
+		data[offset + row*rowStride + column*columnStride] = value;
+	}
+	
+	/**
+	 * @return backing buffer, shared by all the views of it
+	 */
+	public float [] getData(){
+		return data;
+	}
+	/**
+	 * @return position of (row, column) in {@link #getData()}, no bounds checks
+	 */
+	public int index(int row, int column){
+		return offset + row*rowStride + column*columnStride;
+	}
+	public int getOffset(){
+		return offset;
+	}
+	public int getRowStride(){
+		return rowStride;
+	}
+	public int getColumnStride(){
+		return columnStride;
 	}
 	
 	public long calculateNorm(){
 		if (norm == 0){ 
-			if (values == null || getColumnsCount()<1 || getRowsCount()<1)
+			if (data == null || getColumnsCount()<1 || getRowsCount()<1)
 				return -1;
 			else {
 				norm = 0;
-				for (int i = 0; i < getRowsCount(); i++ ){
-					for (int j = 0; j < getColumnsCount(); j++ ){
-						norm += values[i][j]*values[i][j];
+				float v;
+				for (int i = 0; i < rows; i++ ){
+					int k = index(i, 0);
+					for (int j = 0; j < columns; j++, k += columnStride){
+						v = data[k];
+						norm += v*v;
 					}
 				}
 			}
@@ -83,14 +176,14 @@ public class Matrix implements Serializable, Composable{
 	
 	@Override
 	public String toString() {
-		if (values == null) return "null";
+		if (data == null) return "null";
 		if (getColumnsCount()<1 || getRowsCount()<1)
 			return "empty";
 		else {
 			StringBuffer sb = new StringBuffer("{\n");
 			for (int i = 0; i < getRowsCount(); i++ ){
 				for (int j = 0; j < getColumnsCount(); j++ ){
-					sb.append(values[i][j]);
+					sb.append(data[index(i, j)]);
 					sb.append("\t");
 				}
 				sb.append("\n");
@@ -149,8 +242,8 @@ public class Matrix implements Serializable, Composable{
 		boolean equals = true;
 		for (int i = 0; i < getRowsCount(); i++){
 			for (int j = 0; j < getColumnsCount(); j++){
-				a = this.get()[i][j];
-				b = second.get()[i][j];
+				a = this.get(i, j);
+				b = second.get(i, j);
 				if (a!=b){
 					System.out.println("Matrix.equals(). Values ("+i+","+j+") differ:\t"+a+"\t"+b);
 					equals = false;
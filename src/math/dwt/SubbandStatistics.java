@@ -0,0 +1,168 @@
+package math.dwt;
+
+/**
+ * Statistics of a decomposition level gathered by the transform loop, see {@link DWT#setStatistics}:
+ * norms of the subbands, histogram of the adaptive transformations map
+ * and histograms of the quantized detail subbands.
+ * Every coefs row is accumulated right after it is transformed, while it is in the first level cache.
+ * The kernels themselves are not changed, so the transform pays nothing with the statistics off.
+ */
+public class SubbandStatistics {
+	/**
+	 * Quantization the detail subbands histograms are gathered for
+	 */
+	public interface Quantizer {
+		/**
+		 * @param level		1 for the top level
+		 * @param subband	DWTCoefficients.MV, MH or MD
+		 * @return symbols count of the band
+		 */
+		public int getSymbolsCount(int level, int subband);
+		/**
+		 * Counts the symbols of count values of data from the index with the stride
+		 */
+		public void count(float [] data, int index, int count, int stride, int level, int subband, int [] histogram);
+	}
+
+	private final int level;
+	private final Quantizer quantizer;
+	private double normMa, normMv, normMh, normMd;
+	private final int [] mapHistogram = new int[4];
+	private int mapTotal = 0;
+	/**
+	 * Histograms of the quantized mv, mh, md, null without a quantizer
+	 */
+	private final int [][] quantHistograms;
+
+	/**
+	 * @param level		1 for the top level
+	 * @param quantizer	quantization of the detail subbands histograms, may be null
+	 */
+	SubbandStatistics(int level, Quantizer quantizer) {
+		this.level = level;
+		this.quantizer = quantizer;
+		if (quantizer != null){
+			quantHistograms = new int[3][];
+			for (int k = 0; k < quantHistograms.length; k++)
+				quantHistograms[k] = new int[quantizer.getSymbolsCount(level, DWTCoefficients.MV + k)];
+		} else {
+			quantHistograms = null;
+		}
+	}
+
+	/**
+	 * @return accumulator of a band of rows, merged by {@link #merge(Accumulator)}
+	 */
+	Accumulator newAccumulator(){
+		return new Accumulator();
+	}
+
+	/**
+	 * Adds the band statistics, safe for concurrent bands
+	 */
+	synchronized void merge(Accumulator band){
+		normMa += band.a; normMv += band.v; normMh += band.h; normMd += band.d;
+		for (int i = 0; i < mapHistogram.length; i++)
+			mapHistogram[i] += band.transforms[i];
+		mapTotal += band.total;
+		if (quantHistograms != null)
+			for (int s = 0; s < quantHistograms.length; s++)
+				for (int i = 0; i < quantHistograms[s].length; i++)
+					quantHistograms[s][i] += band.quant[s][i];
+	}
+
+	/**
+	 * Statistics of a band of rows gathered by one thread
+	 */
+	class Accumulator {
+		private double a, v, h, d;
+		private final int [] transforms = new int[mapHistogram.length];
+		private int total = 0;
+		private final int [][] quant;
+
+		private Accumulator(){
+			if (quantHistograms != null){
+				quant = new int[quantHistograms.length][];
+				for (int s = 0; s < quant.length; s++)
+					quant[s] = new int[quantHistograms[s].length];
+			} else {
+				quant = null;
+			}
+		}
+
+		/**
+		 * Adds the coefs row of the level
+		 * @param map	transformations map, may be null
+		 */
+		void add(Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, int row){
+			a += sumOfSquares(ma, row);
+			v += sumOfSquares(mv, row);
+			h += sumOfSquares(mh, row);
+			d += sumOfSquares(md, row);
+			if (map != null){
+				final float [] data = map.getData();
+				final int columns = map.getColumnsCount(), cs = map.getColumnStride();
+				int k = map.index(row, 0);
+				for (int j = 0; j < columns; j++, k += cs)
+					transforms[(int) data[k]]++;
+				total += columns;
+			}
+			if (quant != null){
+				quantizer.count(mv.getData(), mv.index(row, 0), mv.getColumnsCount(), mv.getColumnStride(), 
+						level, DWTCoefficients.MV, quant[0]);
+				quantizer.count(mh.getData(), mh.index(row, 0), mh.getColumnsCount(), mh.getColumnStride(), 
+						level, DWTCoefficients.MH, quant[1]);
+				quantizer.count(md.getData(), md.index(row, 0), md.getColumnsCount(), md.getColumnStride(), 
+						level, DWTCoefficients.MD, quant[2]);
+			}
+		}
+	}
+
+	private static double sumOfSquares(Matrix m, int row){
+		final float [] data = m.getData();
+		final int columns = m.getColumnsCount(), cs = m.getColumnStride();
+		double sum = 0;
+		float v;
+		int k = m.index(row, 0);
+		for (int j = 0; j < columns; j++, k += cs){
+			v = data[k];
+			sum += v*v;
+		}
+		return sum;
+	}
+
+	public long getNormMa() {
+		return (long) normMa;
+	}
+	public long getNormMv() {
+		return (long) normMv;
+	}
+	public long getNormMh() {
+		return (long) normMh;
+	}
+	public long getNormMd() {
+		return (long) normMd;
+	}
+
+	/**
+	 * @return blocks count per transformation of the adaptive map (classic, vertical, horizontal, diagonal)
+	 */
+	public int [] getMapHistogram() {
+		return mapHistogram;
+	}
+	public int getMapTotal() {
+		return mapTotal;
+	}
+
+	/**
+	 * @param subband	DWTCoefficients.MV, MH or MD
+	 * @return count per quantized symbol of the subband, null if no quantizer was given
+	 */
+	public int [] getQuantizedHistogram(int subband) {
+		if (quantHistograms == null)
+			return null;
+		if (subband < DWTCoefficients.MV || subband > DWTCoefficients.MD)
+			throw new IllegalArgumentException("Subband " + subband + " is not a detail subband");
+		return quantHistograms[subband - DWTCoefficients.MV];
+	}
+}
@@ -13,6 +13,29 @@ public interface Wavelet2DTransformation {
 	 */
 	public float [] inverse(float [] coef);
 	
+	/**
+	 * Bulk form of {@link #perform(float[])}, no per block allocations.
+	 * Transforms 2x2 blocks of the input rows [fromRow, toRow) straight into the coefs matrixes, 
+	 * block (i, j) goes to (i/2, j/2). Odd edges are clamped the same way as Matrix.get(row, column) does
+	 * @param input		matrix to decompose
+	 * @param fromRow	first row, even
+	 * @param toRow		row after the last one
+	 * @param ma		average coefs
+	 * @param mv		vertical
+	 * @param mh		horizontal
+	 * @param md		diagonal
+	 * @param map		transformations map, used by adaptive transform only (may be null otherwise)
+	 */
+	public void perform(Matrix input, int fromRow, int toRow, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map);
+	
+	/**
+	 * Bulk form of {@link #inverse(float[])}, no per block allocations.
+	 * Reconstructs coefs rows [fromRow, toRow) into 2x2 blocks of the output
+	 * @param map		transformations map, used by adaptive transform only (may be null otherwise)
+	 * @param output	matrix of twice the coefs size
+	 */
+	public void inverse(Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, int fromRow, int toRow, Matrix output);
+	
 	public String getCaption();
 	public int getLength();
 
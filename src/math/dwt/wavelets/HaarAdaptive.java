@@ -2,7 +2,7 @@ package math.dwt.wavelets;
 
 import math.dwt.Wavelet2DTransformation;
 
-public class HaarAdaptive implements Wavelet2DTransformation {
+public class HaarAdaptive extends HaarTransformation {
 //	private Wavelet2DTransformation hc, hv, hh, hd;
 	private Wavelet2DTransformation [] transformations; 
 	public HaarAdaptive(){
@@ -15,22 +15,72 @@ public class HaarAdaptive implements Wavelet2DTransformation {
 	}
 	public String getCaption(){return "HaarAdaptive";}
 	
-	float [] minCoef,coefBuf;
-	double minNorm, norm;
-	int minTranID;
+	/**
+	 * Stateless, an instance may be shared between threads
+	 */
 	@Override
 	public float[] perform(float[] inCoef) {
-		minTranID = 0;
-		minNorm = getSquareSum((minCoef = transformations[0].perform(inCoef)));
-		for (int i=1;i<transformations.length;i++){
-			norm = getSquareSum((coefBuf = transformations[i].perform(inCoef)));
-			if (norm < minNorm){
-				minNorm = norm;
-				minCoef = coefBuf;
-				minTranID = i;
-			}
+		final float [] res = new float[5];
+		performBlock(inCoef[0], inCoef[1], inCoef[2], inCoef[3], res, res, res, res, res, 0, 1, 2, 3, 4);
+		return res;
+	}
+	
+	@Override
+	protected void performRow(float [] in, int row0, int row1, int last, int cs,
+			float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, int ia, int iv, int ih, int id, int im,
+			int sa, int sv, int sh, int sd, int sm){
+		for (int c = 0; c <= last; c+=2*cs, ia+=sa, iv+=sv, ih+=sh, id+=sd, im+=sm){
+			performBlock(
+					in[row0+c],
+					in[row0+Math.min(c+cs, last)],
+					in[row1+c],
+					in[row1+Math.min(c+cs, last)],
+					pa, pv, ph, pd, pm, ia, iv, ih, id, im);
 		}
-		return new float[] {minCoef[0],minCoef[1],minCoef[2],minCoef[3],minTranID};
+	}
+	
+	/**
+	 * Fused selection kernel for one 2x2 block: detail energies of all 4 transformations 
+	 * are computed from shared partial sums and squares kept in locals.
+	 * Same choice as comparing every transformation perform() result: 
+	 * the first one with the minimal v*v+h*h+d*d wins, coefs are bit-identical.
+	 * The minimum and the coefs are picked by selects, not by branches on the data.
+	 * Writes a, v, h, d and the transformation id to the given arrays positions
+	 */
+	private static void performBlock(float c0, float c1, float c2, float c3,
+			float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, int ia, int iv, int ih, int id, int im){
+		final float s01 = c0+c1, d01 = c0-c1;
+		//HaarClassic details, also the v of the vertical, horizontal and diagonal ones
+		final float cv = (d01+c2)-c3, ch = (s01-c2)-c3, cd = (d01-c2)+c3;
+		final float cv2 = cv*cv, ch2 = ch*ch, cd2 = cd*cd;
+		//the rest of HaarVertical (h1, d1), HaarHorizotal (h2 = d01, d2), HaarDiagonal (h3, d3)
+		final float h1 = c0-c2, d1 = c1-c3, d2 = c2-c3, h3 = c0-c3, d3 = c1-c2;
+		
+		final float norm0 = cv2+ch2+cd2, norm1 = cv2+h1*h1+d1*d1, norm2 = ch2+d01*d01+d2*d2, norm3 = cd2+h3*h3+d3*d3;
+		float minNorm = norm0, v = cv, h = ch, d = cd;
+		int tranID = 0;
+		boolean less = norm1 < minNorm;
+		minNorm = less ? norm1 : minNorm;
+		h = less ? h1 : h;
+		d = less ? d1 : d;
+		tranID = less ? 1 : tranID;
+		less = norm2 < minNorm;
+		minNorm = less ? norm2 : minNorm;
+		v = less ? ch : v;
+		h = less ? d01 : h;
+		d = less ? d2 : d;
+		tranID = less ? 2 : tranID;
+		less = norm3 < minNorm;
+		v = less ? cd : v;
+		h = less ? h3 : h;
+		d = less ? d3 : d;
+		tranID = less ? 3 : tranID;
+		
+		pa[ia] = ((s01+c2)+c3)/4;
+		pv[iv] = v;
+		ph[ih] = h;
+		pd[id] = d;
+		pm[im] = tranID;
 	}
 	
 	/**
@@ -53,13 +103,46 @@ public class HaarAdaptive implements Wavelet2DTransformation {
 		return transformations[tranform].inverse(coef);
 	}
 	
+	@Override
+	protected void inverseRow(float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, 
+			int ia, int iv, int ih, int id, int im, int sa, int sv, int sh, int sd, int sm,
+			int columns, float [] out, int row0, int row1, int cs){
+		for (int j = 0, o0 = row0, o1 = row1; j < columns; j++, o0+=2*cs, o1+=2*cs, ia+=sa, iv+=sv, ih+=sh, id+=sd, im+=sm){
+			inverseBlock(pa[ia], pv[iv], ph[ih], pd[id], pm[im], out, o0, o0+cs, o1, o1+cs);
+		}
+	}
+	
 	/**
-	 * @param q coefs array
-	 * @return sum of squares of 2nd, 3rd, 4th term 
+	 * Reconstructs the block by the transformation of the map
+	 * @throws IllegalArgumentException if the map has an unknown transformation id
 	 */
-	private double getSquareSum(float [] q){
-		return q[1]*q[1]+q[2]*q[2]+q[3]*q[3];
+	private static void inverseBlock(float a, float v, float h, float d, float t,
+			float [] out, int o0, int o1, int o2, int o3){
+		final int tranID = Math.round(t);
+		if (tranID == 0){ //HaarClassic
+			out[o0] = (v+h+d)/4+a;
+			out[o1] = a+(h-v-d)/4;
+			out[o2] = a+(v-h-d)/4;
+			out[o3] = a+(d-v-h)/4;
+			return;
+		}
+		//the other ones place the same values in their own order
+		final float p = a+(2*h+v)/4, q = a+(2*d-v)/4, r = a+(v-2*h)/4, s = a-(v+2*d)/4;
+		switch (tranID) {
+		case 1: //HaarVertical
+			out[o0] = p; out[o1] = q; out[o2] = r; out[o3] = s;
+			break;
+		case 2: //HaarHorizotal
+			out[o0] = p; out[o1] = r; out[o2] = q; out[o3] = s;
+			break;
+		case 3: //HaarDiagonal
+			out[o0] = p; out[o1] = q; out[o2] = s; out[o3] = r;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown transformation id " + t + " in the transformations map");
+		}
 	}
+	
 	@Override
 	public int getLength() {
 		return 2;
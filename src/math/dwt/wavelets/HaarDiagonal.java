@@ -1,8 +1,6 @@
 package math.dwt.wavelets;
 
-import math.dwt.Wavelet2DTransformation;
-
-public class HaarDiagonal implements Wavelet2DTransformation {
+public class HaarDiagonal extends HaarTransformation {
 	
 	public String getCaption(){return "HaarDiagonal";}
 	
@@ -38,6 +36,36 @@ public class HaarDiagonal implements Wavelet2DTransformation {
 		return new float[]{c1,c2,c3,c4};
 	}
 	@Override
+	protected void performRow(float [] in, int row0, int row1, int last, int cs,
+			float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, int ia, int iv, int ih, int id, int im,
+			int sa, int sv, int sh, int sd, int sm){
+		float c0, c1, c2, c3;
+		for (int c = 0; c <= last; c+=2*cs, ia+=sa, iv+=sv, ih+=sh, id+=sd){
+			c0 = in[row0+c];
+			c1 = in[row0+Math.min(c+cs, last)];
+			c2 = in[row1+c];
+			c3 = in[row1+Math.min(c+cs, last)];
+			pa[ia] = (c0+c1+c2+c3)/4;
+			pv[iv] = (c0-c1-c2+c3);
+			ph[ih] = (c0-c3);
+			pd[id] = (c1-c2);
+		}
+	}
+	
+	@Override
+	protected void inverseRow(float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, 
+			int ia, int iv, int ih, int id, int im, int sa, int sv, int sh, int sd, int sm,
+			int columns, float [] out, int row0, int row1, int cs){
+		float a, v, h, d;
+		for (int j = 0, o0 = row0, o1 = row1; j < columns; j++, o0+=2*cs, o1+=2*cs, ia+=sa, iv+=sv, ih+=sh, id+=sd){
+			a = pa[ia]; v = pv[iv]; h = ph[ih]; d = pd[id];
+			out[o0] = a+(2*h+v)/4;
+			out[o0+cs] = a+(2*d-v)/4;
+			out[o1] = a-(v+2*d)/4;
+			out[o1+cs] = a+(v-2*h)/4;
+		}
+	}
+	@Override
 	public int getLength() {
 		return 2;
 	}
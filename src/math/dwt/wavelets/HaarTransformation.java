@@ -0,0 +1,72 @@
+package math.dwt.wavelets;
+
+import math.dwt.Matrix;
+import math.dwt.Wavelet2DTransformation;
+
+/**
+ * Bulk loops of the Haar family over 2x2 blocks. The rows loops are shared, 
+ * every variant has its own loop over the blocks of a row with the kernel inlined: 
+ * the block kernels are not called through one shared call site, which would be megamorphic
+ */
+public abstract class HaarTransformation implements Wavelet2DTransformation {
+
+	/**
+	 * Transforms the blocks of an input rows pair
+	 * 	c0	c1
+	 * 	c2	c3
+	 * and writes a, v, h, d and the transformation id of every block to the given arrays positions
+	 * @param row0, row1	positions of the rows, the same one for the clamped last row
+	 * @param last			position of the last column in the rows, the odd last column is clamped
+	 * @param cs			column stride of the input
+	 * @param pm			transformations map, used by adaptive transform only (may be null otherwise)
+	 * @param ia			position of the first block a, sa is the column stride of the a coefs, etc.
+	 */
+	protected abstract void performRow(float [] in, int row0, int row1, int last, int cs,
+			float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, int ia, int iv, int ih, int id, int im,
+			int sa, int sv, int sh, int sd, int sm);
+
+	/**
+	 * Reconstructs the coefs of a row into the blocks of the output rows pair
+	 * @param pm		transformations map, used by adaptive transform only (may be null otherwise)
+	 * @param columns	blocks count
+	 * @param row0, row1	positions of the output rows
+	 * @param cs		column stride of the output
+	 */
+	protected abstract void inverseRow(float [] pa, float [] pv, float [] ph, float [] pd, float [] pm, 
+			int ia, int iv, int ih, int id, int im, int sa, int sv, int sh, int sd, int sm,
+			int columns, float [] out, int row0, int row1, int cs);
+
+	@Override
+	public void perform(Matrix input, int fromRow, int toRow, Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map){
+		final float [] in = input.getData();
+		final float [] pa = ma.getData(), pv = mv.getData(), ph = mh.getData(), pd = md.getData();
+		final float [] pm = map != null ? map.getData() : null;
+		final int rows = input.getRowsCount();
+		final int cs = input.getColumnStride(), last = (input.getColumnsCount()-1)*cs;
+		final int sa = ma.getColumnStride(), sv = mv.getColumnStride(), sh = mh.getColumnStride(), sd = md.getColumnStride();
+		final int sm = map != null ? map.getColumnStride() : 0;
+		for (int i = fromRow; i < toRow; i+=2){
+			performRow(in, input.index(i, 0), input.index(Math.min(i+1, rows-1), 0), last, cs,
+					pa, pv, ph, pd, pm, 
+					ma.index(i/2, 0), mv.index(i/2, 0), mh.index(i/2, 0), md.index(i/2, 0), map != null ? map.index(i/2, 0) : 0,
+					sa, sv, sh, sd, sm);
+		}
+	}
+
+	@Override
+	public void inverse(Matrix ma, Matrix mv, Matrix mh, Matrix md, Matrix map, int fromRow, int toRow, Matrix output){
+		final float [] out = output.getData();
+		final float [] pa = ma.getData(), pv = mv.getData(), ph = mh.getData(), pd = md.getData();
+		final float [] pm = map != null ? map.getData() : null;
+		final int columns = mv.getColumnsCount();
+		final int cs = output.getColumnStride();
+		final int sa = ma.getColumnStride(), sv = mv.getColumnStride(), sh = mh.getColumnStride(), sd = md.getColumnStride();
+		final int sm = map != null ? map.getColumnStride() : 0;
+		for (int i = fromRow; i < toRow; i++){
+			inverseRow(pa, pv, ph, pd, pm, 
+					ma.index(i, 0), mv.index(i, 0), mh.index(i, 0), md.index(i, 0), map != null ? map.index(i, 0) : 0,
+					sa, sv, sh, sd, sm, 
+					columns, out, output.index(i*2, 0), output.index(i*2+1, 0), cs);
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package math.image;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the rows of a PNG file one by one, top to bottom: the compressed data is inflated
+ * and unfiltered as the rows are read, so every row is decoded once and two rows are held.
+ * Non interlaced RGB and RGBA images of 8 bits and palette images are decoded,
+ * see {@link #open(File)} for the others.
+ */
+class PngRowReader {
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452, PLTE = 0x504C5445, IDAT = 0x49444154;
+	private static final int COLOR_RGB = 2, COLOR_PALETTE = 3, COLOR_RGBA = 6;
+
+	private final DataInputStream mInput;
+	private final InputStream mPixels;
+	private final int width, height, depth, colorType;
+	/**
+	 * Bytes of a pixel, 1 for the pixels of less than a byte, filters compare the bytes a pixel apart
+	 */
+	private final int pixelBytes;
+	private int [] palette;
+	private byte [] row, previous;
+	private int nextRow = 0;
+	/**
+	 * Bytes left in the current chunk
+	 */
+	private int chunkLength;
+
+	private PngRowReader(DataInputStream input, int width, int height, int depth, int colorType) throws IOException {
+		this.mInput = input;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.colorType = colorType;
+		final int bits = depth * (colorType == COLOR_RGB ? 3 : colorType == COLOR_RGBA ? 4 : 1);
+		pixelBytes = Math.max(1, bits / 8);
+		row = new byte[(int) (((long) width * bits + 7) / 8)];
+		previous = new byte[row.length];
+		int type;
+		while ((type = readChunkHeader()) != IDAT) {
+			if (type == PLTE) {
+				palette = new int[chunkLength / 3];
+				for (int i = 0; i < palette.length; i++)
+					palette[i] = (mInput.readUnsignedByte() << 16) | (mInput.readUnsignedByte() << 8) | mInput.readUnsignedByte();
+				chunkLength -= palette.length * 3;
+			}
+			skipChunk();
+		}
+		if (colorType == COLOR_PALETTE && palette == null)
+			throw new IOException("PNG palette is missing");
+		mPixels = new InflaterInputStream(new IdatInputStream());
+	}
+
+	/**
+	 * @return reader of the file, null if it is not a PNG file or its pixels are not decoded by the reader
+	 * (gray, 16 bits or interlaced ones)
+	 */
+	static PngRowReader open(File file) throws IOException {
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		boolean opened = false;
+		try {
+			if (file.length() < 8 + 8 + 13 || input.readLong() != SIGNATURE || input.readInt() != 13 || input.readInt() != IHDR)
+				return null;
+			final int width = input.readInt(), height = input.readInt();
+			final int depth = input.readUnsignedByte(), colorType = input.readUnsignedByte();
+			final int compression = input.readUnsignedByte(), filter = input.readUnsignedByte(), interlace = input.readUnsignedByte();
+			input.readInt(); // crc
+			if (compression != 0 || filter != 0 || interlace != 0 || width <= 0 || height <= 0)
+				return null;
+			if (!((colorType == COLOR_RGB || colorType == COLOR_RGBA) && depth == 8 || colorType == COLOR_PALETTE))
+				return null;
+			final PngRowReader reader = new PngRowReader(input, width, height, depth, colorType);
+			opened = true;
+			return reader;
+		} finally {
+			if (!opened)
+				input.close();
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	/**
+	 * @return row read by the next {@link #readRow(int[], int)}
+	 */
+	public int getNextRow() {
+		return nextRow;
+	}
+
+	/**
+	 * Decodes the next row into the colors, 0xRRGGBB per pixel
+	 */
+	public void readRow(int [] rgbs, int offset) throws IOException {
+		if (nextRow >= height)
+			throw new EOFException("PNG rows are over");
+		final byte [] swap = previous;
+		previous = row;
+		row = swap;
+		final int filter = mPixels.read();
+		if (filter < 0)
+			throw new EOFException("PNG pixels are truncated");
+		readFully(row);
+		unfilter(filter);
+		nextRow++;
+
+		switch (colorType) {
+		case COLOR_RGB:
+		case COLOR_RGBA:
+			for (int j = 0, k = 0; j < width; j++, k += pixelBytes)
+				rgbs[offset + j] = ((row[k] & 0xFF) << 16) | ((row[k + 1] & 0xFF) << 8) | (row[k + 2] & 0xFF);
+			break;
+		default:
+			final int perByte = 8 / depth, mask = (1 << depth) - 1;
+			int index;
+			for (int j = 0; j < width; j++) {
+				index = (row[j / perByte] >> (8 - depth - (j % perByte) * depth)) & mask;
+				if (index >= palette.length)
+					throw new IOException("PNG palette index " + index + " is out of " + palette.length);
+				rgbs[offset + j] = palette[index];
+			}
+		}
+	}
+
+	/**
+	 * Skips the rows, they are decoded still
+	 */
+	public void skipRows(int rows, int [] buffer) throws IOException {
+		for (int i = 0; i < rows; i++)
+			readRow(buffer, 0);
+	}
+
+	private void readFully(byte [] bytes) throws IOException {
+		int read;
+		for (int n = 0; n < bytes.length; n += read)
+			if ((read = mPixels.read(bytes, n, bytes.length - n)) < 0)
+				throw new EOFException("PNG pixels are truncated");
+	}
+
+	/**
+	 * Filters of the PNG specification, the bytes of the previous row are 0 for the first row
+	 */
+	private void unfilter(int filter) throws IOException {
+		if (nextRow == 0)
+			Arrays.fill(previous, (byte) 0);
+		final int bpp = pixelBytes;
+		int a, b, c, p, pa, pb, pc;
+		switch (filter) {
+		case 0:
+			break;
+		case 1:
+			for (int k = bpp; k < row.length; k++)
+				row[k] += row[k - bpp];
+			break;
+		case 2:
+			for (int k = 0; k < row.length; k++)
+				row[k] += previous[k];
+			break;
+		case 3:
+			for (int k = 0; k < row.length; k++)
+				row[k] += ((k >= bpp ? row[k - bpp] & 0xFF : 0) + (previous[k] & 0xFF)) >> 1;
+			break;
+		case 4:
+			for (int k = 0; k < row.length; k++) {
+				a = k >= bpp ? row[k - bpp] & 0xFF : 0;
+				b = previous[k] & 0xFF;
+				c = k >= bpp ? previous[k - bpp] & 0xFF : 0;
+				p = a + b - c;
+				pa = Math.abs(p - a);
+				pb = Math.abs(p - b);
+				pc = Math.abs(p - c);
+				row[k] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+			}
+			break;
+		default:
+			throw new IOException("Unknown PNG filter " + filter);
+		}
+	}
+
+	/**
+	 * @return type of the chunk, its length is in chunkLength
+	 */
+	private int readChunkHeader() throws IOException {
+		chunkLength = mInput.readInt();
+		if (chunkLength < 0)
+			throw new IOException("Wrong PNG chunk length " + chunkLength);
+		return mInput.readInt();
+	}
+
+	/**
+	 * Skips the rest of the chunk and its crc
+	 */
+	private void skipChunk() throws IOException {
+		int skipped;
+		for (long n = chunkLength + 4L; n > 0; n -= skipped)
+			if ((skipped = mInput.skipBytes((int) Math.min(n, Integer.MAX_VALUE))) <= 0) {
+				mInput.readByte();
+				skipped = 1;
+			}
+	}
+
+	/**
+	 * Data of the consecutive IDAT chunks
+	 */
+	private class IdatInputStream extends InputStream {
+		private boolean ended = false;
+
+		private boolean next() throws IOException {
+			while (!ended && chunkLength == 0) {
+				mInput.readInt(); // crc
+				if (readChunkHeader() != IDAT)
+					ended = true;
+			}
+			return !ended;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!next())
+				return -1;
+			chunkLength--;
+			return mInput.readUnsignedByte();
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!next())
+				return -1;
+			final int read = mInput.read(b, off, Math.min(len, chunkLength));
+			if (read < 0)
+				throw new EOFException("PNG chunk is truncated");
+			chunkLength -= read;
+			return read;
+		}
+	}
+
+	public void close() throws IOException {
+		mInput.close();
+	}
+}
@@ -0,0 +1,137 @@
+package math.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import math.dwt.Matrix;
+
+/**
+ * Reads an image file by horizontal strips, top to bottom.
+ * Colors of a strip go straight to the float matrixes,
+ * without the whole image BufferedImage and int planes of ImageObject.
+ * The rows of PNG files are decoded incrementally by {@link PngRowReader}, every row once.
+ * Other files are decoded by ImageIO a band of rows at a time. ImageIO readers decode a source region 
+ * from the top of the image (BMP, JPEG), so every band decodes the rows above it again: 
+ * bands of BAND_PIXELS keep the decoded rows about (height / band rows)^2 / 2 times the image, 
+ * not (height / strip rows)^2 / 2
+ */
+public class StripImageReader {
+	/**
+	 * Pixels of the band decoded at once, 16 MB of colors. A band is a strip at least
+	 */
+	public static final int BAND_PIXELS = 1 << 22;
+
+	private final File mFile;
+	private PngRowReader mPng;
+	private ImageInputStream mInput;
+	private ImageReader mReader;
+	private int width, height;
+	/**
+	 * Colors of the decoded band rows
+	 */
+	private int [] rgbs;
+	private int bandRow = 0, bandRows = 0;
+
+	public StripImageReader(String filename) throws IOException {
+		mFile = new File(filename);
+		mPng = PngRowReader.open(mFile);
+		if (mPng != null){
+			width = mPng.getWidth();
+			height = mPng.getHeight();
+			return;
+		}
+		mInput = ImageIO.createImageInputStream(mFile);
+		if (mInput == null)
+			throw new IOException("Cannot open "+filename);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(mInput);
+		if (!readers.hasNext()){
+			mInput.close();
+			throw new IOException("No image reader for "+filename);
+		}
+		mReader = readers.next();
+		mReader.setInput(mInput, true, true);
+		width = mReader.getWidth(0);
+		height = mReader.getHeight(0);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * PNG strips are decoded row by row, a strip above the last read one opens the file again. 
+	 * Other strips are cut from the decoded band, the next band is decoded from the strip row
+	 * @param row		first row of the strip
+	 * @param rows		strip height, cut by the image height
+	 * @return red, green and blue matrixes of the strip
+	 */
+	public Matrix [] readStrip(int row, int rows) throws IOException {
+		rows = Math.min(rows, height-row);
+		if (mPng != null)
+			readPngRows(row, rows);
+		else if (row < bandRow || row+rows > bandRow+bandRows)
+			readBand(row, Math.max(rows, BAND_PIXELS/Math.max(1, width)));
+
+		final float [] r = new float[width*rows], g = new float[width*rows], b = new float[width*rows];
+		final int offset = (row-bandRow)*width;
+		int rgb;
+		for (int i = 0; i < width*rows; i++){
+			rgb = rgbs[offset+i];
+			r[i] = (rgb >> 16) & 0xFF;
+			g[i] = (rgb >> 8) & 0xFF;
+			b[i] = rgb & 0xFF;
+		}
+		return new Matrix[] {
+				new Matrix(r, rows, width),
+				new Matrix(g, rows, width),
+				new Matrix(b, rows, width)
+		};
+	}
+
+	private void readPngRows(int row, int rows) throws IOException {
+		if (rgbs == null || rgbs.length < width*rows)
+			rgbs = new int[width*rows];
+		if (row < mPng.getNextRow()){
+			mPng.close();
+			mPng = PngRowReader.open(mFile);
+		}
+		mPng.skipRows(row-mPng.getNextRow(), rgbs);
+		for (int i = 0; i < rows; i++)
+			mPng.readRow(rgbs, i*width);
+		bandRow = row;
+		bandRows = rows;
+	}
+
+	private void readBand(int row, int rows) throws IOException {
+		rows = Math.min(rows, height-row);
+		ImageReadParam param = mReader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(0, row, width, rows));
+		BufferedImage band = mReader.read(0, param);
+
+		if (rgbs == null || rgbs.length < width*rows)
+			rgbs = new int[width*rows];
+		band.getRGB(0, 0, width, rows, rgbs, 0, width);
+		bandRow = row;
+		bandRows = rows;
+	}
+
+	public void close() throws IOException {
+		if (mPng != null){
+			mPng.close();
+			return;
+		}
+		mReader.dispose();
+		mInput.close();
+	}
+}
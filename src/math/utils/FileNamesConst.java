@@ -5,6 +5,7 @@ public interface FileNamesConst {
 	String extJPEG = ".jpg";
 	String extBMP = ".bmp";
 	String extBIN = ".ahaars";
+	String extStripsBIN = ".sahaars";
 	
 	String resultsFolder = "results/";
 	String resultsQuantizationFolder = "quantization/";
@@ -0,0 +1,109 @@
+package math.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import math.dwt.DWTCoefficients;
+import math.dwt.Matrix;
+
+import org.junit.Test;
+
+public class DeadzoneQuantizerTest {
+
+	@Test
+	public void quantizeMatchesDefinition() {
+		final float [] data = new float[37 * 53];
+		final Random random = new Random(1);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (float) (random.nextGaussian() * 60);
+		data[0] = 0;
+		data[1] = -0f;
+		data[2] = 1000;
+		data[3] = -1000;
+		data[4] = Float.NaN;
+		final Matrix m = new Matrix(data, 37, 53);
+		final DeadzoneQuantizer quantizer = new DeadzoneQuantizer(16).setStep(2, DWTCoefficients.MH, 7.5f)
+				.setDeadzone(2, DWTCoefficients.MH, 1.2f);
+		for (int level = 1; level <= 2; level++)
+			for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++)
+				assertQuantized(quantizer, m, level, subband);
+		// strided view, the symbols go after an offset
+		assertQuantized(quantizer, m.subMatrix(1, 1, 18, 26, 2, 2), 2, DWTCoefficients.MH);
+	}
+
+	/**
+	 * The statistics counting gives the histogram of the written symbols
+	 */
+	@Test
+	public void countMatchesQuantize() {
+		final float [] data = new float[37 * 53];
+		final Random random = new Random(2);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (float) (random.nextGaussian() * 60);
+		final Matrix m = new Matrix(data, 37, 53).subMatrix(1, 1, 18, 26, 2, 2);
+		final DeadzoneQuantizer quantizer = new DeadzoneQuantizer(16).setStep(3, DWTCoefficients.MD, 5)
+				.setDeadzone(3, DWTCoefficients.MD, 1.1f);
+		for (int level = 2; level <= 3; level++) {
+			final int count = quantizer.getSymbolsCount(level, DWTCoefficients.MD);
+			assertEquals(2 * DeadzoneQuantizer.getMaxLevel(quantizer.getStep(level, DWTCoefficients.MD)) + 1, count);
+			final int [] expected = new int[count], histogram = new int[count];
+			quantizer.quantize(m, level, DWTCoefficients.MD, new short[18 * 26], 0, expected);
+			for (int i = 0; i < m.getRowsCount(); i++)
+				quantizer.count(m.getData(), m.index(i, 0), m.getColumnsCount(), m.getColumnStride(), level, DWTCoefficients.MD,
+						histogram);
+			assertArrayEquals("level " + level, expected, histogram);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void levelZeroFails() {
+		new DeadzoneQuantizer(16).setStep(0, DWTCoefficients.MV, 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void levelPastMaxFails() {
+		new DeadzoneQuantizer(16).setStep(33, 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void averageSubbandFails() {
+		new DeadzoneQuantizer(16).setDeadzone(1, DWTCoefficients.MA, 1.5f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void stepNaNFails() {
+		new DeadzoneQuantizer(16).setStep(1, DWTCoefficients.MD, Float.NaN);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void deadzonePastTwoFails() {
+		new DeadzoneQuantizer(16).setDeadzone(1, DWTCoefficients.MD, 2.5f);
+	}
+
+	private static void assertQuantized(DeadzoneQuantizer quantizer, Matrix m, int level, int subband) {
+		final float step = quantizer.getStep(level, subband);
+		final float deadzone = quantizer.getDeadzone(level, subband);
+		final int maxLevel = DeadzoneQuantizer.getMaxLevel(step);
+		final int offset = 3;
+		final short [] symbols = new short[offset + m.getRowsCount() * m.getColumnsCount()];
+		final int [] histogram = new int[2 * maxLevel + 1];
+		quantizer.quantize(m, level, subband, symbols, offset, histogram);
+
+		final short [] expected = new short[symbols.length];
+		final int [] expectedHistogram = new int[histogram.length];
+		for (int i = 0, n = offset; i < m.getRowsCount(); i++)
+			for (int j = 0; j < m.getColumnsCount(); j++, n++) {
+				final float c = m.get(i, j);
+				int q = Float.isNaN(c) ? 0 : (int) Math.min(Math.abs(c) * (1 / step) + 1 - deadzone / 2, maxLevel);
+				if (c < 0)
+					q = -q;
+				expected[n] = (short) (q + maxLevel);
+				expectedHistogram[expected[n]]++;
+			}
+		assertArrayEquals("level " + level + " subband " + subband, expected, symbols);
+		assertArrayEquals("histogram of level " + level + " subband " + subband, expectedHistogram, histogram);
+		assertEquals(0, symbols[0]);
+	}
+}
@@ -0,0 +1,119 @@
+package math.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.IllegalFormatFlagsException;
+import java.util.Random;
+
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
+
+import org.junit.Test;
+
+public class HuffmanDecoderTest {
+
+	@Test
+	public void primaryTableCodes() throws Exception {
+		final int [] frequencies = { 10, 300, 40, 7, 90, 1 };
+		roundTrip(frequencies, HuffmanTable.build(new FreqStatistics(frequencies), 16), 2000, 1);
+	}
+
+	/**
+	 * Codes up to 25 bits go through two secondary tables
+	 */
+	@Test
+	public void secondaryTableCodes() throws Exception {
+		final int [] frequencies = new int[26];
+		frequencies[0] = frequencies[1] = 1;
+		for (int v = 2; v < frequencies.length; v++)
+			frequencies[v] = frequencies[v - 1] + frequencies[v - 2];
+		final HuffmanTable table = HuffmanTable.build(new FreqStatistics(frequencies), 32);
+		assertEquals(HuffmanDecoder.PRIMARY_BITS + 2 * HuffmanDecoder.SECONDARY_BITS - 1, table.getLength(0));
+		roundTrip(frequencies, table, 5000, 2);
+	}
+
+	/**
+	 * Every value of the alphabet is coded at least once, so every leaf of the tables is hit
+	 */
+	@Test
+	public void limitedCodesOfWideAlphabet() throws Exception {
+		final int [] frequencies = new int[600];
+		final Random random = new Random(3);
+		for (int v = 0; v < frequencies.length; v++)
+			frequencies[v] = 1 + random.nextInt(1 << random.nextInt(14));
+		final HuffmanTable table = HuffmanTable.build(new FreqStatistics(frequencies), 14);
+		final short [] symbols = new short[frequencies.length * 4];
+		for (int i = 0; i < symbols.length; i++)
+			symbols[i] = (short) (i < frequencies.length ? i : random.nextInt(frequencies.length));
+		roundTrip(table, frequencies.length, symbols, null);
+	}
+
+	@Test
+	public void runLeafs() throws Exception {
+		final HuffmanTable table = new HuffmanTable(new byte[] { 1, 2, 2 });
+		final short [] symbols = { 0, 2, 1, 2, 0, 0, 1 };
+		roundTrip(table, 3, symbols, new int[] { 1, 3, 2 });
+	}
+
+	@Test(expected = IllegalFormatFlagsException.class)
+	public void unknownCodeFails() throws Exception {
+		//code 11 is not used
+		final HuffmanDecoder decoder = new HuffmanTable(new byte[] { 1, 2, 0 }).getDecoder(new float[] { 0, 1, 2 });
+		decoder.decode(new BitInputStream(new ByteArrayInputStream(new byte[] { (byte) 0xFF })), 8, new float[8], 0, 8);
+	}
+
+	private static void roundTrip(int [] frequencies, HuffmanTable table, int count, long seed) throws IOException {
+		long total = 0;
+		for (int f : frequencies)
+			total += f;
+		final Random random = new Random(seed);
+		final short [] symbols = new short[count];
+		for (int i = 0; i < count; i++) {
+			long r = (long) (random.nextDouble() * total);
+			int v = 0;
+			while (r >= frequencies[v])
+				r -= frequencies[v++];
+			symbols[i] = (short) v;
+		}
+		//the rarest values, they have the longest codes
+		symbols[0] = 0;
+		symbols[1] = 1;
+		roundTrip(table, frequencies.length, symbols, null);
+	}
+
+	/**
+	 * Codes the symbols by the table and decodes them with a tail of other bits after the codes
+	 * @param size	values count of the table
+	 * @param runs	values count per symbol, null for one value each
+	 */
+	private static void roundTrip(HuffmanTable table, int size, short [] symbols, int [] runs) throws IOException {
+		final float [] symbolValues = new float[size];
+		for (int v = 0; v < symbolValues.length; v++)
+			symbolValues[v] = v * 0.5f;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		long bits = 0;
+		int values = 0;
+		for (short s : symbols) {
+			binOut.writeBits(table.getCode(s), (short) table.getLength(s));
+			bits += table.getLength(s);
+			values += runs == null ? 1 : runs[s];
+		}
+		binOut.writeBits(0x5A5A, (short) 16);
+		binOut.close();
+
+		final float [] expected = new float[values];
+		for (int i = 0, n = 0; i < symbols.length; i++)
+			for (int k = 0; k < (runs == null ? 1 : runs[symbols[i]]); k++)
+				expected[n++] = symbolValues[symbols[i]];
+		final BitInputStream binIn = new BitInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		final float [] decoded = new float[values];
+		assertEquals(values, table.getDecoder(symbolValues, runs).decode(binIn, bits, decoded, 0, values));
+		assertArrayEquals(expected, decoded, 0);
+		assertEquals("bits after the codes", 0x5A5A, binIn.readBits((short) 16));
+	}
+}
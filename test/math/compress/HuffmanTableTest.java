@@ -0,0 +1,125 @@
+package math.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
+
+import org.junit.Test;
+
+public class HuffmanTableTest {
+
+	@Test
+	public void canonicalCodes() {
+		final HuffmanTable table = new HuffmanTable(new byte[] { 2, 1, 3, 0, 3 });
+		assertEquals(0b10, table.getCode(0));
+		assertEquals(0b0, table.getCode(1));
+		assertEquals(0b110, table.getCode(2));
+		assertEquals(0, table.getLength(3));
+		assertEquals(0b111, table.getCode(4));
+	}
+
+	@Test
+	public void codesArePrefixFree() {
+		final int [] frequencies = new int[200];
+		final Random random = new Random(1);
+		for (int v = 0; v < frequencies.length; v++)
+			frequencies[v] = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(1 << random.nextInt(16));
+		final HuffmanTable table = HuffmanTable.build(new FreqStatistics(frequencies), 16);
+		for (int a = 0; a < frequencies.length; a++)
+			for (int b = 0; b < frequencies.length; b++) {
+				final int la = table.getLength(a), lb = table.getLength(b);
+				assertEquals("value " + a, frequencies[a] > 0, la > 0);
+				if (a == b || la == 0 || lb == 0 || la > lb)
+					continue;
+				assertTrue(a + " is a prefix of " + b, table.getCode(b) >>> (lb - la) != table.getCode(a));
+			}
+	}
+
+	@Test
+	public void bitsCount() {
+		final int [] frequencies = { 1, 1, 2, 4, 8, 16 };
+		assertEquals(5 + 5 + 8 + 12 + 16 + 16, HuffmanTable.build(new FreqStatistics(frequencies), 16)
+				.getBitsCount(new FreqStatistics(frequencies)));
+	}
+
+	@Test
+	public void singleUsedValue() {
+		final byte [] lengths = HuffmanTable.codeLengths(new int[] { 0, 0, 7, 0 }, 16);
+		assertArrayEquals(new byte[] { 1, 0, 1, 0 }, lengths);
+		assertEquals(1, new HuffmanTable(lengths).getLength(2));
+		assertArrayEquals(new byte[] { 1, 1 }, HuffmanTable.codeLengths(new int[] { 7, 0 }, 16));
+	}
+
+	@Test
+	public void alphabetOfOneValue() throws Exception {
+		final byte [] lengths = HuffmanTable.codeLengths(new int[] { 5 }, 16);
+		assertArrayEquals(new byte[] { 1 }, lengths);
+
+		final HuffmanTable table = new HuffmanTable(lengths);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		for (int i = 0; i < 5; i++)
+			binOut.writeBits(table.getCode(0), (short) table.getLength(0));
+		binOut.close();
+		final float [] decoded = new float[5];
+		assertEquals(5, table.getDecoder(new float[] { 3 }).decode(
+				new BitInputStream(new ByteArrayInputStream(bytes.toByteArray())), 5, decoded, 0, 5));
+		assertArrayEquals(new float[] { 3, 3, 3, 3, 3 }, decoded, 0);
+	}
+
+	@Test
+	public void noUsedValues() {
+		assertArrayEquals(new byte[3], HuffmanTable.codeLengths(new int[3], 16));
+	}
+
+	@Test
+	public void huffmanLengths() {
+		assertArrayEquals(new byte[] { 5, 5, 4, 3, 2, 1 }, HuffmanTable.codeLengths(new int[] { 1, 1, 2, 4, 8, 16 }, 16));
+	}
+
+	@Test
+	public void packageMergeLimit() {
+		final int [] frequencies = { 1, 1, 2, 4, 8, 16 };
+		// 4 bits: the cheapest lengths of the full code are 4, 4, 4, 4, 2, 1
+		assertArrayEquals(new byte[] { 4, 4, 4, 4, 2, 1 }, HuffmanTable.codeLengths(frequencies, 4));
+		// the limit is raised to fit the values count
+		assertArrayEquals(new byte[] { 3, 3, 3, 3, 2, 2 }, HuffmanTable.codeLengths(frequencies, 2));
+	}
+
+	@Test
+	public void packageMergeFibonacci() {
+		final int [] frequencies = new int[30];
+		frequencies[0] = frequencies[1] = 1;
+		for (int v = 2; v < frequencies.length; v++)
+			frequencies[v] = frequencies[v - 1] + frequencies[v - 2];
+		assertEquals(29, getMaxLength(HuffmanTable.codeLengths(frequencies, 32)));
+		for (int limit = 5; limit <= 29; limit++) {
+			final byte [] lengths = HuffmanTable.codeLengths(frequencies, limit);
+			assertEquals("limit " + limit, limit, getMaxLength(lengths));
+			assertEquals("Kraft sum, limit " + limit, 1.0, getKraftSum(lengths), 0);
+		}
+	}
+
+	private static int getMaxLength(byte [] lengths) {
+		int max = 0;
+		for (byte l : lengths)
+			max = Math.max(max, l);
+		return max;
+	}
+
+	private static double getKraftSum(byte [] lengths) {
+		double sum = 0;
+		for (byte l : lengths)
+			if (l > 0)
+				sum += Math.pow(2, -l);
+		assertTrue(sum <= 1);
+		return sum;
+	}
+}
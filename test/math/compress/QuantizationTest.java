@@ -0,0 +1,332 @@
+package math.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import math.compress.utils.BinaryFileFormat;
+import math.compress.utils.BitInputStream;
+import math.compress.utils.BitOutputStream;
+import math.dwt.DWT;
+import math.dwt.DWTCoefficients;
+import math.dwt.Matrix;
+import math.dwt.Wavelet2DTransformation;
+import math.dwt.wavelets.HaarAdaptive;
+import math.dwt.wavelets.HaarClassic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuantizationTest {
+	private static final int LEVELS = 32;
+	/**
+	 * Sides of the images, odd ones included. 800x700 has level subbands of more than two stripes
+	 */
+	private static final int [][] SIZES = { { 1, 1 }, { 3, 5 }, { 37, 53 }, { 129, 65 }, { 800, 700 } };
+
+	private ForkJoinPool pool;
+
+	@Before
+	public void setUp() {
+		BinaryFileFormat.init(LEVELS);
+		pool = new ForkJoinPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void sequentialAndParallelBytesIdentical() throws Exception {
+		for (int [] size : SIZES)
+			for (int restartRows : new int[] { 0, 5 }) {
+				final DWTCoefficients [] coefs = decompose(size, new HaarAdaptive(), 3, 1);
+				final byte [] sequential = encode(coefs, new Quantization(LEVELS).setRestartRows(restartRows));
+				final byte [] parallel = encode(coefs, new Quantization(LEVELS).setRestartRows(restartRows).setPool(pool));
+				assertArrayEquals(size[0] + "x" + size[1] + " restarts " + restartRows, sequential, parallel);
+			}
+	}
+
+	/**
+	 * Huffman codes only, so the stripes of the large subbands are counted and coded concurrently 
+	 * and their bits are joined in the container chunks
+	 */
+	@Test
+	public void stripedHuffmanBytesIdentical() throws Exception {
+		final DWTCoefficients [] coefs = decompose(new int[] { 800, 700 }, new HaarClassic(), 2, 6);
+		final byte [] sequential = encode(coefs, new Quantization(LEVELS).setEntropyCoders());
+		final byte [] parallel = encode(coefs, new Quantization(LEVELS).setEntropyCoders().setPool(pool));
+		assertArrayEquals(sequential, parallel);
+		assertSameDetails("striped", decodeStream(sequential, new Quantization(LEVELS).setEntropyCoders()),
+				decodeBuffer(parallel, new Quantization(LEVELS).setEntropyCoders().setPool(pool)));
+	}
+
+	@Test
+	public void decodeMatchesQuantizer() throws Exception {
+		for (int [] size : SIZES)
+			for (Wavelet2DTransformation wavelet : new Wavelet2DTransformation[] { new HaarClassic(), new HaarAdaptive() })
+				for (int levels = 1; levels <= 3; levels++) {
+					final String name = size[0] + "x" + size[1] + " " + wavelet.getCaption() + " L" + levels;
+					final DWTCoefficients [] coefs = decompose(size, wavelet, levels, 2);
+					final byte [] file = encode(coefs, new Quantization(LEVELS));
+					assertQuantized(name + " stream", coefs, decodeStream(file, new Quantization(LEVELS)));
+					assertQuantized(name + " buffer", coefs, decodeBuffer(file, new Quantization(LEVELS).setPool(pool)));
+				}
+	}
+
+	@Test
+	public void flatImageDecodes() throws Exception {
+		final Matrix [] channels = new Matrix[3];
+		for (int k = 0; k < channels.length; k++) {
+			final int [][] pixels = new int[16][16];
+			for (int [] row : pixels)
+				Arrays.fill(row, 100);
+			channels[k] = new Matrix(pixels);
+		}
+		final DWTCoefficients [] coefs = new DWT(new HaarClassic()).decompose(channels, false, false, 2);
+		assertQuantized("flat", coefs, decodeStream(encode(coefs, new Quantization(LEVELS)), new Quantization(LEVELS)));
+	}
+
+	@Test
+	public void restartsDecodeAsSingleSegment() throws Exception {
+		for (int [] size : SIZES) {
+			final String name = size[0] + "x" + size[1];
+			final DWTCoefficients [] coefs = decompose(size, new HaarAdaptive(), 2, 3);
+			final byte [] single = encode(coefs, new Quantization(LEVELS));
+			final byte [] restarts = encode(coefs, new Quantization(LEVELS).setRestartRows(3));
+			if (size[0] > 12)
+				assertFalse(name, Arrays.equals(single, restarts));
+			final DWTCoefficients [] expected = decodeStream(single, new Quantization(LEVELS));
+			assertSameDetails(name + " stream", expected, decodeStream(restarts, new Quantization(LEVELS)));
+			assertSameDetails(name + " concurrent segments", expected,
+					decodeBuffer(restarts, new Quantization(LEVELS).setPool(pool)));
+		}
+	}
+
+	@Test
+	public void ransDecodesAsHuffman() throws Exception {
+		for (int [] size : SIZES) {
+			final String name = size[0] + "x" + size[1];
+			final DWTCoefficients [] coefs = decompose(size, new HaarClassic(), 3, 4);
+			final byte [] huffman = encode(coefs, new Quantization(LEVELS).setEntropyCoders());
+			final byte [] rans = encode(coefs, new Quantization(LEVELS).setEntropyCoders(new RansCoder()));
+			assertTrue(name + " rANS " + rans.length + " bytes, Huffman " + huffman.length, rans.length <= huffman.length);
+			assertSameDetails(name, decodeStream(huffman, new Quantization(LEVELS)),
+					decodeBuffer(rans, new Quantization(LEVELS).setPool(pool)));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownCoderFails() throws Exception {
+		final DWTCoefficients [] coefs = decompose(new int[] { 129, 65 }, new HaarClassic(), 1, 5);
+		decodeStream(encode(coefs, new Quantization(LEVELS)), new Quantization(LEVELS).setEntropyCoders());
+	}
+
+	/**
+	 * Sizes are even at every level, the files before the container do not record odd sides
+	 */
+	@Test
+	public void olderVersionsRoundTrip() throws Exception {
+		for (int [] size : new int[][] { { 4, 8 }, { 36, 52 }, { 128, 64 } })
+			for (int levels : new int[] { 1, 16, LEVELS }) {
+				final DWTCoefficients [] coefs = decompose(size, new HaarAdaptive(), 2, 6);
+				DWTCoefficients [] previous = null;
+				for (int version : new int[] { BinaryFileFormat.VERSION_TREE, BinaryFileFormat.VERSION_CODE_LENGTHS }) {
+					final String name = size[0] + "x" + size[1] + " q" + levels + " v" + version;
+					final ByteArrayOutputStream file = new ByteArrayOutputStream();
+					BinaryFileFormat.writeHeader(file, version);
+					final BitOutputStream binOut = new BitOutputStream(file);
+					new Quantization(levels).setVersion(version).compress(coefs, binOut);
+					binOut.close();
+
+					final ByteArrayInputStream in = new ByteArrayInputStream(file.toByteArray());
+					assertEquals(name, version, BinaryFileFormat.readHeader(in));
+					final DWTCoefficients [] decoded = new Quantization(levels).setVersion(version).decompress(new BitInputStream(in));
+					assertEquals(name + " bytes left", 0, in.available());
+					for (int k = 0; k < coefs.length; k++)
+						for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++) {
+							final Matrix m = coefs[k].getSubband(1, subband);
+							final float [] expected = flatten(m);
+							for (int i = 0; i < expected.length; i++)
+								expected[i] = legacyQuantized(expected[i], levels);
+							assertSubband(name + " channel " + k + " subband " + subband, m, expected, decoded[k].getSubband(1, subband));
+						}
+					if (previous != null)
+						for (int k = 0; k < coefs.length; k++)
+							assertArrayEquals(name, flatten(previous[k].getMa()), flatten(decoded[k].getMa()), 0);
+					previous = decoded;
+				}
+			}
+	}
+
+	/**
+	 * A preview at 1/2^level scale is the average coefs of that level composed from the fully decoded coefs, 
+	 * for the container and the older files
+	 */
+	@Test
+	public void previewMatchesComposedAverage() throws Exception {
+		for (Wavelet2DTransformation wavelet : new Wavelet2DTransformation[] { new HaarClassic(), new HaarAdaptive() })
+			for (int version : new int[] { BinaryFileFormat.VERSION_CODE_LENGTHS, BinaryFileFormat.VERSION }) {
+				// the files before the container do not record odd sides
+				final int [] size = version == BinaryFileFormat.VERSION ? new int[] { 129, 65 } : new int[] { 128, 64 };
+				final DWTCoefficients [] coefs = decompose(size, wavelet, 3, 7);
+				final ByteArrayOutputStream file = new ByteArrayOutputStream();
+				BinaryFileFormat.writeHeader(file, version);
+				final BitOutputStream binOut = new BitOutputStream(file);
+				new Quantization(LEVELS).setVersion(version).compress(coefs, binOut);
+				binOut.close();
+				final DWTCoefficients [] decoded = new Quantization(LEVELS).setVersion(version).setWavelet(wavelet).decompress(
+						new BitInputStream(skipHeader(file.toByteArray())));
+				// past the decomposition the deepest average coefs are returned
+				final Matrix [] deepest = preview(file.toByteArray(), version, wavelet, 3);
+				for (int k = 0; k < coefs.length; k++)
+					assertArrayEquals("past the levels", flatten(deepest[k]), 
+							flatten(preview(file.toByteArray(), version, wavelet, 4)[k]), 0);
+				for (int level = 0; level <= 3; level++) {
+					final String name = wavelet.getCaption() + " v" + version + " L" + level;
+					final Matrix [] preview = preview(file.toByteArray(), version, wavelet, level);
+					for (int k = 0; k < coefs.length; k++) {
+						// the older files are decoded with the levels below the first one composed, 
+						// their deeper previews are checked by sizes only
+						Matrix expected = null;
+						if (level == 0)
+							expected = decoded[k].compose();
+						else if (version == BinaryFileFormat.VERSION)
+							expected = decoded[k].getSubband(level, DWTCoefficients.MA);
+						else if (level == 1)
+							expected = decoded[k].getMa();
+						// odd sides are composed one longer
+						assertEquals(name + " rows", expected != null ? expected.getRowsCount() : size[0] >> level, preview[k].getRowsCount());
+						assertEquals(name + " columns", expected != null ? expected.getColumnsCount() : size[1] >> level, 
+								preview[k].getColumnsCount());
+						if (expected != null)
+							assertArrayEquals(name + " channel " + k, flatten(expected), flatten(preview[k]), 1e-3f);
+					}
+				}
+			}
+	}
+
+	private static Matrix [] preview(byte [] file, int version, Wavelet2DTransformation wavelet, int level) throws IOException {
+		return new Quantization(LEVELS).setVersion(version).setWavelet(wavelet).decompress(
+				new BitInputStream(skipHeader(file)), level);
+	}
+
+	private static ByteArrayInputStream skipHeader(byte [] file) throws IOException {
+		final ByteArrayInputStream in = new ByteArrayInputStream(file);
+		BinaryFileFormat.readHeader(in);
+		return in;
+	}
+
+	/**
+	 * @return R, G, B coefs of a smooth image with noise
+	 */
+	private static DWTCoefficients [] decompose(int [] size, Wavelet2DTransformation wavelet, int levels, long seed) {
+		final Random random = new Random(seed);
+		final Matrix [] channels = new Matrix[3];
+		for (int k = 0; k < channels.length; k++) {
+			final int [][] pixels = new int[size[0]][size[1]];
+			for (int i = 0; i < size[0]; i++)
+				for (int j = 0; j < size[1]; j++)
+					pixels[i][j] = (int) (128 + 100 * Math.sin(i * 0.05 + k) * Math.cos(j * 0.03)) + random.nextInt(20);
+			channels[k] = new Matrix(pixels);
+		}
+		return new DWT(wavelet).decompose(channels, false, false, levels);
+	}
+
+	private static byte [] encode(DWTCoefficients [] coefs, Quantization quantization) throws IOException {
+		final ByteArrayOutputStream file = new ByteArrayOutputStream();
+		BinaryFileFormat.writeHeader(file);
+		final BitOutputStream binOut = new BitOutputStream(file);
+		quantization.compress(coefs, binOut);
+		binOut.close();
+		return file.toByteArray();
+	}
+
+	private static DWTCoefficients [] decodeStream(byte [] file, Quantization quantization) throws IOException {
+		final ByteArrayInputStream in = new ByteArrayInputStream(file);
+		assertEquals(BinaryFileFormat.VERSION, BinaryFileFormat.readHeader(in));
+		return quantization.decompress(new BitInputStream(in));
+	}
+
+	private static DWTCoefficients [] decodeBuffer(byte [] file, Quantization quantization) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(file);
+		assertEquals(BinaryFileFormat.VERSION, BinaryFileFormat.readHeader(buffer));
+		final DWTCoefficients [] coefs = quantization.decompress(buffer);
+		assertEquals("bytes left", 0, buffer.remaining());
+		return coefs;
+	}
+
+	/**
+	 * Detail subbands are the values of the default deadzone quantizer, the maps are lossless
+	 */
+	private static void assertQuantized(String name, DWTCoefficients [] coefs, DWTCoefficients [] decoded) {
+		final DeadzoneQuantizer quantizer = new DeadzoneQuantizer(512 / LEVELS);
+		assertEquals(name, coefs.length, decoded.length);
+		for (int k = 0; k < coefs.length; k++)
+			for (int level = 1; level <= coefs[k].getLevelsCount(); level++) {
+				for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++) {
+					final Matrix m = coefs[k].getSubband(level, subband);
+					final float step = quantizer.getStep(level, subband);
+					final int maxLevel = DeadzoneQuantizer.getMaxLevel(step);
+					final short [] symbols = new short[m.getRowsCount() * m.getColumnsCount()];
+					quantizer.quantize(m, level, subband, symbols, 0, new int[2 * maxLevel + 1]);
+					final float [] values = DeadzoneQuantizer.getSymbolValues(step, maxLevel);
+					final float [] expected = new float[symbols.length];
+					for (int i = 0; i < symbols.length; i++)
+						expected[i] = values[symbols[i]];
+					assertSubband(name + " channel " + k + " level " + level + " subband " + subband, m, expected,
+							decoded[k].getSubband(level, subband));
+				}
+				final Matrix map = coefs[k].getSubband(level, DWTCoefficients.MAP);
+				if (map != null)
+					assertSubband(name + " map " + level, map, flatten(map), decoded[k].getSubband(level, DWTCoefficients.MAP));
+			}
+	}
+
+	private static void assertSameDetails(String name, DWTCoefficients [] expected, DWTCoefficients [] decoded) {
+		for (int k = 0; k < expected.length; k++)
+			for (int level = 1; level <= expected[k].getLevelsCount(); level++)
+				for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++) {
+					final Matrix m = expected[k].getSubband(level, subband);
+					assertSubband(name + " channel " + k + " level " + level + " subband " + subband, m, flatten(m),
+							decoded[k].getSubband(level, subband));
+				}
+	}
+
+	private static void assertSubband(String name, Matrix m, float [] expected, Matrix decoded) {
+		assertEquals(name + " rows", m.getRowsCount(), decoded.getRowsCount());
+		assertEquals(name + " columns", m.getColumnsCount(), decoded.getColumnsCount());
+		assertArrayEquals(name, expected, flatten(decoded), 0);
+	}
+
+	/**
+	 * @return the value restored from the quantization levels of the files before the container
+	 */
+	private static float legacyQuantized(float value, int levels) {
+		final int divider = 512 / levels;
+		final float shifted = Math.min(Math.max(value + 256, 0), 511);
+		return (int) (shifted / divider) * divider - 256;
+	}
+
+	/**
+	 * @return values row by row
+	 */
+	private static float [] flatten(Matrix m) {
+		final float [] values = new float[m.getRowsCount() * m.getColumnsCount()];
+		for (int i = 0, n = 0; i < m.getRowsCount(); i++)
+			for (int j = 0; j < m.getColumnsCount(); j++)
+				values[n++] = m.get(i, j);
+		return values;
+	}
+}
@@ -0,0 +1,113 @@
+package math.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RansCoderTest {
+	/**
+	 * Counts of the subbands over 2^19 coefs, frequency * scale overflows int
+	 */
+	private static final int [] LARGE_COUNTS = { 600000, 600000, 10 };
+
+	@Test
+	public void normalizeLargeCounts() {
+		final int [] probs = RansCoder.normalize(LARGE_COUNTS);
+		assertEquals(1 << RansCoder.PROB_BITS, probs[0] + probs[1] + probs[2]);
+		assertTrue("probabilities " + probs[0] + ", " + probs[1], Math.abs(probs[0] - probs[1]) <= 1);
+		assertEquals(1, probs[2]);
+	}
+
+	@Test
+	public void estimateLargeCounts() {
+		final long bits = new RansCoder().estimateBits(LARGE_COUNTS);
+		final double entropy = getEntropyBits(LARGE_COUNTS);
+		assertTrue("estimate of " + bits + " bits, entropy " + entropy, bits < entropy * 1.01 + 1024);
+	}
+
+	@Test
+	public void roundTripLargeCounts() throws Exception {
+		final short [] symbols = getSymbols(LARGE_COUNTS, new Random(1));
+		final RansCoder coder = new RansCoder();
+		final byte [] coded = coder.encode(symbols, symbols.length, LARGE_COUNTS);
+		final double entropy = getEntropyBits(LARGE_COUNTS);
+		assertTrue(coded.length + " bytes, entropy " + entropy / 8, coded.length < entropy / 8 * 1.01 + 128);
+
+		final float [] decoded = new float[symbols.length];
+		coder.decode(ByteBuffer.wrap(coded), new float[] { 0, 1, 2 }, null, decoded);
+		for (int i = 0; i < symbols.length; i++)
+			assertEquals("symbol " + i, symbols[i], decoded[i], 0);
+	}
+
+	@Test
+	public void roundTripRuns() throws Exception {
+		final int [] frequencies = { 50, 300, 20, 7 };
+		final short [] symbols = getSymbols(frequencies, new Random(2));
+		final int [] runs = { 1, 1, 2, 4 };
+		int values = 0;
+		for (short s : symbols)
+			values += runs[s];
+		final RansCoder coder = new RansCoder();
+		final byte [] coded = coder.encode(symbols, symbols.length, frequencies);
+
+		final float [] decoded = new float[values];
+		coder.decode(ByteBuffer.wrap(coded), new float[] { 5, 0, 0, 0 }, runs, decoded);
+		for (int i = 0, n = 0; i < symbols.length; i++)
+			for (int k = 0; k < runs[symbols[i]]; k++, n++)
+				assertEquals("value " + n, symbols[i] == 0 ? 5 : 0, decoded[n], 0);
+	}
+
+	@Test
+	public void truncatedChunkFails() throws Exception {
+		final int [] frequencies = { 500, 300, 20 };
+		final short [] symbols = getSymbols(frequencies, new Random(3));
+		final RansCoder coder = new RansCoder();
+		final byte [] coded = coder.encode(symbols, symbols.length, frequencies);
+		for (int length = 0; length < coded.length; length++) {
+			try {
+				coder.decode(ByteBuffer.wrap(coded, 0, length), new float[] { 0, 1, 2 }, null, new float[symbols.length]);
+				fail(length + " of " + coded.length + " bytes decoded");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * @return the symbols of the counts in random order
+	 */
+	private static short [] getSymbols(int [] frequencies, Random random) {
+		int count = 0;
+		for (int f : frequencies)
+			count += f;
+		final short [] symbols = new short[count];
+		for (int v = 0, n = 0; v < frequencies.length; v++)
+			for (int k = 0; k < frequencies[v]; k++)
+				symbols[n++] = (short) v;
+		for (int i = count - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final short s = symbols[i];
+			symbols[i] = symbols[j];
+			symbols[j] = s;
+		}
+		return symbols;
+	}
+
+	private static double getEntropyBits(int [] frequencies) {
+		long total = 0;
+		for (int f : frequencies)
+			total += f;
+		double bits = 0;
+		for (int f : frequencies)
+			if (f > 0)
+				bits -= f * Math.log((double) f / total) / Math.log(2);
+		return bits;
+	}
+}
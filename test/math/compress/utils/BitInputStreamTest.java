@@ -0,0 +1,138 @@
+package math.compress.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BitInputStreamTest {
+	private static final int COUNT = BitInputStream.BUFFER_SIZE / 2;
+
+	/**
+	 * Values of 1 to 32 bits cross the register refills and the blocks of the stream
+	 */
+	@Test
+	public void readsWrittenBits() throws IOException {
+		final Random random = new Random(1);
+		final int [] values = new int[COUNT];
+		final short [] lengths = new short[COUNT];
+		final byte [] data = write(values, lengths, random);
+		for (BitInputStream binIn : sources(data)) {
+			for (int i = 0; i < COUNT; i++) {
+				assertEquals("value " + i, values[i], binIn.peekBits(lengths[i]));
+				assertEquals("value " + i, values[i], binIn.readBits(lengths[i]));
+			}
+			binIn.close();
+		}
+	}
+
+	/**
+	 * Skips of the register bits only, past the buffered block and past the stream end
+	 */
+	@Test
+	public void skipsBits() throws IOException {
+		final Random random = new Random(2);
+		final int [] values = new int[COUNT];
+		final short [] lengths = new short[COUNT];
+		final byte [] data = write(values, lengths, random);
+		for (BitInputStream binIn : sources(data)) {
+			int i = 0;
+			while (i < COUNT) {
+				final int skip = random.nextInt(4) == 0 ? 5000 : random.nextInt(3);
+				long bits = 0;
+				for (int k = 0; k < skip && i < COUNT; k++)
+					bits += lengths[i++];
+				binIn.skipBits(bits);
+				if (i < COUNT) {
+					assertEquals("value " + i, values[i], binIn.readBits(lengths[i]));
+					i++;
+				}
+			}
+			binIn.close();
+		}
+	}
+
+	@Test
+	public void bytesAndVarints() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		final byte [] block = new byte[BitInputStream.BUFFER_SIZE + 5];
+		new Random(3).nextBytes(block);
+		binOut.writeBits(5, (short) 3);
+		binOut.align();
+		binOut.writeVarint(1L << 40);
+		binOut.writeFloat(-2.25f);
+		binOut.writeBytes(block, 0, block.length);
+		binOut.writeBit(1);
+		binOut.close();
+		for (BitInputStream binIn : sources(bytes.toByteArray())) {
+			assertEquals(5, binIn.readBits((short) 3));
+			binIn.align();
+			assertEquals(1L << 40, binIn.readVarint());
+			assertEquals(-2.25f, binIn.readFloat(), 0);
+			final byte [] read = new byte[block.length];
+			binIn.readBytes(read, 0, read.length);
+			for (int i = 0; i < block.length; i++)
+				assertEquals("byte " + i, block[i], read[i]);
+			assertEquals(1, binIn.readBit());
+			binIn.close();
+		}
+	}
+
+	/**
+	 * Bits past the end peek as zeros, reading them fails
+	 */
+	@Test(expected = EOFException.class)
+	public void readPastEndFails() throws IOException {
+		final BitInputStream binIn = new BitInputStream(new byte[] { (byte) 0x81 });
+		assertEquals(0x8100, binIn.peekBits(16));
+		binIn.readBits((short) 16);
+	}
+
+	/**
+	 * Writes random values of random lengths
+	 */
+	private static byte [] write(int [] values, short [] lengths, Random random) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		for (int i = 0; i < values.length; i++) {
+			lengths[i] = (short) (1 + random.nextInt(32));
+			values[i] = random.nextInt() >>> (32 - lengths[i]);
+			binOut.writeBits(values[i], lengths[i]);
+		}
+		binOut.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return readers of the array, of a buffer and of a stream returning few bytes per read, skipping none
+	 */
+	private static BitInputStream [] sources(byte [] data) {
+		final ByteBuffer buffer = ByteBuffer.allocate(data.length + 3);
+		buffer.position(3);
+		buffer.put(data);
+		buffer.position(3);
+		return new BitInputStream[] {
+				new BitInputStream(data),
+				new BitInputStream(buffer),
+				new BitInputStream(new ByteArrayInputStream(data) {
+					@Override
+					public synchronized int read(byte [] b, int off, int len) {
+						return super.read(b, off, Math.min(len, 1 + (pos % 7)));
+					}
+
+					@Override
+					public synchronized long skip(long n) {
+						return 0;
+					}
+				})
+		};
+	}
+}
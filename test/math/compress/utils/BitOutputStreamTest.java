@@ -0,0 +1,145 @@
+package math.compress.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BitOutputStreamTest {
+
+	/**
+	 * Values of 1 to 32 bits cross the register words and the buffer blocks
+	 */
+	@Test
+	public void bitsMatchBitByBitPacking() throws IOException {
+		final Random random = new Random(1);
+		final int count = BitOutputStream.BUFFER_SIZE / 2;
+		final int [] values = new int[count];
+		final short [] lengths = new short[count];
+		for (int i = 0; i < count; i++) {
+			lengths[i] = (short) (1 + random.nextInt(32));
+			values[i] = random.nextInt();
+		}
+		final Packer expected = new Packer();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		for (int i = 0; i < count; i++) {
+			binOut.writeBits(values[i], lengths[i]);
+			expected.write(values[i], lengths[i]);
+			if (i % 1000 == 0) {
+				binOut.writeBit(1);
+				expected.write(1, 1);
+			}
+		}
+		assertEquals(expected.bits, binOut.getBitsCount());
+		binOut.close();
+		assertArrayEquals(expected.toByteArray(), bytes.toByteArray());
+	}
+
+	@Test
+	public void channelMatchesStream() throws IOException {
+		final ByteArrayOutputStream streamBytes = new ByteArrayOutputStream(), channelBytes = new ByteArrayOutputStream();
+		final BitOutputStream stream = new BitOutputStream(streamBytes);
+		final BitOutputStream channel = new BitOutputStream(Channels.newChannel(channelBytes));
+		final Random random = new Random(2);
+		for (int i = 0; i < BitOutputStream.BUFFER_SIZE; i++) {
+			final int value = random.nextInt();
+			final short length = (short) (1 + random.nextInt(20));
+			stream.writeBits(value, length);
+			channel.writeBits(value, length);
+		}
+		stream.close();
+		channel.close();
+		assertArrayEquals(streamBytes.toByteArray(), channelBytes.toByteArray());
+	}
+
+	/**
+	 * Stored bits are shifted in at any bit position
+	 */
+	@Test
+	public void storedBitsAtAnyPosition() throws IOException {
+		final Random random = new Random(3);
+		final ByteArrayOutputStream storedBytes = new ByteArrayOutputStream();
+		final BitOutputStream stored = new BitOutputStream(storedBytes);
+		final Packer expected = new Packer();
+		for (int i = 0; i < 50; i++) {
+			final int value = random.nextInt();
+			final short length = (short) (1 + random.nextInt(32));
+			stored.writeBits(value, length);
+			expected.write(value, length);
+		}
+		final long storedBits = stored.getBitsCount();
+		stored.close();
+		final byte [] data = storedBytes.toByteArray();
+		for (int shift = 0; shift <= 32; shift++) {
+			final Packer shifted = new Packer();
+			shifted.write(0x2AAAAAAA, shift);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final BitOutputStream binOut = new BitOutputStream(bytes);
+			binOut.writeBits(0x2AAAAAAA, (short) shift);
+			binOut.writeBits(data, storedBits);
+			binOut.writeBits(5, (short) 3);
+			binOut.close();
+			for (int i = 0; i < expected.bits; i++)
+				shifted.write(expected.bit(i), 1);
+			shifted.write(5, 3);
+			assertArrayEquals("shift " + shift, shifted.toByteArray(), bytes.toByteArray());
+		}
+	}
+
+	@Test
+	public void bytesAndVarints() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final BitOutputStream binOut = new BitOutputStream(bytes);
+		binOut.writeBits(1, (short) 3);
+		binOut.align();
+		assertEquals(8, binOut.getBitsCount());
+		binOut.writeVarint(300);
+		binOut.writeFloat(1.5f);
+		final byte [] block = new byte[BitOutputStream.BUFFER_SIZE + 5];
+		new Random(4).nextBytes(block);
+		binOut.writeBytes(block, 1, block.length - 1);
+		binOut.close();
+		final byte [] written = bytes.toByteArray();
+		assertEquals(1 + 2 + 4 + block.length - 1, written.length);
+		assertEquals((byte) 0x04, written[0]);
+		assertEquals((byte) 0xAC, written[1]);
+		assertEquals((byte) 0x02, written[2]);
+		assertEquals(Float.floatToIntBits(1.5f), (written[3] & 0xFF) | (written[4] & 0xFF) << 8
+				| (written[5] & 0xFF) << 16 | (written[6] & 0xFF) << 24);
+		for (int i = 1; i < block.length; i++)
+			assertEquals(block[i], written[6 + i]);
+	}
+
+	/**
+	 * Reference packing: the highest bit of a value goes first, the first bit is the lowest one of a byte
+	 */
+	private static class Packer {
+		private byte [] data = new byte[16];
+		private long bits;
+
+		void write(int value, int length) {
+			for (int k = length - 1; k >= 0; k--) {
+				if (bits / 8 >= data.length)
+					data = Arrays.copyOf(data, data.length * 2);
+				if ((value >>> k & 1) != 0)
+					data[(int) (bits / 8)] |= 1 << (bits % 8);
+				bits++;
+			}
+		}
+
+		int bit(long i) {
+			return data[(int) (i / 8)] >>> (i % 8) & 1;
+		}
+
+		byte [] toByteArray() {
+			return Arrays.copyOf(data, (int) ((bits + 7) / 8));
+		}
+	}
+}
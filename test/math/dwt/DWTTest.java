@@ -0,0 +1,207 @@
+package math.dwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import math.dwt.wavelets.HaarAdaptive;
+import math.dwt.wavelets.HaarClassic;
+import math.dwt.wavelets.HaarDiagonal;
+
+import org.junit.Test;
+
+public class DWTTest {
+	/**
+	 * Sides of the inputs, odd ones are padded on some levels
+	 */
+	private static final int [][] SIZES = { { 37, 53 }, { 5, 5 }, { 100, 75 }, { 129, 65 }, { 64, 32 } };
+	private static final int LEVELS = 3;
+
+	private static Wavelet2DTransformation [] getWavelets() {
+		return new Wavelet2DTransformation[] { new HaarClassic(), new HaarDiagonal(), new HaarAdaptive() };
+	}
+
+	@Test
+	public void inPlaceMatchesAllocated() {
+		for (Wavelet2DTransformation wavelet : getWavelets())
+			for (int [] size : SIZES) {
+				final int [][] pixels = pixels(size[0], size[1], size[0] * 1000 + size[1]);
+				final DWTCoefficients expected = decompose(new DWT(wavelet), new Matrix(pixels));
+				// spread in the room of the data array and copied into a new buffer
+				final Matrix spread = new Matrix(pixels, DWT.getPyramidLength(size[0], size[1], LEVELS));
+				final DWTCoefficients inPlace = decompose(new DWT(wavelet).setInPlace(true), spread);
+				assertSame(spread.getData(), inPlace.getPyramid().getData());
+				final String name = wavelet.getCaption() + " " + size[0] + "x" + size[1];
+				assertCoefsEqual(name, expected, inPlace);
+				assertCoefsEqual(name + " copied", expected, decompose(new DWT(wavelet).setInPlace(true), new Matrix(pixels)));
+			}
+	}
+
+	@Test
+	public void inPlaceOfView() {
+		final int [][] pixels = pixels(80, 90, 3);
+		final Matrix view = new Matrix(pixels).subMatrix(3, 5, 37, 53);
+		final DWTCoefficients expected = decompose(new DWT(new HaarAdaptive()), view);
+		assertCoefsEqual("view", expected, decompose(new DWT(new HaarAdaptive()).setInPlace(true), view));
+	}
+
+	/**
+	 * Thresholds of 2, 7 and 64 rows, the band bounds stay even for the odd one
+	 */
+	@Test
+	public void parallelMatchesSequential() throws InterruptedException {
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (Wavelet2DTransformation wavelet : getWavelets())
+				for (int [] size : SIZES) {
+					final Matrix input = new Matrix(pixels(size[0], size[1], size[0] * 1000 + size[1]));
+					final DWTCoefficients expected = decompose(new DWT(wavelet).setStatistics(true), input);
+					for (int threshold : new int[] { 2, 7, 64 }) {
+						final String name = wavelet.getCaption() + " " + size[0] + "x" + size[1] + " threshold " + threshold;
+						final DWTCoefficients parallel = decompose(new DWT(wavelet).setPool(pool, threshold).setStatistics(true), input);
+						assertCoefsEqual(name, expected, parallel);
+						for (int level = 1; level <= LEVELS; level++)
+							assertStatisticsEqual(name + " level " + level, expected, parallel, level);
+					}
+				}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Tiles of 8 (the alignment), 12 (rounded up to 16) and 40 (rounded up to 40), 
+	 * the last tiles are cut by the matrix edges
+	 */
+	@Test
+	public void tiledMatchesUntiled() {
+		for (Wavelet2DTransformation wavelet : getWavelets())
+			for (int [] size : SIZES) {
+				final Matrix input = new Matrix(pixels(size[0], size[1], size[0] * 1000 + size[1]));
+				final DWTCoefficients expected = decompose(new DWT(wavelet).setStatistics(true), input);
+				for (int tile : new int[] { 8, 12, 40 }) {
+					final String name = wavelet.getCaption() + " " + size[0] + "x" + size[1] + " tile " + tile;
+					final DWTCoefficients tiled = decompose(new DWT(wavelet).setTileSize(tile).setStatistics(true), input);
+					assertCoefsEqual(name, expected, tiled);
+					for (int level = 1; level <= LEVELS; level++)
+						assertStatisticsEqual(name + " level " + level, expected, tiled, level);
+				}
+			}
+	}
+
+	/**
+	 * Statistics gathered row by row equal the separate passes over the coefs
+	 */
+	@Test
+	public void statisticsMatchSeparatePasses() {
+		final SubbandStatistics.Quantizer quantizer = new SubbandStatistics.Quantizer() {
+			@Override
+			public int getSymbolsCount(int level, int subband) {
+				return 2 * level + 1;
+			}
+
+			@Override
+			public void count(float [] data, int index, int count, int stride, int level, int subband, int [] histogram) {
+				for (int j = 0; j < count; j++, index += stride)
+					histogram[symbol(data[index], level)]++;
+			}
+		};
+		for (Wavelet2DTransformation wavelet : getWavelets()) {
+			final Matrix input = new Matrix(pixels(37, 53, 9));
+			final DWTCoefficients expected = decompose(new DWT(wavelet), input);
+			DWTCoefficients coefs = decompose(new DWT(wavelet).setStatistics(true, quantizer), input);
+			for (int level = 1; level <= LEVELS; level++, coefs = coefs.getMaDecomposition()) {
+				final String name = wavelet.getCaption() + " level " + level;
+				final SubbandStatistics statistics = coefs.getStatistics();
+				assertEquals(name, sumOfSquares(expected.getSubband(level, DWTCoefficients.MV)), statistics.getNormMv(), 1);
+				assertEquals(name, sumOfSquares(expected.getSubband(level, DWTCoefficients.MH)), statistics.getNormMh(), 1);
+				assertEquals(name, sumOfSquares(expected.getSubband(level, DWTCoefficients.MD)), statistics.getNormMd(), 1);
+				assertEquals(name, (long) sumOfSquares(expected.getSubband(level, DWTCoefficients.MV)), coefs.getNormMv());
+				for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MD; subband++) {
+					final int [] histogram = new int[2 * level + 1];
+					for (float v : flatten(expected.getSubband(level, subband)))
+						histogram[symbol(v, level)]++;
+					assertArrayEquals(name + " subband " + subband, histogram, statistics.getQuantizedHistogram(subband));
+				}
+				final int [] map = new int[4];
+				if (wavelet instanceof HaarAdaptive)
+					for (float id : flatten(expected.getSubband(level, DWTCoefficients.MAP)))
+						map[(int) id]++;
+				assertArrayEquals(name + " map", map, statistics.getMapHistogram());
+			}
+		}
+	}
+
+	/**
+	 * Coefs clamped to [-level, level] and rounded
+	 */
+	private static int symbol(float coef, int level) {
+		return level + Math.round(Math.max(-level, Math.min(level, coef / 8)));
+	}
+
+	private static double sumOfSquares(Matrix m) {
+		double sum = 0;
+		for (float v : flatten(m))
+			sum += v * v;
+		return sum;
+	}
+
+	private static DWTCoefficients decompose(DWT dwt, Matrix m) {
+		return dwt.decompose(new Matrix[] { m, new Matrix(1, 1), new Matrix(1, 1) }, false, false, LEVELS)[0];
+	}
+
+	private static void assertCoefsEqual(String name, DWTCoefficients expected, DWTCoefficients actual) {
+		assertEquals(name, LEVELS, actual.getLevelsCount());
+		for (int level = 1; level <= LEVELS; level++)
+			for (int subband = DWTCoefficients.MV; subband <= DWTCoefficients.MAP; subband++)
+				assertMatrixEquals(name + " level " + level + " subband " + subband,
+						expected.getSubband(level, subband), actual.getSubband(level, subband));
+		assertMatrixEquals(name + " approximation", expected.getSubband(LEVELS, DWTCoefficients.MA),
+				actual.getSubband(LEVELS, DWTCoefficients.MA));
+	}
+
+	private static void assertStatisticsEqual(String name, DWTCoefficients expected, DWTCoefficients actual, int level) {
+		for (int l = 1; l < level; l++) {
+			expected = expected.getMaDecomposition();
+			actual = actual.getMaDecomposition();
+		}
+		final SubbandStatistics e = expected.getStatistics(), a = actual.getStatistics();
+		assertEquals(name + " norm MV", e.getNormMv(), a.getNormMv());
+		assertEquals(name + " norm MH", e.getNormMh(), a.getNormMh());
+		assertEquals(name + " norm MD", e.getNormMd(), a.getNormMd());
+		assertArrayEquals(name + " map histogram", e.getMapHistogram(), a.getMapHistogram());
+	}
+
+	private static void assertMatrixEquals(String name, Matrix expected, Matrix actual) {
+		if (expected == null) {
+			assertEquals(name, null, actual);
+			return;
+		}
+		assertEquals(name + " rows", expected.getRowsCount(), actual.getRowsCount());
+		assertEquals(name + " columns", expected.getColumnsCount(), actual.getColumnsCount());
+		assertArrayEquals(name, flatten(expected), flatten(actual), 0);
+	}
+
+	private static int [][] pixels(int rows, int columns, long seed) {
+		final Random random = new Random(seed);
+		final int [][] pixels = new int[rows][columns];
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				pixels[i][j] = random.nextInt(256);
+		return pixels;
+	}
+
+	/**
+	 * @return values row by row
+	 */
+	static float [] flatten(Matrix m) {
+		final float [] values = new float[m.getRowsCount() * m.getColumnsCount()];
+		for (int i = 0, n = 0; i < m.getRowsCount(); i++)
+			for (int j = 0; j < m.getColumnsCount(); j++)
+				values[n++] = m.get(i, j);
+		return values;
+	}
+}
@@ -0,0 +1,74 @@
+package math.dwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MatrixTest {
+
+	@Test
+	public void flatRowMajorStorage() {
+		final Matrix m = new Matrix(new int [][] { { 1, 2, 3 }, { 4, 5, 6 } });
+		assertArrayEquals(new float[] { 1, 2, 3, 4, 5, 6 }, m.getData(), 0);
+		assertEquals(0, m.getOffset());
+		assertEquals(3, m.getRowStride());
+		assertEquals(1, m.getColumnStride());
+		assertEquals(4, m.index(1, 1));
+		assertArrayEquals(new float[][] { { 1, 2, 3 }, { 4, 5, 6 } }, m.get());
+		assertEquals(m, new Matrix(new float [][] { { 1, 2, 3 }, { 4, 5, 6 } }));
+	}
+
+	@Test
+	public void getClampsToEdges() {
+		final Matrix m = new Matrix(new float[] { 1, 2, 3, 4, 5, 6 }, 2, 3);
+		assertEquals(5, m.get(2, 1), 0);
+		assertEquals(3, m.get(0, 3), 0);
+		assertEquals(6, m.get(2, 3), 0);
+		// a view clamps to its own edges, not to the buffer ones
+		assertEquals(5, m.subMatrix(0, 0, 2, 2).get(1, 2), 0);
+	}
+
+	@Test
+	public void subMatrixSharesData() {
+		final Matrix m = new Matrix(4, 5);
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 5; j++)
+				m.set(i, j, i * 10 + j);
+		final Matrix view = m.subMatrix(1, 2, 2, 3);
+		assertSame(m.getData(), view.getData());
+		assertArrayEquals(new float[][] { { 12, 13, 14 }, { 22, 23, 24 } }, view.get());
+		view.set(1, 0, -1);
+		assertEquals(-1, m.get(2, 2), 0);
+		// a view of a view
+		assertArrayEquals(new float[][] { { 23 } }, view.subMatrix(1, 1, 1, 1).get());
+	}
+
+	@Test
+	public void stridedSubMatrix() {
+		final Matrix m = new Matrix(5, 7);
+		for (int i = 0; i < 5; i++)
+			for (int j = 0; j < 7; j++)
+				m.set(i, j, i * 10 + j);
+		final Matrix odd = m.subMatrix(1, 1, 2, 3, 2, 2);
+		assertArrayEquals(new float[][] { { 11, 13, 15 }, { 31, 33, 35 } }, odd.get());
+		assertEquals(14, odd.getRowStride());
+		assertEquals(2, odd.getColumnStride());
+		assertEquals(31 * 31 + 33 * 33 + 35 * 35 + 11 * 11 + 13 * 13 + 15 * 15, odd.calculateNorm());
+		// strides multiply for a strided view of a strided view
+		assertArrayEquals(new float[][] { { 11, 15 } }, odd.subMatrix(0, 0, 1, 2, 1, 2).get());
+	}
+
+	@Test
+	public void emptyView() {
+		final Matrix m = new Matrix(2, 2);
+		assertEquals(0, m.subMatrix(2, 0, 0, 2).getRowsCount());
+		assertEquals(-1, m.subMatrix(0, 0, 0, 2).calculateNorm());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void subMatrixPastEdgeFails() {
+		new Matrix(4, 4).subMatrix(2, 0, 2, 2, 2, 1);
+	}
+}
@@ -0,0 +1,168 @@
+package math.dwt.wavelets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import math.dwt.Matrix;
+import math.dwt.Wavelet2DTransformation;
+
+import org.junit.Test;
+
+public class HaarTransformationTest {
+	/**
+	 * Sides of the inputs, odd ones have clamped edges
+	 */
+	private static final int [][] SIZES = { { 1, 1 }, { 2, 7 }, { 5, 5 }, { 37, 53 }, { 64, 32 } };
+
+	private static Wavelet2DTransformation [] getWavelets() {
+		return new Wavelet2DTransformation[] {
+				new HaarClassic(), new HaarVertical(), new HaarHorizotal(), new HaarDiagonal(), new HaarAdaptive() };
+	}
+
+	@Test
+	public void bulkPerformMatchesBlockPerform() {
+		for (Wavelet2DTransformation wavelet : getWavelets())
+			for (int [] size : SIZES) {
+				final String name = wavelet.getCaption() + " " + size[0] + "x" + size[1];
+				final Matrix input = random(size[0], size[1], size[0] * 100 + size[1]);
+				final int rows = (size[0] + 1) / 2, columns = (size[1] + 1) / 2;
+				final Matrix [] coefs = new Matrix[5];
+				for (int k = 0; k < coefs.length; k++)
+					coefs[k] = new Matrix(rows, columns);
+				final boolean isAdaptive = wavelet instanceof HaarAdaptive;
+				wavelet.perform(input, 0, size[0], coefs[0], coefs[1], coefs[2], coefs[3], isAdaptive ? coefs[4] : null);
+
+				for (int i = 0; i < rows; i++)
+					for (int j = 0; j < columns; j++) {
+						final float [] block = wavelet.perform(new float[] {
+								input.get(2 * i, 2 * j), input.get(2 * i, 2 * j + 1),
+								input.get(2 * i + 1, 2 * j), input.get(2 * i + 1, 2 * j + 1) });
+						for (int k = 0; k < (isAdaptive ? 5 : 4); k++)
+							assertEquals(name + " coef " + k + " of block " + i + ", " + j, block[k], coefs[k].get(i, j), 0);
+					}
+			}
+	}
+
+	@Test
+	public void bulkPerformOfBandsAndViews() {
+		for (Wavelet2DTransformation wavelet : getWavelets()) {
+			final Matrix input = random(37, 53, 7);
+			final Matrix [] whole = new Matrix[5], bands = new Matrix[5];
+			for (int k = 0; k < whole.length; k++) {
+				whole[k] = new Matrix(19, 27);
+				bands[k] = new Matrix(19 * 2, 27 * 3);
+			}
+			final boolean isAdaptive = wavelet instanceof HaarAdaptive;
+			wavelet.perform(input, 0, 37, whole[0], whole[1], whole[2], whole[3], isAdaptive ? whole[4] : null);
+			// strided coefs views, the input rows go by bands
+			final Matrix [] views = new Matrix[5];
+			for (int k = 0; k < views.length; k++)
+				views[k] = bands[k].subMatrix(1, 2, 19, 27, 2, 3);
+			for (int fromRow = 0; fromRow < 37; fromRow += 10)
+				wavelet.perform(input, fromRow, Math.min(37, fromRow + 10), views[0], views[1], views[2], views[3],
+						isAdaptive ? views[4] : null);
+			for (int k = 0; k < (isAdaptive ? 5 : 4); k++)
+				assertArrayEquals(wavelet.getCaption() + " coefs " + k, flatten(whole[k]), flatten(views[k]), 0);
+		}
+	}
+
+	@Test
+	public void bulkInverseMatchesBlockInverse() {
+		for (Wavelet2DTransformation wavelet : getWavelets()) {
+			final String name = wavelet.getCaption();
+			final boolean isAdaptive = wavelet instanceof HaarAdaptive;
+			final Matrix input = random(18, 26, 11);
+			final Matrix [] coefs = new Matrix[5];
+			for (int k = 0; k < coefs.length; k++)
+				coefs[k] = new Matrix(9, 13);
+			wavelet.perform(input, 0, 18, coefs[0], coefs[1], coefs[2], coefs[3], isAdaptive ? coefs[4] : null);
+			final Matrix output = new Matrix(18, 26);
+			wavelet.inverse(coefs[0], coefs[1], coefs[2], coefs[3], isAdaptive ? coefs[4] : null, 0, 9, output);
+
+			for (int i = 0; i < 9; i++)
+				for (int j = 0; j < 13; j++) {
+					final float [] block = new float[isAdaptive ? 5 : 4];
+					for (int k = 0; k < block.length; k++)
+						block[k] = coefs[k].get(i, j);
+					final float [] values = wavelet.inverse(block);
+					assertEquals(name, values[0], output.get(2 * i, 2 * j), 0);
+					assertEquals(name, values[1], output.get(2 * i, 2 * j + 1), 0);
+					assertEquals(name, values[2], output.get(2 * i + 1, 2 * j), 0);
+					assertEquals(name, values[3], output.get(2 * i + 1, 2 * j + 1), 0);
+				}
+			assertArrayEquals(name + " reconstruction", flatten(input), flatten(output), 1e-3f);
+		}
+	}
+
+	/**
+	 * The fused kernel picks the first transformation of the minimal detail energy, ties included
+	 */
+	@Test
+	public void adaptiveSelectsMinimalEnergy() {
+		final Wavelet2DTransformation [] transformations = {
+				new HaarClassic(), new HaarVertical(), new HaarHorizotal(), new HaarDiagonal() };
+		final Random random = new Random(5);
+		final Matrix input = new Matrix(64, 64);
+		for (int i = 0; i < 64; i++)
+			for (int j = 0; j < 64; j++)
+				// few distinct values, so many blocks have ties and flat parts
+				input.set(i, j, random.nextInt(i < 32 ? 3 : 256));
+		final Matrix [] coefs = new Matrix[5];
+		for (int k = 0; k < coefs.length; k++)
+			coefs[k] = new Matrix(32, 32);
+		new HaarAdaptive().perform(input, 0, 64, coefs[0], coefs[1], coefs[2], coefs[3], coefs[4]);
+		final int [] chosen = new int[4];
+		for (int i = 0; i < 32; i++)
+			for (int j = 0; j < 32; j++) {
+				final float [] block = {
+						input.get(2 * i, 2 * j), input.get(2 * i, 2 * j + 1),
+						input.get(2 * i + 1, 2 * j), input.get(2 * i + 1, 2 * j + 1) };
+				float [] best = null;
+				int bestID = -1;
+				for (int t = 0; t < transformations.length; t++) {
+					final float [] c = transformations[t].perform(block);
+					if (best == null || c[1] * c[1] + c[2] * c[2] + c[3] * c[3] < best[1] * best[1] + best[2] * best[2] + best[3] * best[3]) {
+						best = c;
+						bestID = t;
+					}
+				}
+				chosen[bestID]++;
+				assertEquals("id of block " + i + ", " + j, bestID, coefs[4].get(i, j), 0);
+				for (int k = 0; k < 4; k++)
+					assertEquals("coef " + k + " of block " + i + ", " + j, best[k], coefs[k].get(i, j), 0);
+			}
+		for (int t = 0; t < chosen.length; t++)
+			assertTrue("transformation " + t + " is never chosen", chosen[t] > 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownTransformationIdFails() {
+		final Matrix [] coefs = new Matrix[5];
+		for (int k = 0; k < coefs.length; k++)
+			coefs[k] = new Matrix(2, 2);
+		coefs[4].set(1, 1, 7);
+		new HaarAdaptive().inverse(coefs[0], coefs[1], coefs[2], coefs[3], coefs[4], 0, 2, new Matrix(4, 4));
+	}
+
+	static Matrix random(int rows, int columns, long seed) {
+		final Random random = new Random(seed);
+		final float [] data = new float[rows * columns];
+		for (int i = 0; i < data.length; i++)
+			data[i] = random.nextInt(256);
+		return new Matrix(data, rows, columns);
+	}
+
+	/**
+	 * @return values row by row
+	 */
+	static float [] flatten(Matrix m) {
+		final float [] values = new float[m.getRowsCount() * m.getColumnsCount()];
+		for (int i = 0, n = 0; i < m.getRowsCount(); i++)
+			for (int j = 0; j < m.getColumnsCount(); j++)
+				values[n++] = m.get(i, j);
+		return values;
+	}
+}
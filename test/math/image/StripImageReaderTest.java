@@ -0,0 +1,196 @@
+package math.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+
+import math.dwt.Matrix;
+
+import org.junit.Test;
+
+public class StripImageReaderTest {
+	private static final int WIDTH = 301, HEIGHT = 203;
+
+	/**
+	 * RGB, RGBA and palette PNG files of 4 and 8 bits are decoded row by row,
+	 * the random and the smooth rows make the writer choose different filters.
+	 * Gray ones are read by ImageIO bands
+	 */
+	@Test
+	public void stripsMatchImageIO() throws IOException {
+		final byte [] levels = new byte[256];
+		for (int i = 0; i < levels.length; i++)
+			levels[i] = (byte) (i * 37);
+		final BufferedImage [] images = {
+				new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB),
+				new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB),
+				new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY,
+						new IndexColorModel(4, 16, levels, levels, levels)),
+				new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED),
+				new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY)
+		};
+		for (int k = 0; k < images.length; k++) {
+			final File file = File.createTempFile("strip", ".png");
+			try {
+				fill(images[k], new Random(k));
+				ImageIO.write(images[k], "png", file);
+				final PngRowReader png = PngRowReader.open(file);
+				if (k < images.length - 1) {
+					assertNotNull("image " + k, png);
+					png.close();
+				} else {
+					assertNull("gray", png);
+				}
+				assertStrips("image " + k, ImageIO.read(file), file);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * ImageIO writes unfiltered rows, rows of all the filters in small IDAT chunks are written here
+	 */
+	@Test
+	public void filteredRowsMatchImageIO() throws IOException {
+		for (boolean alpha : new boolean[] { false, true }) {
+			final File file = File.createTempFile("strip", ".png");
+			try {
+				final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+				fill(image, new Random(alpha ? 5 : 6));
+				writeFiltered(image, alpha, file);
+				assertStrips(alpha ? "RGBA" : "RGB", ImageIO.read(file), file);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void notPngIsNotDecodedByRows() throws IOException {
+		final File file = File.createTempFile("strip", ".bmp");
+		try {
+			final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+			fill(image, new Random(7));
+			ImageIO.write(image, "bmp", file);
+			assertNull(PngRowReader.open(file));
+			assertStrips("bmp", image, file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Strips of 16 rows top to bottom, the last one cut, then a strip above the read ones
+	 */
+	private static void assertStrips(String name, BufferedImage expected, File file) throws IOException {
+		final StripImageReader reader = new StripImageReader(file.toString());
+		try {
+			assertEquals(name, WIDTH, reader.getWidth());
+			assertEquals(name, HEIGHT, reader.getHeight());
+			for (int row = 0; row < HEIGHT; row += 16)
+				assertStrip(name + " row " + row, expected, row, Math.min(16, HEIGHT - row), reader.readStrip(row, 16));
+			assertStrip(name + " again", expected, 32, 5, reader.readStrip(32, 5));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void assertStrip(String name, BufferedImage expected, int row, int rows, Matrix [] strip) {
+		assertEquals(name, rows, strip[0].getRowsCount());
+		for (int i = 0; i < strip[0].getRowsCount(); i++)
+			for (int j = 0; j < WIDTH; j++) {
+				final int rgb = expected.getRGB(j, row + i);
+				assertEquals(name, (rgb >> 16) & 0xFF, strip[0].get(i, j), 0);
+				assertEquals(name, (rgb >> 8) & 0xFF, strip[1].get(i, j), 0);
+				assertEquals(name, rgb & 0xFF, strip[2].get(i, j), 0);
+			}
+	}
+
+	/**
+	 * Random rows and smooth rows in turns
+	 */
+	private static void fill(BufferedImage image, Random random) {
+		for (int i = 0; i < image.getHeight(); i++)
+			for (int j = 0; j < image.getWidth(); j++)
+				image.setRGB(j, i, (i / 8) % 2 == 0 ? random.nextInt() | 0xFF000000
+						: 0xFF000000 | (i & 0xFF) << 16 | (j & 0xFF) << 8 | ((i + j) & 0xFF));
+	}
+
+	/**
+	 * Writes a PNG file of 8 bits RGB or RGBA, the filter of a row is the row index modulo 5
+	 */
+	private static void writeFiltered(BufferedImage image, boolean alpha, File file) throws IOException {
+		final int bpp = alpha ? 4 : 3, width = image.getWidth();
+		final ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+		final DeflaterOutputStream deflater = new DeflaterOutputStream(pixels);
+		byte [] previous = new byte[width * bpp], row = new byte[width * bpp];
+		final byte [] filtered = new byte[row.length];
+		for (int i = 0; i < image.getHeight(); i++) {
+			for (int j = 0; j < width; j++) {
+				final int argb = image.getRGB(j, i);
+				row[j * bpp] = (byte) (argb >> 16);
+				row[j * bpp + 1] = (byte) (argb >> 8);
+				row[j * bpp + 2] = (byte) argb;
+				if (alpha)
+					row[j * bpp + 3] = (byte) (argb >>> 24);
+			}
+			final int filter = i % 5;
+			for (int k = 0; k < row.length; k++) {
+				final int a = k >= bpp ? row[k - bpp] & 0xFF : 0, b = previous[k] & 0xFF, c = k >= bpp ? previous[k - bpp] & 0xFF : 0;
+				final int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				final int predictor = filter == 0 ? 0 : filter == 1 ? a : filter == 2 ? b : filter == 3 ? (a + b) >> 1
+						: pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+				filtered[k] = (byte) (row[k] - predictor);
+			}
+			deflater.write(filter);
+			deflater.write(filtered);
+			final byte [] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		deflater.close();
+		final byte [] data = pixels.toByteArray();
+
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeLong(0x89504E470D0A1A0AL);
+			final ByteArrayOutputStream header = new ByteArrayOutputStream();
+			final DataOutputStream headerOut = new DataOutputStream(header);
+			headerOut.writeInt(width);
+			headerOut.writeInt(image.getHeight());
+			headerOut.write(new byte[] { 8, (byte) (alpha ? 6 : 2), 0, 0, 0 });
+			writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+			writeChunk(out, "tEXt", "Comment\0rows".getBytes("ISO-8859-1"), 0, 12);
+			for (int from = 0; from < data.length; from += 1000)
+				writeChunk(out, "IDAT", data, from, Math.min(1000, data.length - from));
+			writeChunk(out, "IEND", data, 0, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte [] data, int from, int length) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte [] typeBytes = type.getBytes("ISO-8859-1");
+		crc.update(typeBytes);
+		crc.update(data, from, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, from, length);
+		out.writeInt((int) crc.getValue());
+	}
+}